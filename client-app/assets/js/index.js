@@ -22,11 +22,23 @@ client.connect({
 });
 $("#led").bootstrapToggle("disable");
 
+// replies to our history request come on node/history/<historyReplyId>
+let historyReplyId = client.clientId;
+
 // called when the client connects
 function onConnect() {
   isSensorActive();
   console.log("onConnect");
   client.subscribe("node/#");
+  requestHistory(-600000);
+}
+
+// ask the gateway for the samples of its recent readings, from is in ms, negative is relative
+// to the clock of the gateway; see HistoryReplay in the gateway for the format
+function requestHistory(from) {
+  let message = new Paho.MQTT.Message(historyReplyId + "," + from);
+  message.destinationName = "sensor/history";
+  client.send(message);
 }
 
 // called when the client loses its connection
@@ -40,54 +52,166 @@ function onConnectionLost(responseObject) {
 // called when a message arrives
 function onMessageArrived(message) {
   let topic = message.destinationName;
-  let value = message.payloadString;
   topic = topic.split("/");
   console.log(topic)
-  if (topic[1] == "temperature") {
-    $("#temperature").html(value);
-    $("#temperature")
-      .parent()
-      .addClass("blink");
-    setTimeout(function() {
-      $("#temperature")
-        .parent()
-        .removeClass("blink");
-    }, 500);
-  } else if (topic[1] == "humidity") {
-    $("#humidity").html(value);
-    $("#humidity")
-      .parent()
-      .addClass("blink");
-    setTimeout(function() {
-      $("#humidity")
-        .parent()
-        .removeClass("blink");
-    }, 500);
-  } else if (topic[1] == "battery") {
-    $("#battery").html(value);
-    $("#battery")
-      .parent()
-      .addClass("blink");
-    setTimeout(function() {
-      $("#battery")
-        .parent()
-        .removeClass("blink");
-    }, 500);
+  if (topic[1] == "frame") {
+    // compact binary frame, see decodeFrame; payloadString throws on binary payloads
+    let records = decodeFrame(message.payloadBytes);
+    for (let i = 0; i < records.length; i++) {
+      showValue(records[i].channel, records[i].value);
+    }
+    firstMessage = true;
+    console.log(`${topic[1]} : ${records.length} records`);
+    return;
+  }
+  let value = message.payloadString;
+  if (topic[1] == "batch") {
+    // one record per line: address,channel,timestampMillis,value
+    let records = value.split("\n");
+    for (let i = 0; i < records.length; i++) {
+      let fields = records[i].split(",");
+      if (fields.length == 4) {
+        showValue(fields[1], fields[3]);
+      }
+    }
+  } else if (topic[1] == "history") {
+    // replay of the recent readings, same lines as node/batch, oldest first per channel
+    if (topic[2] != historyReplyId) {
+      return;
+    }
+    if (topic[3] == "end") {
+      console.log(`history: ${value} samples`);
+      return;
+    }
+    let records = value.split("\n");
+    for (let i = 0; i < records.length; i++) {
+      let fields = records[i].split(",");
+      if (fields.length == 4) {
+        showValue(fields[1], fields[3]);
+      }
+    }
+  } else if (topic[1] == "snapshot") {
+    // retained latest values of one peripheral, same lines as node/batch, arrive on subscribe
+    let records = value.split("\n");
+    for (let i = 0; i < records.length; i++) {
+      let fields = records[i].split(",");
+      if (fields.length == 4) {
+        showValue(fields[1], fields[3]);
+      }
+    }
+  } else if (topic[1] == "presence") {
+    // retained "online" or "offline" of the gateway or of one peripheral
+    setPresence(topic[2], value);
+    return;
+  } else if (topic[1] == "summary") {
+    // one window per line: address,channel,windowEndMillis,count,min,max,mean,last
+    let records = value.split("\n");
+    for (let i = 0; i < records.length; i++) {
+      let fields = records[i].split(",");
+      if (fields.length == 8) {
+        showValue(fields[1], fields[6]);
+      }
+    }
+  } else {
+    showValue(topic[1], value);
   }
   firstMessage = true;
   console.log(`${topic[1]} : ${value}`);
 }
 
+// channels of the binary frame, keyed by the low byte of the SIG assigned number
+const FRAME_CHANNELS = {
+  0x19: { name: "battery", decimals: 0 },
+  0x6e: { name: "temperature", decimals: 2 },
+  0x6f: { name: "humidity", decimals: 2 }
+};
+
+// decode a binary telemetry frame (BinaryFrameCodec in the gateway), all fields big endian:
+// version u8, device id 6 bytes, sequence u16, base timestamp u48 ms, then records of
+// channel u8 (bit 7 = 32 bit value), timestamp offset u16 ms, value i16 or i32
+function decodeFrame(bytes) {
+  let view = new DataView(bytes.buffer, bytes.byteOffset, bytes.byteLength);
+  let records = [];
+  if (bytes.length < 15 || view.getUint8(0) != 1) {
+    return records;
+  }
+  let device = [];
+  for (let i = 1; i < 7; i++) {
+    device.push(("0" + view.getUint8(i).toString(16).toUpperCase()).slice(-2));
+  }
+  let sequence = view.getUint16(7);
+  let base = view.getUint16(9) * 4294967296 + view.getUint32(11);
+  let position = 15;
+  while (position + 5 <= bytes.length) {
+    let channelByte = view.getUint8(position);
+    let wide = (channelByte & 0x80) != 0;
+    if (wide && position + 7 > bytes.length) {
+      break;
+    }
+    let offset = view.getUint16(position + 1);
+    let raw = wide ? view.getInt32(position + 3) : view.getInt16(position + 3);
+    position += wide ? 7 : 5;
+    let channel = FRAME_CHANNELS[channelByte & 0x7f];
+    if (channel) {
+      records.push({
+        device: device.join(":"),
+        sequence: sequence,
+        channel: channel.name,
+        value: (raw / Math.pow(10, channel.decimals)).toFixed(channel.decimals),
+        timestamp: base + offset
+      });
+    }
+  }
+  return records;
+}
+
+// show a value of the temperature, humidity or battery channel
+function showValue(channel, value) {
+  if (channel != "temperature" && channel != "humidity" && channel != "battery") {
+    return;
+  }
+  let element = $("#" + channel);
+  element.html(value);
+  element.parent().addClass("blink");
+  setTimeout(function() {
+    element.parent().removeClass("blink");
+  }, 500);
+}
+
 let firstMessage = false;
+let offlineShown = false;
 
+// retained presence, keyed by "gateway" or the address of a peripheral; the presence of the
+// peripherals only holds while the gateway is online, its last will sets it offline
+let presence = {};
+
+function setPresence(name, state) {
+  presence[name] = state;
+  if (presence.gateway == "offline") {
+    showOffline();
+  } else if (presence.gateway == "online" && name != "gateway" && state == "online") {
+    firstMessage = true;
+    $("#led").bootstrapToggle("enable");
+  }
+}
+
+function showOffline() {
+  if (offlineShown) {
+    return;
+  }
+  offlineShown = true;
+  Swal.fire({
+    icon: "error",
+    title: "Sorry",
+    text: "The sensor is currently offline"
+  });
+}
+
+// fallback for a gateway that publishes no presence yet
 function isSensorActive() {
   setTimeout(function() {
     if (!firstMessage) {
-      Swal.fire({
-        icon: "error",
-        title: "Sorry",
-        text: "The sensor is currently offline"
-      });
+      showOffline();
     } else {
       $("#led").bootstrapToggle("enable");
     }
@@ -0,0 +1,220 @@
+package com.example.androidblegatewaymqttclient;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds everything the gateway knows about one BLE peripheral: the GATT connection, the
+ * characteristics found on it and where it is in the connection life cycle. The values it
+ * reports are kept in the SensorSnapshotStore of the service. Sessions are keyed by MAC address in the PSoCCapSenseLedService.
+ */
+public class BleDeviceSession {
+
+    /**
+     * Connection life cycle of a peripheral
+     */
+    public enum State {
+        DISCOVERED,
+        CONNECTING,
+        CONNECTED,
+        DISCOVERING,
+        READY,
+        DISCONNECTED
+    }
+
+    private final BluetoothDevice device;
+    private final String address;
+    private final GattOperationQueue operationQueue;
+    private volatile State state = State.DISCOVERED;
+    private volatile BluetoothGatt gatt;
+
+    // Bluetooth characteristics found on this peripheral
+    private volatile BluetoothGattCharacteristic batteryCharacteristic;
+    private volatile BluetoothGattCharacteristic temperatureCharacteristic;
+    private volatile BluetoothGattCharacteristic humidityCharacteristic;
+
+    // Variable for keep track of current characteristic and set the topic
+    private volatile String currentService;
+
+    // Characteristics whose Client Characteristic Configuration the peripheral confirmed as on
+    private final Set<UUID> notifying = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+
+    // Counts the samples of this peripheral, null without metrics
+    private volatile MetricsRegistry.Counter sampleMeter;
+
+    // Failed service discoveries on the current connection
+    private volatile int discoveryFailures;
+
+    /**
+     * @param device the peripheral found by the scan
+     * @param handler the handler used to schedule GATT operation timeouts
+     */
+    public BleDeviceSession(BluetoothDevice device, Handler handler) {
+        this.device = device;
+        this.address = device.getAddress();
+        this.operationQueue = new GattOperationQueue(address, handler);
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the queue all GATT reads and writes of this peripheral go through
+     */
+    public GattOperationQueue getOperationQueue() {
+        return operationQueue;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    /**
+     * @return the counter of the samples of this peripheral, or null
+     */
+    public MetricsRegistry.Counter getSampleMeter() {
+        return sampleMeter;
+    }
+
+    void setSampleMeter(MetricsRegistry.Counter sampleMeter) {
+        this.sampleMeter = sampleMeter;
+    }
+
+    /**
+     * @return true while the peripheral holds a GATT connection (connected, discovering or ready)
+     */
+    public boolean isConnected() {
+        State current = state;
+        return current == State.CONNECTED || current == State.DISCOVERING || current == State.READY;
+    }
+
+    /**
+     * @return true while the peripheral uses one of the connection slots of the gateway
+     */
+    public boolean isActive() {
+        return state == State.CONNECTING || isConnected();
+    }
+
+    public BluetoothGatt getGatt() {
+        return gatt;
+    }
+
+    void setGatt(BluetoothGatt gatt) {
+        this.gatt = gatt;
+    }
+
+    public BluetoothGattCharacteristic getBatteryCharacteristic() {
+        return batteryCharacteristic;
+    }
+
+    void setBatteryCharacteristic(BluetoothGattCharacteristic batteryCharacteristic) {
+        this.batteryCharacteristic = batteryCharacteristic;
+    }
+
+    public BluetoothGattCharacteristic getTemperatureCharacteristic() {
+        return temperatureCharacteristic;
+    }
+
+    void setTemperatureCharacteristic(BluetoothGattCharacteristic temperatureCharacteristic) {
+        this.temperatureCharacteristic = temperatureCharacteristic;
+    }
+
+    public BluetoothGattCharacteristic getHumidityCharacteristic() {
+        return humidityCharacteristic;
+    }
+
+    void setHumidityCharacteristic(BluetoothGattCharacteristic humidityCharacteristic) {
+        this.humidityCharacteristic = humidityCharacteristic;
+    }
+
+    /**
+     * @return the sensor characteristics found on this peripheral
+     */
+    public List<BluetoothGattCharacteristic> getCharacteristics() {
+        List<BluetoothGattCharacteristic> characteristics = new ArrayList<>(3);
+        BluetoothGattCharacteristic battery = batteryCharacteristic;
+        BluetoothGattCharacteristic temperature = temperatureCharacteristic;
+        BluetoothGattCharacteristic humidity = humidityCharacteristic;
+        if (battery != null) {
+            characteristics.add(battery);
+        }
+        if (temperature != null) {
+            characteristics.add(temperature);
+        }
+        if (humidity != null) {
+            characteristics.add(humidity);
+        }
+        return characteristics;
+    }
+
+    /**
+     * @return true if the peripheral streams the values of a characteristic
+     */
+    public boolean isNotifying(UUID characteristic) {
+        return notifying.contains(characteristic);
+    }
+
+    /**
+     * @return the number of characteristics the peripheral streams
+     */
+    public int getNotifyingCount() {
+        return notifying.size();
+    }
+
+    void setNotifying(UUID characteristic, boolean enabled) {
+        if (enabled) {
+            notifying.add(characteristic);
+        } else {
+            notifying.remove(characteristic);
+        }
+    }
+
+    /**
+     * Forgets the subscriptions, the peripheral drops them when the connection ends
+     */
+    void clearNotifying() {
+        notifying.clear();
+    }
+
+    /**
+     * Counts a failed service discovery on the current connection
+     *
+     * @return the number of failed discoveries since the peripheral connected
+     */
+    int onDiscoveryFailed() {
+        return ++discoveryFailures;
+    }
+
+    /**
+     * Starts counting failed service discoveries from zero, called when the peripheral connects
+     */
+    void resetDiscoveryFailures() {
+        discoveryFailures = 0;
+    }
+
+    public String getCurrentService() {
+        return currentService;
+    }
+
+    void setCurrentService(String currentService) {
+        this.currentService = currentService;
+    }
+}
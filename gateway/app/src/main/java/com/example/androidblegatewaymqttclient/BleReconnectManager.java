@@ -0,0 +1,274 @@
+package com.example.androidblegatewaymqttclient;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Reconnects the peripherals that drop, each on its own schedule.
+ * <p>
+ * A peripheral is kept once it got ready and is forgotten when the gateway disconnects it on
+ * purpose. When a kept peripheral drops, the next attempt comes after a delay that starts at
+ * {@link #DEFAULT_BASE_DELAY_MS} and doubles with every failed attempt up to
+ * {@link #DEFAULT_MAX_DELAY_MS}. The delay is jittered between half and all of it, so peripherals
+ * that dropped together, for example when the gateway moved, do not all reconnect at once. An
+ * attempt that does not connect within {@link #DEFAULT_ATTEMPT_TIMEOUT_MS} is cancelled and
+ * counts as failed. The backoff starts over once data flows again.
+ * <p>
+ * The time from the drop to the first value after the reconnect is kept as the time to data.
+ * Everything is scheduled on the handler of the service.
+ */
+public class BleReconnectManager {
+    private final static String TAG = BleReconnectManager.class.getSimpleName();
+
+    public final static long DEFAULT_BASE_DELAY_MS = 1000;
+    public final static long DEFAULT_MAX_DELAY_MS = 60000;
+    public final static long DEFAULT_ATTEMPT_TIMEOUT_MS = 15000;
+
+    /**
+     * Starts and cancels the connection attempts
+     */
+    public interface Connector {
+        /**
+         * @return false if the attempt could not be started
+         */
+        boolean reconnect(String address);
+
+        /**
+         * Gives up an attempt that did not connect in time
+         */
+        void cancel(String address);
+    }
+
+    private final Handler handler;
+    private final Connector connector;
+    private final Random random = new Random();
+    private final Map<String, Link> links = new HashMap<>();
+    private volatile long baseDelayMs = DEFAULT_BASE_DELAY_MS;
+    private volatile long maxDelayMs = DEFAULT_MAX_DELAY_MS;
+    private volatile long attemptTimeoutMs = DEFAULT_ATTEMPT_TIMEOUT_MS;
+    // Links dropped and waiting for their first value, so onData stays cheap when none is
+    private volatile int awaitingData;
+
+    // Counters, see toString
+    private long drops;
+    private long attempts;
+    private long failures;
+    private long recoveries;
+    private long totalTimeToDataMs;
+    private long maxTimeToDataMs;
+
+    /**
+     * @param handler the handler the attempts are scheduled on
+     * @param connector starts the attempts
+     */
+    public BleReconnectManager(Handler handler, Connector connector) {
+        this.handler = handler;
+        this.connector = connector;
+    }
+
+    /**
+     * @param baseDelayMs the delay before the first attempt
+     * @param maxDelayMs the longest delay between two attempts
+     * @param attemptTimeoutMs how long an attempt may take to connect
+     */
+    public synchronized void setTiming(long baseDelayMs, long maxDelayMs, long attemptTimeoutMs) {
+        if (baseDelayMs <= 0 || maxDelayMs < baseDelayMs || attemptTimeoutMs <= 0) {
+            throw new IllegalArgumentException("Invalid reconnect timing");
+        }
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.attemptTimeoutMs = attemptTimeoutMs;
+    }
+
+    /**
+     * Keeps a peripheral, called when it got ready. Reconnects it from now on when it drops.
+     */
+    public synchronized void keep(String address) {
+        if (!links.containsKey(address)) {
+            links.put(address, new Link(address));
+        }
+    }
+
+    /**
+     * Stops reconnecting a peripheral, called when it is disconnected on purpose
+     */
+    public synchronized void forget(String address) {
+        Link link = links.remove(address);
+        if (link != null) {
+            link.cancelTimers();
+            if (link.droppedAt >= 0) {
+                awaitingData--;
+            }
+        }
+    }
+
+    /**
+     * Stops reconnecting all peripherals
+     */
+    public synchronized void forgetAll() {
+        for (Link link : links.values()) {
+            link.cancelTimers();
+        }
+        links.clear();
+        awaitingData = 0;
+    }
+
+    /**
+     * @return true if the peripheral is reconnected when it drops
+     */
+    public synchronized boolean isKept(String address) {
+        return links.containsKey(address);
+    }
+
+    /**
+     * Called when a peripheral connected, the attempt is done
+     */
+    public synchronized void onConnected(String address) {
+        Link link = links.get(address);
+        if (link != null) {
+            link.cancelTimers();
+        }
+    }
+
+    /**
+     * Called when a peripheral disconnected or an attempt to connect it failed. Kept peripherals
+     * get their next attempt scheduled.
+     */
+    public synchronized void onDisconnected(String address) {
+        Link link = links.get(address);
+        if (link == null) {
+            return;
+        }
+        link.cancelTimers();
+        if (link.droppedAt < 0) {
+            link.droppedAt = SystemClock.elapsedRealtime();
+            awaitingData++;
+            drops++;
+            Log.i(TAG, address + " dropped, reconnecting");
+        } else {
+            failures++;
+        }
+        schedule(link);
+    }
+
+    /**
+     * Called for every value of a peripheral, the first one after a drop ends the recovery
+     */
+    public void onData(String address) {
+        if (awaitingData == 0) {
+            return;
+        }
+        synchronized (this) {
+            Link link = links.get(address);
+            if (link == null || link.droppedAt < 0) {
+                return;
+            }
+            long elapsed = SystemClock.elapsedRealtime() - link.droppedAt;
+            link.droppedAt = -1;
+            link.attempt = 0;
+            awaitingData--;
+            recoveries++;
+            totalTimeToDataMs += elapsed;
+            maxTimeToDataMs = Math.max(maxTimeToDataMs, elapsed);
+            Log.i(TAG, address + " back after " + elapsed + " ms");
+        }
+    }
+
+    private void schedule(Link link) {
+        long delay = Math.min(maxDelayMs, baseDelayMs << Math.min(link.attempt, 30));
+        // Somewhere between half and all of the delay
+        delay = delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+        link.attempt++;
+        handler.postDelayed(link.attemptRunnable, delay);
+    }
+
+    private synchronized void attempt(Link link) {
+        if (links.get(link.address) != link) {
+            return;
+        }
+        attempts++;
+        if (connector.reconnect(link.address)) {
+            handler.postDelayed(link.timeout, attemptTimeoutMs);
+        } else {
+            failures++;
+            schedule(link);
+        }
+    }
+
+    private void timeout(Link link) {
+        synchronized (this) {
+            if (links.get(link.address) != link) {
+                return;
+            }
+        }
+        Log.w(TAG, "Reconnect of " + link.address + " timed out");
+        // The disconnect that follows schedules the next attempt, the connector may also call
+        // onDisconnected itself when there is no callback
+        connector.cancel(link.address);
+    }
+
+    /**
+     * @return the mean time from a drop to the first value after the reconnect, in milliseconds
+     */
+    public synchronized long getMeanTimeToDataMs() {
+        return recoveries == 0 ? 0 : totalTimeToDataMs / recoveries;
+    }
+
+    public synchronized long getMaxTimeToDataMs() {
+        return maxTimeToDataMs;
+    }
+
+    public synchronized long getDropCount() {
+        return drops;
+    }
+
+    public synchronized long getRecoveryCount() {
+        return recoveries;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return links.size() + " kept, " + drops + " drops, " + attempts + " attempts, " + failures
+                + " failed, " + recoveries + " recovered, time to data " + getMeanTimeToDataMs()
+                + " ms mean, " + maxTimeToDataMs + " ms max";
+    }
+
+    /**
+     * The reconnect state of one peripheral
+     */
+    private final class Link {
+        final String address;
+        // Attempts since the last recovery
+        int attempt;
+        // When the link dropped, -1 while data flows
+        long droppedAt = -1;
+
+        final Runnable attemptRunnable = new Runnable() {
+            @Override
+            public void run() {
+                attempt(Link.this);
+            }
+        };
+
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                timeout(Link.this);
+            }
+        };
+
+        Link(String address) {
+            this.address = address;
+        }
+
+        void cancelTimers() {
+            handler.removeCallbacks(attemptRunnable);
+            handler.removeCallbacks(timeout);
+        }
+    }
+}
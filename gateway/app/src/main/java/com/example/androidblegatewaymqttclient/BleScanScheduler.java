@@ -0,0 +1,386 @@
+package com.example.androidblegatewaymqttclient;
+
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides when the radio scans and how hard, and keeps a table of the peripherals it found with
+ * their smoothed RSSI and when they were last seen.
+ * <p>
+ * While fewer peripherals are connected than expected the scan runs in
+ * {@link ScanSettings#SCAN_MODE_LOW_LATENCY} for {@link #DEFAULT_SEARCH_WINDOW_MS} after the search
+ * started, a peripheral was found or one disconnected. When nothing new turns up in that window
+ * the scan is duty cycled: {@link ScanSettings#SCAN_MODE_LOW_POWER} for
+ * {@link #DEFAULT_DUTY_WINDOW_MS} of every {@link #DEFAULT_DUTY_PERIOD_MS}. Once all expected
+ * peripherals are connected the scan only listens in
+ * {@link ScanSettings#SCAN_MODE_OPPORTUNISTIC}, to the results of the scans of other apps, or stops
+ * where that mode does not exist. Android refuses more than five scan starts in 30 seconds, the
+ * mode only changes a few times per period.
+ * <p>
+ * The duty cycle of the radio is estimated from the time spent in every mode, weighted with the
+ * scan window over the scan interval Android uses for it.
+ */
+public class BleScanScheduler {
+    private final static String TAG = BleScanScheduler.class.getSimpleName();
+
+    public final static long DEFAULT_SEARCH_WINDOW_MS = 30000;
+    public final static long DEFAULT_DUTY_WINDOW_MS = 5000;
+    public final static long DEFAULT_DUTY_PERIOD_MS = 30000;
+    // A peripheral not seen for this long is ranked behind all the others
+    public final static long STALE_MS = 60000;
+
+    // Weight of a new RSSI reading in the smoothed value
+    private final static double RSSI_WEIGHT = 0.25;
+    private final static int MODE_OFF = Integer.MIN_VALUE;
+    // Scan window over scan interval of every mode, indexed by mode + 1
+    private final static double[] RADIO_SHARE = {0.0, 512.0 / 5120, 1024.0 / 4096, 4096.0 / 4096};
+
+    /**
+     * Starts and stops the scan of the radio
+     */
+    public interface Radio {
+        /**
+         * @param scanMode one of the SCAN_MODE constants of ScanSettings
+         */
+        void startScan(int scanMode);
+
+        void stopScan();
+    }
+
+    private final Handler handler;
+    private final Radio radio;
+    private final boolean opportunistic;
+    private final Map<String, Candidate> candidates = new HashMap<>();
+    private volatile long searchWindowMs = DEFAULT_SEARCH_WINDOW_MS;
+    private volatile long dutyWindowMs = DEFAULT_DUTY_WINDOW_MS;
+    private volatile long dutyPeriodMs = DEFAULT_DUTY_PERIOD_MS;
+    private int expected = 1;
+    private int connected;
+    private boolean running;
+    private int mode = MODE_OFF;
+    private long modeSince;
+    // When the current search started and when it last made progress
+    private int searches;
+    private long searchSince;
+    private long progressSince;
+    private long scheduledAt = Long.MAX_VALUE;
+
+    // Counters, see toString
+    private long startedAt = -1;
+    private final long[] modeMillis = new long[RADIO_SHARE.length];
+    private long scanStarts;
+    private long discoveries;
+    private long discoverMillis;
+    private long maxDiscoverMillis;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BleScanScheduler.this) {
+                scheduledAt = Long.MAX_VALUE;
+                update();
+            }
+        }
+    };
+
+    private final Comparator<Candidate> strongestFirst = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            long now = SystemClock.elapsedRealtime();
+            boolean aStale = now - a.lastSeenMillis > STALE_MS;
+            boolean bStale = now - b.lastSeenMillis > STALE_MS;
+            if (aStale != bStale) {
+                return aStale ? 1 : -1;
+            }
+            return Double.compare(b.rssi, a.rssi);
+        }
+    };
+
+    /**
+     * @param handler the handler the mode changes are scheduled on
+     * @param radio starts and stops the scan
+     * @param opportunistic true when the platform has SCAN_MODE_OPPORTUNISTIC
+     */
+    public BleScanScheduler(Handler handler, Radio radio, boolean opportunistic) {
+        this.handler = handler;
+        this.radio = radio;
+        this.opportunistic = opportunistic;
+    }
+
+    /**
+     * @param searchWindowMs how long the scan stays in low latency after progress
+     * @param dutyWindowMs how long a low power scan runs once the search backed off
+     * @param dutyPeriodMs the time from the start of one low power scan to the next
+     */
+    public synchronized void setTiming(long searchWindowMs, long dutyWindowMs, long dutyPeriodMs) {
+        if (searchWindowMs < 0 || dutyWindowMs <= 0 || dutyPeriodMs < dutyWindowMs) {
+            throw new IllegalArgumentException("Invalid scan timing");
+        }
+        this.searchWindowMs = searchWindowMs;
+        this.dutyWindowMs = dutyWindowMs;
+        this.dutyPeriodMs = dutyPeriodMs;
+        update();
+    }
+
+    /**
+     * @param expected how many peripherals have to be connected before the scan backs off
+     */
+    public synchronized void setExpectedCount(int expected) {
+        if (expected < 1) {
+            throw new IllegalArgumentException("expected must be at least 1");
+        }
+        int missing = this.expected - connected;
+        this.expected = expected;
+        onMissing(missing);
+    }
+
+    /**
+     * Starts scanning, in low latency while peripherals are missing
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        if (startedAt < 0) {
+            startedAt = SystemClock.elapsedRealtime();
+        }
+        startSearch(SystemClock.elapsedRealtime());
+        update();
+    }
+
+    /**
+     * Stops scanning, the table of peripherals is kept
+     */
+    public synchronized void stop() {
+        running = false;
+        update();
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Tells the scheduler how many peripherals are connected. A peripheral that disconnects
+     * brings the scan back to low latency.
+     */
+    public synchronized void onConnectedCount(int connected) {
+        int missing = expected - this.connected;
+        this.connected = connected;
+        onMissing(missing);
+    }
+
+    /**
+     * Records a scan result.
+     *
+     * @param address MAC address of the peripheral
+     * @param rssi the signal strength of the advertisement in dBm
+     */
+    public synchronized void onResult(String address, int rssi) {
+        long now = SystemClock.elapsedRealtime();
+        Candidate candidate = candidates.get(address);
+        if (candidate == null) {
+            candidate = new Candidate(address, rssi);
+            candidates.put(address, candidate);
+        } else {
+            candidate.rssi += RSSI_WEIGHT * (rssi - candidate.rssi);
+        }
+        candidate.lastSeenMillis = now;
+        if (candidate.search != searches && running && connected < expected) {
+            // First time seen in this search
+            candidate.search = searches;
+            long elapsed = now - searchSince;
+            discoveries++;
+            discoverMillis += elapsed;
+            maxDiscoverMillis = Math.max(maxDiscoverMillis, elapsed);
+            progressSince = now;
+            update();
+        }
+    }
+
+    /**
+     * @return the addresses of the peripherals found, the strongest first and the ones not seen
+     * for {@link #STALE_MS} last
+     */
+    public synchronized List<String> getCandidates() {
+        List<Candidate> sorted = new ArrayList<>(candidates.values());
+        Collections.sort(sorted, strongestFirst);
+        List<String> addresses = new ArrayList<>(sorted.size());
+        for (Candidate candidate : sorted) {
+            addresses.add(candidate.address);
+        }
+        return addresses;
+    }
+
+    /**
+     * @return the smoothed RSSI of a peripheral in dBm, 0 if it was never seen
+     */
+    public synchronized int getRssi(String address) {
+        Candidate candidate = candidates.get(address);
+        return candidate == null ? 0 : (int) Math.round(candidate.rssi);
+    }
+
+    /**
+     * @return milliseconds since a peripheral was last seen, -1 if it was never seen
+     */
+    public synchronized long getLastSeenAgeMs(String address) {
+        Candidate candidate = candidates.get(address);
+        return candidate == null ? -1 : SystemClock.elapsedRealtime() - candidate.lastSeenMillis;
+    }
+
+    private void onMissing(int missingBefore) {
+        if (running && expected - connected > Math.max(0, missingBefore)) {
+            // More missing than before, search hard again
+            if (missingBefore <= 0) {
+                startSearch(SystemClock.elapsedRealtime());
+            } else {
+                progressSince = SystemClock.elapsedRealtime();
+            }
+        }
+        update();
+    }
+
+    private void startSearch(long now) {
+        searches++;
+        searchSince = now;
+        progressSince = now;
+    }
+
+    /**
+     * Puts the radio in the mode for the current state and schedules the next change
+     */
+    private void update() {
+        long now = SystemClock.elapsedRealtime();
+        int target;
+        long next = Long.MAX_VALUE;
+        if (!running) {
+            target = MODE_OFF;
+        } else if (connected >= expected) {
+            target = opportunistic ? ScanSettings.SCAN_MODE_OPPORTUNISTIC : MODE_OFF;
+        } else if (now - progressSince < searchWindowMs) {
+            target = ScanSettings.SCAN_MODE_LOW_LATENCY;
+            next = progressSince + searchWindowMs;
+        } else {
+            long phase = (now - progressSince - searchWindowMs) % dutyPeriodMs;
+            if (phase < dutyWindowMs) {
+                target = ScanSettings.SCAN_MODE_LOW_POWER;
+                next = now + dutyWindowMs - phase;
+            } else {
+                target = MODE_OFF;
+                next = now + dutyPeriodMs - phase;
+            }
+        }
+        setMode(target, now);
+        if (next != scheduledAt) {
+            handler.removeCallbacks(tick);
+            scheduledAt = next;
+            if (next != Long.MAX_VALUE) {
+                handler.postDelayed(tick, Math.max(0, next - now));
+            }
+        }
+    }
+
+    private void setMode(int target, long now) {
+        if (target == mode) {
+            return;
+        }
+        if (mode != MODE_OFF) {
+            modeMillis[mode + 1] += now - modeSince;
+            radio.stopScan();
+        }
+        mode = target;
+        modeSince = now;
+        if (mode != MODE_OFF) {
+            radio.startScan(mode);
+            scanStarts++;
+        }
+        Log.d(TAG, "Scan mode " + modeName(mode) + ", " + connected + " of " + expected + " connected");
+    }
+
+    /**
+     * @return the estimated share of the time the radio spent scanning since the first start
+     */
+    public synchronized double getDutyCycle() {
+        if (startedAt < 0) {
+            return 0;
+        }
+        long now = SystemClock.elapsedRealtime();
+        double busy = 0;
+        for (int i = 0; i < modeMillis.length; i++) {
+            long millis = modeMillis[i];
+            if (mode != MODE_OFF && i == mode + 1) {
+                millis += now - modeSince;
+            }
+            busy += millis * RADIO_SHARE[i];
+        }
+        long elapsed = now - startedAt;
+        return elapsed <= 0 ? 0 : busy / elapsed;
+    }
+
+    /**
+     * @return the mean time from the start of a search to finding a peripheral, in milliseconds
+     */
+    public synchronized long getMeanTimeToDiscoverMs() {
+        return discoveries == 0 ? 0 : discoverMillis / discoveries;
+    }
+
+    public synchronized long getMaxTimeToDiscoverMs() {
+        return maxDiscoverMillis;
+    }
+
+    public synchronized long getDiscoveryCount() {
+        return discoveries;
+    }
+
+    public synchronized int getCandidateCount() {
+        return candidates.size();
+    }
+
+    private static String modeName(int mode) {
+        switch (mode) {
+            case ScanSettings.SCAN_MODE_OPPORTUNISTIC:
+                return "opportunistic";
+            case ScanSettings.SCAN_MODE_LOW_POWER:
+                return "low power";
+            case ScanSettings.SCAN_MODE_BALANCED:
+                return "balanced";
+            case ScanSettings.SCAN_MODE_LOW_LATENCY:
+                return "low latency";
+            default:
+                return "off";
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return candidates.size() + " found, " + modeName(mode) + ", " + scanStarts + " scan starts, "
+                + String.format("%.1f%% radio duty cycle", getDutyCycle() * 100) + ", " + discoveries
+                + " discoveries (" + getMeanTimeToDiscoverMs() + " ms mean, " + maxDiscoverMillis + " ms max)";
+    }
+
+    /**
+     * One peripheral seen by the scan
+     */
+    private static final class Candidate {
+        final String address;
+        double rssi;
+        long lastSeenMillis;
+        // Search the peripheral was last found in
+        int search;
+
+        Candidate(String address, int rssi) {
+            this.address = address;
+            this.rssi = rssi;
+        }
+    }
+}
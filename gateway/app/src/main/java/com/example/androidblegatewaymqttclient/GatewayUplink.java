@@ -0,0 +1,203 @@
+package com.example.androidblegatewaymqttclient;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MQTT side of the gateway: the client and the stages that take the samples of the event bus
+ * to the broker. It lives in the PSoCCapSenseLedService next to the BLE sessions, so publishing
+ * goes on whether or not there is an activity.
+ */
+public class GatewayUplink {
+    private final static String TAG = GatewayUplink.class.getSimpleName();
+
+    // Time stop waits for each stage to publish what it still holds, it runs on the main thread
+    private static final long STAGE_STOP_TIMEOUT_MS = 1000;
+
+    // Send samples in batches on node/batch instead of one message per sample
+    private static final boolean BATCH_PUBLISHING = true;
+
+    // Encoding of the published samples, BINARY sends compact frames on node/frame
+    private static final MqttPublisher.PayloadFormat PAYLOAD_FORMAT = MqttPublisher.PayloadFormat.TEXT;
+
+    // Only publish samples that changed more than the deadband, plus a heartbeat every minute
+    private static final boolean DEADBAND_FILTER = true;
+
+    // Publish every sample that passes the filter on the node/... topics
+    private static final boolean RAW_FORWARDING = true;
+
+    // Publish min/max/mean/last/count of every window on node/summary, next to or instead of raw forwarding
+    private static final boolean WINDOW_AGGREGATION = false;
+    private static final long WINDOW_PERIOD_MS = WindowAggregator.DEFAULT_PERIOD_MS;
+    private static final int WINDOW_PANES = 1;
+
+    // Keep the latest values and the presence of every peripheral in retained messages on
+    // node/snapshot/... and node/presence/..., so a new dashboard renders on subscribe
+    private static final boolean RETAINED_STATE = true;
+
+    // Publish the metrics of the gateway on gateway/stats
+    private static final boolean STATS_EXPORT = true;
+
+    private final MqttHelper mqttHelper;
+    private final MqttPublisher mqttPublisher;
+    private StatsPublisher statsPublisher;
+    private WindowAggregator windowAggregator;
+    private RetainedStatePublisher retainedStatePublisher;
+    // Answers the history requests of dashboards on sensor/history from the recent readings
+    private volatile HistoryReplay historyReplay;
+
+    /**
+     * Creates the client, which starts connecting right away.
+     *
+     * @param context the application context
+     * @param timeline the timeline the MQTT phases of the bring-up are marked on
+     * @param metrics the registry the uplink records in and publishes
+     */
+    public GatewayUplink(Context context, StartupTimeline timeline, MetricsRegistry metrics) {
+        mqttHelper = new MqttHelper(context);
+        mqttHelper.setStartupTimeline(timeline);
+        mqttHelper.setMetrics(metrics);
+        mqttPublisher = new MqttPublisher(mqttHelper);
+        mqttPublisher.setMetrics(metrics);
+        mqttPublisher.setPayloadFormat(PAYLOAD_FORMAT);
+        if (DEADBAND_FILTER) {
+            mqttPublisher.setFilter(DeadbandFilter.withDefaults());
+        }
+        if (WINDOW_AGGREGATION) {
+            windowAggregator = new WindowAggregator(mqttHelper, WINDOW_PERIOD_MS, WINDOW_PANES);
+        }
+        if (RETAINED_STATE) {
+            retainedStatePublisher = new RetainedStatePublisher(mqttHelper, RetainedStatePublisher.DEFAULT_INTERVAL_MS);
+        }
+        if (STATS_EXPORT) {
+            statsPublisher = new StatsPublisher(mqttHelper, metrics, StatsPublisher.DEFAULT_INTERVAL_MS);
+        }
+        if (BATCH_PUBLISHING) {
+            mqttPublisher.setBatching(MqttPublisher.DEFAULT_LINGER_MS, MqttPublisher.DEFAULT_BATCH_SAMPLES, MqttPublisher.DEFAULT_BATCH_BYTES);
+        }
+        mqttHelper.setCallback(new MqttCallbackExtended() {
+            @Override
+            public void connectComplete(boolean b, String s) {
+
+            }
+
+            @Override
+            public void connectionLost(Throwable throwable) {
+
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage mqttMessage) throws Exception {
+                Log.w("Debug", mqttMessage.toString());
+                HistoryReplay replay = historyReplay;
+                if (replay != null && HistoryReplay.REQUEST_TOPIC.equals(topic)
+                        && !replay.onMessage(topic, new String(mqttMessage.getPayload(), "UTF-8"))) {
+                    Log.w(TAG, "History request rejected: " + mqttMessage);
+                }
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+
+            }
+        });
+    }
+
+    /**
+     * Starts taking the samples of the service to the broker.
+     *
+     * @param service the service with the event bus, the history and the presence of the peripherals
+     */
+    public void start(PSoCCapSenseLedService service) {
+        // The samples go to MQTT on the worker thread of the publisher
+        if (RAW_FORWARDING) {
+            mqttPublisher.start(service.getEventBus(), MqttPublisher.DEFAULT_QUEUE_CAPACITY);
+        }
+        if (windowAggregator != null) {
+            windowAggregator.start(service.getEventBus(), WindowAggregator.DEFAULT_QUEUE_CAPACITY);
+        }
+        if (retainedStatePublisher != null) {
+            retainedStatePublisher.start(service.getEventBus(), RetainedStatePublisher.DEFAULT_QUEUE_CAPACITY);
+            service.setPresenceListener(retainedStatePublisher);
+        }
+        historyReplay = new HistoryReplay(mqttHelper, service.getHistory());
+        if (statsPublisher != null) {
+            statsPublisher.start();
+        }
+    }
+
+    /**
+     * Stops all stages, waits until they published their last messages and closes the client,
+     * which marks the gateway offline.
+     *
+     * @param service the service the uplink was started with
+     */
+    public void stop(PSoCCapSenseLedService service) {
+        Log.i(TAG, "Publisher stopped after " + mqttPublisher.getPublishedCount() + " messages, "
+                + mqttPublisher.getDroppedCount() + " samples dropped, filter " + mqttPublisher.getFilter());
+        mqttPublisher.stop();
+        if (windowAggregator != null) {
+            windowAggregator.stop();
+        }
+        if (retainedStatePublisher != null) {
+            // Closing the helper marks the gateway, and with it every peripheral, offline
+            service.setPresenceListener(null);
+            retainedStatePublisher.stop();
+        }
+        if (statsPublisher != null) {
+            // Queues a last export, like the snapshots of the retained state
+            statsPublisher.stop();
+        }
+        HistoryReplay replay = historyReplay;
+        if (replay != null) {
+            Log.i(TAG, "History replay answered " + replay.getRequestCount() + " requests with "
+                    + replay.getReplayedCount() + " samples");
+            replay.stop();
+        }
+        // The stages stopped together, their last batches go out before the helper closes
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STAGE_STOP_TIMEOUT_MS);
+            awaitStage("publisher", mqttPublisher.awaitStopped(remainingNanos(deadline), TimeUnit.NANOSECONDS));
+            if (windowAggregator != null) {
+                awaitStage("aggregator", windowAggregator.awaitStopped(remainingNanos(deadline), TimeUnit.NANOSECONDS));
+            }
+            if (retainedStatePublisher != null) {
+                // Its last snapshots go out before the offline presence the helper sends on close
+                awaitStage("retained state", retainedStatePublisher.awaitStopped(remainingNanos(deadline), TimeUnit.NANOSECONDS));
+            }
+            if (statsPublisher != null) {
+                awaitStage("stats", statsPublisher.awaitStopped(remainingNanos(deadline), TimeUnit.NANOSECONDS));
+            }
+            if (replay != null) {
+                awaitStage("history replay", replay.awaitStopped(remainingNanos(deadline), TimeUnit.NANOSECONDS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mqttHelper.close();
+    }
+
+    private static long remainingNanos(long deadline) {
+        return Math.max(deadline - System.nanoTime(), 0);
+    }
+
+    private static void awaitStage(String name, boolean stopped) {
+        if (!stopped) {
+            Log.w(TAG, "The " + name + " stage did not stop within " + STAGE_STOP_TIMEOUT_MS + " ms");
+        }
+    }
+
+    public MqttHelper getMqttHelper() {
+        return mqttHelper;
+    }
+
+    public MqttPublisher getPublisher() {
+        return mqttPublisher;
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.androidblegatewaymqttclient;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import java.util.Arrays;
+
+/**
+ * One GATT request waiting in a GattOperationQueue: a characteristic read, a characteristic
+ * write, a descriptor write or a notification subscription.
+ */
+public class GattOperation {
+
+    public enum Type {
+        READ,
+        WRITE,
+        DESCRIPTOR_WRITE,
+        SET_NOTIFICATION
+    }
+
+    private final Type type;
+    private final BluetoothGattCharacteristic characteristic;
+    private final BluetoothGattDescriptor descriptor;
+    private final byte[] value;
+
+    // Bookkeeping done by the queue
+    int attempts;
+    long enqueuedAtNanos;
+    long startedAtNanos;
+
+    private GattOperation(Type type, BluetoothGattCharacteristic characteristic,
+                          BluetoothGattDescriptor descriptor, byte[] value) {
+        this.type = type;
+        this.characteristic = characteristic;
+        this.descriptor = descriptor;
+        this.value = value;
+    }
+
+    /**
+     * @param characteristic the characteristic to read
+     * @return an operation that reads the characteristic
+     */
+    public static GattOperation read(BluetoothGattCharacteristic characteristic) {
+        return new GattOperation(Type.READ, characteristic, null, null);
+    }
+
+    /**
+     * @param characteristic the characteristic to write
+     * @param value the bytes written to the characteristic
+     * @return an operation that writes the characteristic
+     */
+    public static GattOperation write(BluetoothGattCharacteristic characteristic, byte[] value) {
+        return new GattOperation(Type.WRITE, characteristic, null, value);
+    }
+
+    /**
+     * @param descriptor the descriptor to write, for example a Client Characteristic Configuration
+     * @param value the bytes written to the descriptor
+     * @return an operation that writes the descriptor
+     */
+    public static GattOperation writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+        return new GattOperation(Type.DESCRIPTOR_WRITE, null, descriptor, value);
+    }
+
+    /**
+     * Subscribes to or unsubscribes from the value changes of a characteristic: turns the local
+     * routing of the notifications on or off and writes the Client Characteristic Configuration
+     * descriptor of the peripheral. Notifications are used when the characteristic supports
+     * them, indications otherwise.
+     *
+     * @param characteristic the characteristic
+     * @param configuration its Client Characteristic Configuration descriptor
+     * @param enable true to subscribe, false to unsubscribe
+     * @return an operation that changes the subscription, completed by the descriptor write
+     */
+    public static GattOperation setNotification(BluetoothGattCharacteristic characteristic,
+                                                BluetoothGattDescriptor configuration, boolean enable) {
+        byte[] value;
+        if (!enable) {
+            value = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        } else if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+            value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        } else {
+            value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        }
+        return new GattOperation(Type.SET_NOTIFICATION, characteristic, configuration, value);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return characteristic;
+    }
+
+    public BluetoothGattDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * Hands the operation to the Android GATT stack.
+     *
+     * @param gatt the connection to run the operation on
+     * @return true if the stack accepted the request, its result comes back through a callback
+     */
+    boolean execute(BluetoothGatt gatt) {
+        switch (type) {
+            case READ:
+                return gatt.readCharacteristic(characteristic);
+            case WRITE:
+                characteristic.setValue(value);
+                return gatt.writeCharacteristic(characteristic);
+            case DESCRIPTOR_WRITE:
+                descriptor.setValue(value);
+                return gatt.writeDescriptor(descriptor);
+            case SET_NOTIFICATION:
+                if (!gatt.setCharacteristicNotification(characteristic,
+                        !Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE))) {
+                    return false;
+                }
+                descriptor.setValue(value);
+                return gatt.writeDescriptor(descriptor);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param target the characteristic or descriptor a GATT callback reported on
+     * @return true if the callback completes this operation
+     */
+    boolean isCompletedBy(Object target) {
+        return target == characteristic || target == descriptor;
+    }
+
+    @Override
+    public String toString() {
+        Object target = characteristic != null ? characteristic.getUuid() : descriptor.getUuid();
+        return type + " " + target;
+    }
+}
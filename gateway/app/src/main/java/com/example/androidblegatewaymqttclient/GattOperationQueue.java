@@ -0,0 +1,260 @@
+package com.example.androidblegatewaymqttclient;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Serializes the GATT operations of one connection.
+ * <p>
+ * Android only allows one outstanding GATT operation per connection, a second request made
+ * before the callback of the first one is silently dropped. Every read and write therefore goes
+ * through this queue: the next operation is issued as soon as the callback of the previous one
+ * arrives. Each peripheral has its own queue, so different connections run in parallel.
+ * <p>
+ * An operation that gets no callback within the timeout is retried, and dropped after the
+ * maximum number of retries so that one lost callback cannot stall the connection. The stack
+ * rejects new requests while it still waits on the lost transaction, so an operation it rejects
+ * stays at the head of the queue and is issued again after a short delay, within the same retry
+ * budget, instead of failing every operation behind it.
+ */
+public class GattOperationQueue {
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+
+    public final static long DEFAULT_TIMEOUT_MS = 3000;
+    public final static int DEFAULT_MAX_RETRIES = 2;
+    public final static long DEFAULT_RETRY_DELAY_MS = 200;
+
+    private final String address;
+    private final Handler handler;
+    private final ArrayDeque<GattOperation> pending = new ArrayDeque<>();
+    private volatile long timeoutMs = DEFAULT_TIMEOUT_MS;
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+    private volatile long retryDelayMs = DEFAULT_RETRY_DELAY_MS;
+
+    private BluetoothGatt gatt;
+    private GattOperation current;
+    // true while the operation at the head waits for its retry after the stack rejected it
+    private boolean retryPending;
+
+    // Counters to see how close the link is to saturation
+    private int maxDepth;
+    private long completed;
+    private long failed;
+    private long timeouts;
+    private long retries;
+    private long measured;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+    private long totalExecutionNanos;
+
+    private final Runnable timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    private final Runnable retryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onRetry();
+        }
+    };
+
+    /**
+     * @param address MAC address of the peripheral, used for logging
+     * @param handler the handler used to schedule operation timeouts
+     */
+    public GattOperationQueue(String address, Handler handler) {
+        this.address = address;
+        this.handler = handler;
+    }
+
+    public void setTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param retryDelayMs how long an operation the GATT stack rejected waits before it is issued
+     *                     again
+     */
+    public void setRetryDelayMs(long retryDelayMs) {
+        this.retryDelayMs = retryDelayMs;
+    }
+
+    /**
+     * Sets the connection the operations run on. Operations queued while there is no connection
+     * wait until one is attached.
+     *
+     * @param gatt the GATT connection, or null when the peripheral disconnected
+     */
+    public synchronized void attach(BluetoothGatt gatt) {
+        this.gatt = gatt;
+        if (gatt == null) {
+            clear();
+        } else {
+            next();
+        }
+    }
+
+    /**
+     * Adds an operation to the queue and issues it right away if the connection is idle.
+     *
+     * @param operation the operation to run
+     */
+    public synchronized void enqueue(GattOperation operation) {
+        operation.enqueuedAtNanos = System.nanoTime();
+        pending.add(operation);
+        int depth = getDepth();
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        next();
+    }
+
+    /**
+     * Called from the GATT callbacks when a read or write finished.
+     *
+     * @param target the characteristic or descriptor the callback reported on
+     * @param status the status of the transaction
+     */
+    public synchronized void onOperationComplete(Object target, int status) {
+        if (current == null || !current.isCompletedBy(target)) {
+            return;
+        }
+        handler.removeCallbacks(timeoutRunnable);
+        long now = System.nanoTime();
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            completed++;
+        } else {
+            failed++;
+            Log.w(TAG, current + " on " + address + " failed with status " + status);
+        }
+        long latency = now - current.enqueuedAtNanos;
+        measured++;
+        totalLatencyNanos += latency;
+        totalExecutionNanos += now - current.startedAtNanos;
+        if (latency > maxLatencyNanos) {
+            maxLatencyNanos = latency;
+        }
+        current = null;
+        next();
+    }
+
+    /**
+     * Drops all queued operations, used when the connection goes away.
+     */
+    public synchronized void clear() {
+        handler.removeCallbacks(timeoutRunnable);
+        handler.removeCallbacks(retryRunnable);
+        pending.clear();
+        current = null;
+        retryPending = false;
+    }
+
+    private synchronized void onTimeout() {
+        if (current == null) {
+            return;
+        }
+        timeouts++;
+        if (current.attempts <= maxRetries) {
+            retries++;
+            Log.w(TAG, current + " on " + address + " timed out, retrying");
+            pending.addFirst(current);
+        } else {
+            failed++;
+            Log.w(TAG, current + " on " + address + " timed out, giving up");
+        }
+        current = null;
+        next();
+    }
+
+    private synchronized void onRetry() {
+        retryPending = false;
+        next();
+    }
+
+    /**
+     * Issues the next queued operation if the connection is idle.
+     */
+    private void next() {
+        while (current == null && !retryPending && gatt != null && !pending.isEmpty()) {
+            GattOperation operation = pending.poll();
+            operation.attempts++;
+            operation.startedAtNanos = System.nanoTime();
+            if (operation.execute(gatt)) {
+                current = operation;
+                handler.postDelayed(timeoutRunnable, timeoutMs);
+            } else if (operation.attempts <= maxRetries) {
+                retries++;
+                Log.w(TAG, operation + " on " + address + " was rejected by the GATT stack, retrying");
+                pending.addFirst(operation);
+                retryPending = true;
+                handler.postDelayed(retryRunnable, retryDelayMs);
+            } else {
+                failed++;
+                Log.w(TAG, operation + " on " + address + " was rejected by the GATT stack, giving up");
+            }
+        }
+    }
+
+    /**
+     * @return the number of operations queued, including the one in flight
+     */
+    public synchronized int getDepth() {
+        return pending.size() + (current == null ? 0 : 1);
+    }
+
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public synchronized long getCompletedCount() {
+        return completed;
+    }
+
+    public synchronized long getFailedCount() {
+        return failed;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return timeouts;
+    }
+
+    public synchronized long getRetryCount() {
+        return retries;
+    }
+
+    /**
+     * @return the mean time from enqueue to callback in milliseconds, queueing included
+     */
+    public synchronized double getMeanLatencyMs() {
+        return measured == 0 ? 0 : totalLatencyNanos / 1e6 / measured;
+    }
+
+    /**
+     * @return the mean time from issuing an operation to its callback in milliseconds
+     */
+    public synchronized double getMeanExecutionMs() {
+        return measured == 0 ? 0 : totalExecutionNanos / 1e6 / measured;
+    }
+
+    public synchronized double getMaxLatencyMs() {
+        return maxLatencyNanos / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return address + " depth=" + getDepth() + " maxDepth=" + maxDepth
+                + " completed=" + completed + " failed=" + failed
+                + " timeouts=" + timeouts + " retries=" + retries
+                + " meanLatencyMs=" + getMeanLatencyMs() + " maxLatencyMs=" + getMaxLatencyMs();
+    }
+}
@@ -0,0 +1,285 @@
+package com.example.androidblegatewaymqttclient;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the characteristics that cannot notify, each on its own interval.
+ * <p>
+ * The interval adapts to the signal: it is halved when a read returns a value that moved by at
+ * least the step of its channel, and grows by half when the value stayed put, between
+ * {@link #DEFAULT_MIN_INTERVAL_MS} and {@link #DEFAULT_MAX_INTERVAL_MS}. Every connection has a
+ * budget of reads per second; when its characteristics ask for more, all their intervals are
+ * stretched by the same factor, so polling never takes more airtime than the budget.
+ * <p>
+ * Reads that fall due within {@link #COALESCE_WINDOW_MS} of each other on the same connection go
+ * to its operation queue together, as one burst, so the radio wakes up once for them.
+ * Everything runs on the handler of the service.
+ */
+public class GattPollScheduler {
+    private final static String TAG = GattPollScheduler.class.getSimpleName();
+
+    public final static long DEFAULT_MIN_INTERVAL_MS = 1000;
+    public final static long DEFAULT_MAX_INTERVAL_MS = 60000;
+    public final static long DEFAULT_INITIAL_INTERVAL_MS = 5000;
+    public final static double DEFAULT_READS_PER_SECOND = 2.0;
+    public final static long COALESCE_WINDOW_MS = 250;
+
+    // Change of a value that counts as moving, in fixed-point units of each channel
+    private final static int[] STEPS = new int[SensorChannel.values().length];
+
+    static {
+        STEPS[SensorChannel.BATTERY.ordinal()] = 1;
+        STEPS[SensorChannel.TEMPERATURE.ordinal()] = 10;
+        STEPS[SensorChannel.HUMIDITY.ordinal()] = 50;
+    }
+
+    private final Handler handler;
+    private final List<Poll> polls = new ArrayList<>();
+    private volatile long minIntervalMs = DEFAULT_MIN_INTERVAL_MS;
+    private volatile long maxIntervalMs = DEFAULT_MAX_INTERVAL_MS;
+    private volatile double readsPerSecond = DEFAULT_READS_PER_SECOND;
+    private long scheduledAt = Long.MAX_VALUE;
+    private long round;
+
+    // Counters, see toString
+    private long reads;
+    private long bursts;
+    private long faster;
+    private long slower;
+    private long throttled;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+        }
+    };
+
+    /**
+     * @param handler the handler the reads are scheduled on
+     */
+    public GattPollScheduler(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * @param minIntervalMs the shortest interval of a characteristic
+     * @param maxIntervalMs the longest interval of a characteristic
+     * @param readsPerSecond the most reads one connection may do per second
+     */
+    public void setLimits(long minIntervalMs, long maxIntervalMs, double readsPerSecond) {
+        if (minIntervalMs <= 0 || maxIntervalMs < minIntervalMs || readsPerSecond <= 0) {
+            throw new IllegalArgumentException("Invalid polling limits");
+        }
+        this.minIntervalMs = minIntervalMs;
+        this.maxIntervalMs = maxIntervalMs;
+        this.readsPerSecond = readsPerSecond;
+    }
+
+    /**
+     * Starts polling a characteristic, with a first read right away.
+     *
+     * @param session the peripheral
+     * @param characteristic the characteristic to read
+     */
+    public synchronized void add(BleDeviceSession session, BluetoothGattCharacteristic characteristic) {
+        SensorChannel channel = SensorChannel.fromUuid(characteristic.getUuid());
+        if (channel == null) {
+            return;
+        }
+        for (Poll poll : polls) {
+            if (poll.session == session && poll.characteristic == characteristic) {
+                return;
+            }
+        }
+        Poll poll = new Poll(session, characteristic, channel,
+                Math.max(minIntervalMs, Math.min(maxIntervalMs, DEFAULT_INITIAL_INTERVAL_MS)));
+        poll.nextDueMillis = SystemClock.elapsedRealtime();
+        polls.add(poll);
+        Log.d(TAG, "Polling " + channel.getKey() + " of " + session.getAddress());
+        schedule();
+    }
+
+    /**
+     * Stops polling the characteristics of a peripheral, used when it disconnects.
+     */
+    public synchronized void remove(BleDeviceSession session) {
+        for (int i = polls.size() - 1; i >= 0; i--) {
+            if (polls.get(i).session == session) {
+                polls.remove(i);
+            }
+        }
+        if (polls.isEmpty()) {
+            handler.removeCallbacks(tick);
+            scheduledAt = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Stops all polling
+     */
+    public synchronized void clear() {
+        polls.clear();
+        handler.removeCallbacks(tick);
+        scheduledAt = Long.MAX_VALUE;
+    }
+
+    /**
+     * Adapts the interval of a characteristic to a value that was read, called from the read
+     * callback.
+     *
+     * @param session the peripheral
+     * @param characteristic the characteristic that was read
+     */
+    public synchronized void onRead(BleDeviceSession session, BluetoothGattCharacteristic characteristic) {
+        Poll poll = find(session, characteristic);
+        if (poll == null) {
+            return;
+        }
+        int value = poll.channel.decode(characteristic.getValue());
+        if (value == SigCharacteristicCodec.NO_VALUE) {
+            return;
+        }
+        if (poll.hasValue) {
+            long change = Math.abs((long) value - poll.lastValue);
+            if (change >= STEPS[poll.channel.ordinal()]) {
+                poll.intervalMs = Math.max(minIntervalMs, poll.intervalMs / 2);
+                faster++;
+            } else {
+                poll.intervalMs = Math.min(maxIntervalMs, poll.intervalMs + poll.intervalMs / 2);
+                slower++;
+            }
+        }
+        poll.hasValue = true;
+        poll.lastValue = value;
+    }
+
+    /**
+     * Queues the reads that are due, one burst per connection, and schedules the next round.
+     * Runs on the handler.
+     */
+    private synchronized void poll() {
+        scheduledAt = Long.MAX_VALUE;
+        round++;
+        long now = SystemClock.elapsedRealtime();
+        long horizon = now + COALESCE_WINDOW_MS;
+        for (int i = 0; i < polls.size(); i++) {
+            Poll first = polls.get(i);
+            if (first.round == round || first.nextDueMillis > horizon) {
+                continue;
+            }
+            // Everything of this connection that is due joins the burst
+            BleDeviceSession session = first.session;
+            double stretch = stretchOf(session);
+            int burst = 0;
+            for (int j = i; j < polls.size(); j++) {
+                Poll poll = polls.get(j);
+                if (poll.session != session || poll.nextDueMillis > horizon) {
+                    continue;
+                }
+                poll.round = round;
+                poll.nextDueMillis = now + (long) (poll.intervalMs * stretch);
+                if (session.isConnected()) {
+                    session.getOperationQueue().enqueue(GattOperation.read(poll.characteristic));
+                    burst++;
+                }
+            }
+            if (burst > 0) {
+                reads += burst;
+                bursts++;
+            }
+            if (stretch > 1) {
+                throttled++;
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * @return the factor the intervals of a connection are stretched by to stay in its budget
+     */
+    private double stretchOf(BleDeviceSession session) {
+        double demand = 0;
+        for (int i = 0; i < polls.size(); i++) {
+            Poll poll = polls.get(i);
+            if (poll.session == session) {
+                demand += 1000.0 / poll.intervalMs;
+            }
+        }
+        return Math.max(1.0, demand / readsPerSecond);
+    }
+
+    /**
+     * Schedules the next round for the earliest due read
+     */
+    private void schedule() {
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < polls.size(); i++) {
+            earliest = Math.min(earliest, polls.get(i).nextDueMillis);
+        }
+        if (earliest == Long.MAX_VALUE || earliest >= scheduledAt) {
+            return;
+        }
+        handler.removeCallbacks(tick);
+        scheduledAt = earliest;
+        handler.postDelayed(tick, Math.max(0, earliest - SystemClock.elapsedRealtime()));
+    }
+
+    private Poll find(BleDeviceSession session, BluetoothGattCharacteristic characteristic) {
+        for (int i = 0; i < polls.size(); i++) {
+            Poll poll = polls.get(i);
+            if (poll.session == session && poll.characteristic == characteristic) {
+                return poll;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the current interval of a characteristic in milliseconds, 0 if it is not polled
+     */
+    public synchronized long getIntervalMs(BleDeviceSession session, BluetoothGattCharacteristic characteristic) {
+        Poll poll = find(session, characteristic);
+        return poll == null ? 0 : poll.intervalMs;
+    }
+
+    public synchronized int getPollCount() {
+        return polls.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return polls.size() + " polled, " + reads + " reads in " + bursts + " bursts"
+                + (bursts == 0 ? "" : String.format(" (%.2f per burst)", (double) reads / bursts))
+                + ", " + faster + " faster, " + slower + " slower, " + throttled + " throttled";
+    }
+
+    /**
+     * One polled characteristic
+     */
+    private static final class Poll {
+        final BleDeviceSession session;
+        final BluetoothGattCharacteristic characteristic;
+        final SensorChannel channel;
+        long intervalMs;
+        long nextDueMillis;
+        // Round the read was queued in, so a connection gets one burst per round
+        long round;
+        boolean hasValue;
+        int lastValue;
+
+        Poll(BleDeviceSession session, BluetoothGattCharacteristic characteristic, SensorChannel channel,
+             long intervalMs) {
+            this.session = session;
+            this.characteristic = characteristic;
+            this.channel = channel;
+            this.intervalMs = intervalMs;
+        }
+    }
+}
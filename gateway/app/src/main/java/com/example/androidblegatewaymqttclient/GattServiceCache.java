@@ -0,0 +1,156 @@
+package com.example.androidblegatewaymqttclient;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the services and characteristics discovered on every peripheral, keyed by MAC
+ * address, so a reconnect can skip service discovery when the GATT database did not change.
+ * <p>
+ * Android keeps the services of a BluetoothGatt after the link drops, and reconnecting through
+ * the same BluetoothGatt brings them back without discovery. A reconnect uses them when the
+ * BluetoothGatt still has every service and characteristic recorded here and, on peripherals
+ * with a Database Hash characteristic, when the hash read after the reconnect equals the one
+ * read after discovery. Otherwise the services are discovered again.
+ */
+public class GattServiceCache {
+
+    public final static UUID GENERIC_ATTRIBUTE_SERVICE_UUID =
+            UUID.fromString("00001801-0000-1000-8000-00805F9B34FB");
+    public final static UUID DATABASE_HASH_UUID =
+            UUID.fromString("00002B2A-0000-1000-8000-00805F9B34FB");
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile long hits;
+    private volatile long misses;
+
+    /**
+     * Records the services of a peripheral after a discovery.
+     *
+     * @param address MAC address of the peripheral
+     * @param gatt the connection the services were discovered on
+     */
+    public void put(String address, BluetoothGatt gatt) {
+        List<UUID> services = new ArrayList<>();
+        List<UUID> characteristics = new ArrayList<>();
+        for (BluetoothGattService service : gatt.getServices()) {
+            services.add(service.getUuid());
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                // The service goes first, characteristics of different services may share a UUID
+                characteristics.add(service.getUuid());
+                characteristics.add(characteristic.getUuid());
+            }
+        }
+        entries.put(address, new Entry(services, characteristics));
+    }
+
+    /**
+     * @return true if services of the peripheral were recorded
+     */
+    public boolean contains(String address) {
+        return entries.containsKey(address);
+    }
+
+    /**
+     * @return true if the connection still has every service and characteristic recorded for the
+     * peripheral
+     */
+    public boolean matches(String address, BluetoothGatt gatt) {
+        Entry entry = entries.get(address);
+        if (entry == null || gatt == null) {
+            return false;
+        }
+        for (UUID uuid : entry.services) {
+            if (gatt.getService(uuid) == null) {
+                return false;
+            }
+        }
+        for (int i = 0; i < entry.characteristics.size(); i += 2) {
+            BluetoothGattService service = gatt.getService(entry.characteristics.get(i));
+            if (service.getCharacteristic(entry.characteristics.get(i + 1)) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the Database Hash characteristic of a connection, or null when the peripheral has none
+     */
+    public static BluetoothGattCharacteristic databaseHashOf(BluetoothGatt gatt) {
+        BluetoothGattService service = gatt.getService(GENERIC_ATTRIBUTE_SERVICE_UUID);
+        return service == null ? null : service.getCharacteristic(DATABASE_HASH_UUID);
+    }
+
+    /**
+     * @return the Database Hash read after the discovery, or null when it was not read
+     */
+    public byte[] getDatabaseHash(String address) {
+        Entry entry = entries.get(address);
+        return entry == null ? null : entry.databaseHash;
+    }
+
+    public void setDatabaseHash(String address, byte[] hash) {
+        Entry entry = entries.get(address);
+        if (entry != null) {
+            entry.databaseHash = hash == null ? null : Arrays.copyOf(hash, hash.length);
+        }
+    }
+
+    /**
+     * Forgets the services of a peripheral, its next connection discovers them again
+     */
+    public void invalidate(String address) {
+        entries.remove(address);
+    }
+
+    void recordHit() {
+        hits++;
+    }
+
+    void recordMiss() {
+        misses++;
+    }
+
+    /**
+     * @return the number of reconnects that skipped service discovery
+     */
+    public long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return the number of reconnects that had to discover the services again
+     */
+    public long getMissCount() {
+        return misses;
+    }
+
+    @Override
+    public String toString() {
+        return entries.size() + " cached, " + hits + " hits, " + misses + " misses";
+    }
+
+    /**
+     * The services and characteristics of one peripheral
+     */
+    private static final class Entry {
+        final List<UUID> services;
+        // Pairs of service UUID and characteristic UUID
+        final List<UUID> characteristics;
+        volatile byte[] databaseHash;
+
+        Entry(List<UUID> services, List<UUID> characteristics) {
+            this.services = services;
+            this.characteristics = characteristics;
+        }
+    }
+}
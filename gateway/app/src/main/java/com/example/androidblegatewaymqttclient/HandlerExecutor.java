@@ -0,0 +1,30 @@
+package com.example.androidblegatewaymqttclient;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on the thread of a Looper, for example the main thread for listeners that
+ * update views.
+ */
+public class HandlerExecutor implements Executor {
+    private final Handler handler;
+
+    public HandlerExecutor(Looper looper) {
+        this.handler = new Handler(looper);
+    }
+
+    /**
+     * @return an executor that runs tasks on the main thread
+     */
+    public static HandlerExecutor mainThread() {
+        return new HandlerExecutor(Looper.getMainLooper());
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        handler.post(command);
+    }
+}
@@ -20,6 +20,7 @@ import android.os.Build;
 import android.os.IBinder;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
 
 import android.os.Bundle;
 import android.util.Log;
@@ -30,10 +31,6 @@ import android.widget.Switch;
 import android.widget.TextView;
 import android.os.Bundle;
 
-import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
-import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
-
 public class MainActivity extends AppCompatActivity {
 
 
@@ -62,13 +59,19 @@ public class MainActivity extends AppCompatActivity {
     //This is required for Android 6.0 (Marshmallow)
     private static final int PERMISSION_REQUEST_COARSE_LOCATION = 1;
 
-    // Keep track of whether CapSense Notifications are on or off
-    private static boolean notifyState = false;
+    // Keep track of whether CapSense Notifications are on or off, peripherals stream by default
+    private static boolean notifyState = PSoCCapSenseLedService.DEFAULT_STREAMING;
+
+    // Set while the controls are brought in line with the service, so the switch does not write
+    private boolean syncingControls;
+
+    // Shows the samples once per display frame, and measures the frames
+    private ReadingRenderer mRenderer;
+    private UiFrameMonitor mFrameMonitor;
 
-    MqttHelper mqttHelper;
     /**
-     * This manages the lifecycle of the BLE service.
-     * When the service starts we get the service object and initialize the service.
+     * This manages the connection to the gateway service. The service runs on its own, the
+     * activity only attaches to show the values and offer the buttons.
      */
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
 
@@ -83,7 +86,14 @@ public class MainActivity extends AppCompatActivity {
             Log.i(TAG, "onServiceConnected");
             mPSoCCapSenseLedService = ((PSoCCapSenseLedService.LocalBinder) service).getService();
             mServiceConnected = true;
-            mPSoCCapSenseLedService.initialize();
+            // Decoded samples go to the renderer on the thread that decoded them, it shows them in the
+            // next frame. MQTT gets them in the service.
+            mPSoCCapSenseLedService.getEventBus().register(mRenderer);
+            // The gateway may have been running for a while, show where it is
+            syncWithService();
+            if (PSoCCapSenseLedService.AUTO_BRING_UP) {
+                startScanIfReady();
+            }
         }
 
         /**
@@ -95,6 +105,7 @@ public class MainActivity extends AppCompatActivity {
         public void onServiceDisconnected(ComponentName componentName) {
             Log.i(TAG, "onServiceDisconnected");
             mPSoCCapSenseLedService = null;
+            mServiceConnected = false;
         }
     };
 
@@ -113,6 +124,9 @@ public class MainActivity extends AppCompatActivity {
         batteryValue = (TextView) findViewById(R.id.battery_value);
         temperatureValue = (TextView) findViewById(R.id.temperature_value);
         humidityValue = (TextView) findViewById(R.id.humidity_value);
+        mRenderer = new ReadingRenderer(batteryValue, temperatureValue, humidityValue,
+                (RecyclerView) findViewById(R.id.device_list));
+        mFrameMonitor = new UiFrameMonitor(getWindow());
 
         // Set up variables for accessing buttons and slide switches
         start_button = (Button) findViewById(R.id.start_button);
@@ -122,12 +136,17 @@ public class MainActivity extends AppCompatActivity {
         disconnect_button = (Button) findViewById(R.id.disconnect_button);
 //        led_switch = (Switch) findViewById(R.id.led_switch);
         cap_switch = (Switch) findViewById(R.id.capsense_switch);
+        // Set before the listener, the service starts with the same setting
+        cap_switch.setChecked(notifyState);
 
 
         // Initialize service and connection state variable
         mServiceConnected = false;
         mConnectState = false;
 
+        // Attach to the gateway if it is already running, after a rotation or when the app comes back
+        bindService(new Intent(this, PSoCCapSenseLedService.class), mServiceConnection, 0);
+
         //This section required for Android 6.0 (Marshmallow)
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             // Android M Permission check 
@@ -156,36 +175,36 @@ public class MainActivity extends AppCompatActivity {
         /* This will be called when the CapSense Notify On/Off switch is touched */
         cap_switch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (syncingControls || mPSoCCapSenseLedService == null) {
+                    return;
+                }
                 // Turn Notifications on/off based on the state of the switch
                 System.out.println(isChecked);
                 mPSoCCapSenseLedService.writeBleCharacteristicNotification(isChecked);
                 notifyState = isChecked;
-                String currentService = mPSoCCapSenseLedService.getCurrentService();
-                if (currentService.equalsIgnoreCase("batteryService")) {
-                    if (isChecked) {
-                        batteryValue.setText(R.string.NoTouch);
-                        temperatureValue.setText(R.string.NotCurrentService);
-                        humidityValue.setText(R.string.NotCurrentService);
-                    } else {
-                        batteryValue.setText(R.string.NotifyOff);
-                        temperatureValue.setText(R.string.NotCurrentService);
-                        humidityValue.setText(R.string.NotCurrentService);
+                // Each value view shows the state of the service of the peripherals that provide it
+                batteryValue.setText(R.string.NotCurrentService);
+                temperatureValue.setText(R.string.NotCurrentService);
+                humidityValue.setText(R.string.NotCurrentService);
+                for (BleDeviceSession session : mPSoCCapSenseLedService.getSessions()) {
+                    String currentService = session.getCurrentService();
+                    if (currentService == null) {
+                        continue;
                     }
-                } else if (currentService.equalsIgnoreCase("environmentalSensingService")) {
-                    if (isChecked) {
-                        batteryValue.setText(R.string.NotCurrentService);
-                        temperatureValue.setText(R.string.NoTouch);
-                        humidityValue.setText(R.string.NoTouch);
-                    } else {
-                        batteryValue.setText(R.string.NotCurrentService);
-                        temperatureValue.setText(R.string.NotifyOff);
-                        humidityValue.setText(R.string.NotifyOff);
+                    if (currentService.equalsIgnoreCase("batteryService")) {
+                        batteryValue.setText(isChecked ? R.string.NoTouch : R.string.NotifyOff);
+                    } else if (currentService.equalsIgnoreCase("environmentalSensingService")) {
+                        temperatureValue.setText(isChecked ? R.string.NoTouch : R.string.NotifyOff);
+                        humidityValue.setText(isChecked ? R.string.NoTouch : R.string.NotifyOff);
                     }
                 }
+                mRenderer.invalidateLatest();
             }
         });
 
-        startMqtt();
+        if (PSoCCapSenseLedService.AUTO_BRING_UP && hasLocationPermission()) {
+            startBluetooth(null);
+        }
     }
 
     //This method required for Android 6.0 (Marshmallow)
@@ -195,6 +214,9 @@ public class MainActivity extends AppCompatActivity {
             case PERMISSION_REQUEST_COARSE_LOCATION: {
                 if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                     Log.d("Permission for 6.0:", "Coarse location permission granted");
+                    if (PSoCCapSenseLedService.AUTO_BRING_UP) {
+                        startBluetooth(null);
+                    }
                 } else {
                     final AlertDialog.Builder builder = new AlertDialog.Builder(this);
                     builder.setTitle("Functionality limited");
@@ -211,6 +233,13 @@ public class MainActivity extends AppCompatActivity {
         }
     } //End of section for Android 6.0 (Marshmallow)
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mRenderer.attach();
+        mFrameMonitor.start();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -220,8 +249,11 @@ public class MainActivity extends AppCompatActivity {
         filter.addAction(PSoCCapSenseLedService.ACTION_CONNECTED);
         filter.addAction(PSoCCapSenseLedService.ACTION_DISCONNECTED);
         filter.addAction(PSoCCapSenseLedService.ACTION_SERVICES_DISCOVERED);
-        filter.addAction(PSoCCapSenseLedService.ACTION_DATA_RECEIVED);
         registerReceiver(mBleUpdateReceiver, filter);
+        // The broadcasts sent while paused were missed
+        if (mServiceConnected) {
+            syncWithService();
+        }
     }
 
     @Override
@@ -231,6 +263,10 @@ public class MainActivity extends AppCompatActivity {
             finish();
             return;
         }
+        if (requestCode == REQUEST_ENABLE_BLE && PSoCCapSenseLedService.AUTO_BRING_UP) {
+            // Bluetooth is on now, the scan can start
+            startScanIfReady();
+        }
         super.onActivityResult(requestCode, resultCode, data);
     }
 
@@ -240,11 +276,22 @@ public class MainActivity extends AppCompatActivity {
         unregisterReceiver(mBleUpdateReceiver);
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Nothing is drawn while stopped, the renderer shows the latest values when the activity comes back
+        mRenderer.detach();
+        mFrameMonitor.stop();
+        Log.i(TAG, "Rendering: " + mRenderer + ", frames: " + mFrameMonitor);
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        // Close and unbind the service when the activity goes away
-        mPSoCCapSenseLedService.close();
+        // Detach from the gateway, it keeps running without the activity
+        if (mPSoCCapSenseLedService != null) {
+            mPSoCCapSenseLedService.getEventBus().unregister(mRenderer);
+        }
         unbindService(mServiceConnection);
         mPSoCCapSenseLedService = null;
         mServiceConnected = false;
@@ -269,9 +316,14 @@ public class MainActivity extends AppCompatActivity {
             startActivityForResult(enableBtIntent, REQUEST_ENABLE_BLE);
         }
 
-        // Start the BLE Service
+        // Start the gateway service, it runs in the foreground until it is stopped
         Log.d(TAG, "Starting BLE Service");
         Intent gattServiceIntent = new Intent(this, PSoCCapSenseLedService.class);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            startForegroundService(gattServiceIntent);
+        } else {
+            startService(gattServiceIntent);
+        }
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
 
         // Disable the start button and turn on the search  button
@@ -280,6 +332,57 @@ public class MainActivity extends AppCompatActivity {
         Log.d(TAG, "Bluetooth is Enabled");
     }
 
+    /**
+     * @return true if the app may scan, always before Android 6.0
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private boolean hasLocationPermission() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                || checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /**
+     * Lets the service go on with the automatic bring-up once Bluetooth is on and scanning is
+     * permitted, which may need the activity
+     */
+    private void startScanIfReady() {
+        if (!mServiceConnected || mPSoCCapSenseLedService == null) {
+            return;
+        }
+        if (mPSoCCapSenseLedService.startAutoBringUp()) {
+            search_button.setEnabled(false);
+        }
+    }
+
+    /**
+     * Brings the buttons, the switch and the values in line with the gateway
+     */
+    private void syncWithService() {
+        PSoCCapSenseLedService service = mPSoCCapSenseLedService;
+        boolean found = !service.getSessions().isEmpty();
+        boolean discoverable = false;
+        boolean ready = false;
+        for (BleDeviceSession session : service.getSessions()) {
+            discoverable |= session.getState() == BleDeviceSession.State.CONNECTED;
+            ready |= session.getState() == BleDeviceSession.State.READY;
+        }
+        mConnectState = service.getConnectedCount() > 0;
+        start_button.setEnabled(false);
+        search_button.setEnabled(!service.getScanScheduler().isRunning());
+        connect_button.setEnabled(found && !mConnectState);
+        disconnect_button.setEnabled(mConnectState);
+        discover_button.setEnabled(discoverable);
+        cap_switch.setEnabled(ready);
+        notifyState = service.isStreaming();
+        syncingControls = true;
+        cap_switch.setChecked(notifyState);
+        syncingControls = false;
+        for (SensorSnapshotStore.Reading reading : service.getSnapshotStore().snapshot().getReadings()) {
+            mRenderer.onSample(reading.getAddress(), reading.getChannel(), reading.getValue(),
+                    reading.getTimestampMillis(), reading.getVersion());
+        }
+    }
+
     /**
      * This method handles the Search for Device button
      *
@@ -338,107 +441,51 @@ public class MainActivity extends AppCompatActivity {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
+            final String address = intent.getStringExtra(PSoCCapSenseLedService.EXTRA_ADDRESS);
             switch (action) {
                 case PSoCCapSenseLedService.ACTION_BLESCAN_CALLBACK:
-                    // Disable the search button and enable the connect button
-                    search_button.setEnabled(false);
+                    // Enable the connect button, the search backs off by itself once the peripherals are connected
                     connect_button.setEnabled(true);
+                    Log.d(TAG, "Found device " + address);
                     break;
 
                 case PSoCCapSenseLedService.ACTION_CONNECTED:
                     /* This if statement is needed because we sometimes get a GATT_CONNECTED */
                     /* action when sending Capsense notifications */
                     if (!mConnectState) {
-                        // Dsable the connect button, enable the discover services and disconnect buttons
+                        // Dsable the connect button, enable the disconnect button
                         connect_button.setEnabled(false);
-                        discover_button.setEnabled(true);
                         disconnect_button.setEnabled(true);
                         mConnectState = true;
-                        Log.d(TAG, "Connected to Device");
                     }
+                    // Enable the discover services button again for peripherals that connect later
+                    discover_button.setEnabled(true);
+                    Log.d(TAG, "Connected to Device " + address);
                     break;
                 case PSoCCapSenseLedService.ACTION_DISCONNECTED:
+                    Log.d(TAG, "Disconnected " + address);
+                    // Peripherals that drop are reconnected by the service, the controls are for the others
+                    // Keep the controls while other peripherals are still connected
+                    if (mPSoCCapSenseLedService != null && mPSoCCapSenseLedService.getConnectedCount() > 0) {
+                        break;
+                    }
                     // Disable the disconnect, discover svc, discover char button, and enable the search button
                     disconnect_button.setEnabled(false);
                     discover_button.setEnabled(false);
                     search_button.setEnabled(true);
-                    // Turn off and disable the LED and CapSense switches
-                    cap_switch.setChecked(false);
+                    // Disable the CapSense switch, it keeps its setting for the next peripherals
                     cap_switch.setEnabled(false);
                     mConnectState = false;
-                    Log.d(TAG, "Disconnected");
                     break;
                 case PSoCCapSenseLedService.ACTION_SERVICES_DISCOVERED:
                     // Disable the discover services button
                     discover_button.setEnabled(false);
                     cap_switch.setEnabled(true);
-                    Log.d(TAG, "Services Discovered");
+                    Log.d(TAG, "Services Discovered on " + address);
                     break;
-                case PSoCCapSenseLedService.ACTION_DATA_RECEIVED:
-                    // This is called after a notify or a read completes
-                    String currentService = mPSoCCapSenseLedService.getCurrentService();
-                    if (currentService.equalsIgnoreCase("batteryService")) {
-                        temperatureValue.setText(R.string.NotCurrentService);
-                        humidityValue.setText(R.string.NotCurrentService);
-                        String batteryLevel = mPSoCCapSenseLedService.getBatteryValue();
-                        mqttHelper.publishToTopic("node/battery", batteryLevel);
-                        if (batteryLevel.equals("-")) {
-                            if (!notifyState) {
-                                batteryValue.setText(R.string.NotifyOff);
-                            } else {
-                                batteryValue.setText(R.string.NoTouch);
-                            }
-                        } else {
-                            batteryValue.setText(batteryLevel);
-                        }
-                    } else if (currentService.equalsIgnoreCase("environmentalSensingService")) {
-                        String temperature = mPSoCCapSenseLedService.getTemperatureValue();
-                        String humidity = mPSoCCapSenseLedService.getHumidityValue();
-                        mqttHelper.publishToTopic("node/temperature", temperature);
-                        mqttHelper.publishToTopic("node/humidity", humidity);
-                        if (temperature.equals("-")) {
-                            if (!notifyState) {
-                                temperatureValue.setText(R.string.NotifyOff);
-                                humidityValue.setText(R.string.NotifyOff);
-                            } else {
-                                temperatureValue.setText(R.string.NoTouch);
-                                humidityValue.setText(R.string.NoTouch);
-                            }
-                        } else {
-                            temperature += "\u00B0C";
-                            humidity += "%";
-                            temperatureValue.setText(temperature);
-                            humidityValue.setText(humidity);
-                        }
-                    }
                 default:
                     break;
             }
         }
     };
-
-    private void startMqtt() {
-        mqttHelper = new MqttHelper(getApplicationContext());
-        mqttHelper.setCallback(new MqttCallbackExtended() {
-            @Override
-            public void connectComplete(boolean b, String s) {
-
-            }
-
-            @Override
-            public void connectionLost(Throwable throwable) {
-
-            }
-
-            @Override
-            public void messageArrived(String topic, MqttMessage mqttMessage) throws Exception {
-                Log.w("Debug", mqttMessage.toString());
-            }
-
-            @Override
-            public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
-
-            }
-        });
-    }
 }
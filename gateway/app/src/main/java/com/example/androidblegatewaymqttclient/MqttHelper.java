@@ -1,6 +1,8 @@
 package com.example.androidblegatewaymqttclient;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import org.eclipse.paho.android.service.MqttAndroidClient;
@@ -13,10 +15,49 @@ import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection to the broker.
+ * <p>
+ * Outbound messages are appended to an OutboundJournal in the app files directory and a sender
+ * thread drains the journal in order while the client is connected, with up to
+ * {@link #MAX_IN_FLIGHT} messages waiting for their acknowledgement. Messages are only removed
+ * from the journal when the broker acknowledged them, so an outage of the uplink or the death of
+ * the process loses nothing; after a reconnect everything that was not acknowledged is sent
+ * again, up to {@link #MAX_JOURNAL_SEGMENTS} segments of the journal, beyond which the oldest
+ * messages are dropped. If the journal cannot be opened the helper falls back to the in-memory
+ * buffer of the client.
+ * <p>
+ * A first connect that fails is tried again after {@link #CONNECT_RETRY_BASE_MS}, doubling up
+ * to {@link #CONNECT_RETRY_MAX_MS}, since the automatic reconnect of the client only takes over
+ * once a connect succeeded.
+ * <p>
+ * Retained messages hold state, not events: they skip the journal, the helper keeps the last one
+ * of every topic and sends them all again after every connect. The last will of the connection
+ * sets the retained presence of the gateway to offline, the helper sets it to online on connect.
+ * <p>
+ * With a MetricsRegistry the helper counts the connects, the lost connections and the
+ * deliveries, and records the time from the append of a message to the journal to its
+ * acknowledgement, and from its send to its acknowledgement.
+ */
+public class MqttHelper implements MessageTransport {
+    private final static String TAG = MqttHelper.class.getSimpleName();
 
-public class MqttHelper {
     public MqttAndroidClient mqttAndroidClient;
 
     final String serverUri = "tcp://mqtt.flespi.io:1883";
@@ -28,34 +69,208 @@ public class MqttHelper {
 
     final String username = "GctC7MzxjjO0UbiiIfxEQrBf7N6OOiQii9IfJ8BQhfGZfO6NTtfyIGBFhxhUEV2M";
 
+    // Quality of service of a MqttMessage that does not set one
+    final static int DEFAULT_QOS = 1;
+
+    // Uplink counters, bytes are the size of the PUBLISH packets on the wire
+    private final AtomicLong publishedMessages = new AtomicLong();
+    private final AtomicLong publishedBytes = new AtomicLong();
+
+    // Directory of the outbound journal, in the app files directory
+    final static String JOURNAL_DIRECTORY = "outbound-journal";
+    // Segments the journal keeps during an outage, 64 MiB, then the oldest messages are dropped
+    final static int MAX_JOURNAL_SEGMENTS = 16;
+    // Messages sent but not acknowledged by the broker yet
+    final static int MAX_IN_FLIGHT = 64;
+    // Append times kept for the latency to the acknowledgement, older ones are not measured
+    final static int APPEND_TIMES = 4096;
+    // Time close waits for the sender thread to finish its tasks
+    final static long CLOSE_TIMEOUT_MS = 1000;
+    // Delay before the first connect is tried again, doubled after every failure up to the maximum
+    final static long CONNECT_RETRY_BASE_MS = 1000;
+    final static long CONNECT_RETRY_MAX_MS = 60000;
+
+    private final OutboundJournal journal;
+    private final ExecutorService sender;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicBoolean rewindScheduled = new AtomicBoolean();
+    // Counts the rewinds, messages sent before the last one are no longer in flight
+    private volatile int generation;
+    private volatile MqttCallbackExtended callback;
+    // Set when close starts, retained state published later would follow the offline presence
+    private volatile boolean closed;
+    // Retries of a failed connect, on the main thread
+    private final Handler connectHandler = new Handler(Looper.getMainLooper());
+    private long connectRetryDelayMs = CONNECT_RETRY_BASE_MS;
+    private final Runnable connectTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!closed) {
+                connect();
+            }
+        }
+    };
+
+    // Last retained message of every topic, sent again after a reconnect
+    private final Map<String, byte[]> retained = new ConcurrentHashMap<>();
+    private final static byte[] ONLINE = RetainedStatePublisher.ONLINE.getBytes(Charset.forName("UTF-8"));
+    private final static byte[] OFFLINE = RetainedStatePublisher.OFFLINE.getBytes(Charset.forName("UTF-8"));
+
+    // Bring-up phases of the uplink, the first reading counts from the first message appended
+    private volatile StartupTimeline startupTimeline;
+    private final AtomicLong firstMessageOffset = new AtomicLong(-1);
+
+    private volatile UplinkMetrics metrics;
+    // Ring of the offsets and times of the messages appended since the metrics were set, in
+    // offset order, guarded by itself
+    private final long[] appendOffsets = new long[APPEND_TIMES];
+    private final long[] appendNanos = new long[APPEND_TIMES];
+    private int appendHead;
+    private int appendSize;
+    private volatile int inFlightCount;
+
+    // Only used on the sender thread
+    private final ArrayDeque<InFlight> inFlight = new ArrayDeque<>();
+    private long readOffset;
+    private long failedOffset = -1;
+
     public MqttHelper(Context context){
+        journal = openJournal(new File(context.getFilesDir(), JOURNAL_DIRECTORY));
+        if (journal != null) {
+            journal.setMaxSegments(MAX_JOURNAL_SEGMENTS);
+            readOffset = journal.getAckedOffset();
+            Log.i(TAG, "Outbound journal " + journal);
+        }
+        sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mqtt-journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         mqttAndroidClient = new MqttAndroidClient(context, serverUri, clientId);
         mqttAndroidClient.setCallback(new MqttCallbackExtended() {
             @Override
             public void connectComplete(boolean b, String s) {
                 Log.w("mqtt", s);
+                UplinkMetrics uplinkMetrics = metrics;
+                if (uplinkMetrics != null) {
+                    (b ? uplinkMetrics.reconnects : uplinkMetrics.connects).increment();
+                }
+                StartupTimeline timeline = startupTimeline;
+                if (timeline != null) {
+                    timeline.mark(StartupTimeline.Phase.MQTT_CONNECTED);
+                }
+                // Whatever was in flight on the old connection is sent again
+                scheduleRewind();
+                // and the retained state is brought up to date
+                execute(retainedTask);
+                MqttCallbackExtended listener = callback;
+                if (listener != null) {
+                    listener.connectComplete(b, s);
+                }
             }
 
             @Override
             public void connectionLost(Throwable throwable) {
-
+                Log.w(TAG, "Connection lost: " + throwable);
+                UplinkMetrics uplinkMetrics = metrics;
+                if (uplinkMetrics != null) {
+                    uplinkMetrics.connectionsLost.increment();
+                }
+                MqttCallbackExtended listener = callback;
+                if (listener != null) {
+                    listener.connectionLost(throwable);
+                }
             }
 
             @Override
             public void messageArrived(String topic, MqttMessage mqttMessage) throws Exception {
                 Log.w("Mqtt", mqttMessage.toString());
+                MqttCallbackExtended listener = callback;
+                if (listener != null) {
+                    listener.messageArrived(topic, mqttMessage);
+                }
             }
 
             @Override
             public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
-
+                UplinkMetrics uplinkMetrics = metrics;
+                if (uplinkMetrics != null) {
+                    uplinkMetrics.delivered.increment();
+                }
+                MqttCallbackExtended listener = callback;
+                if (listener != null) {
+                    listener.deliveryComplete(iMqttDeliveryToken);
+                }
             }
         });
         connect();
     }
 
+    /**
+     * Sets the timeline the connection and the acknowledgement of the first reading are marked on.
+     * Messages already in the journal from before do not count as the first reading.
+     */
+    public void setStartupTimeline(StartupTimeline timeline) {
+        this.startupTimeline = timeline;
+        timeline.mark(StartupTimeline.Phase.MQTT_CONNECTING);
+        if (mqttAndroidClient.isConnected()) {
+            timeline.mark(StartupTimeline.Phase.MQTT_CONNECTED);
+        }
+    }
+
+    /**
+     * Records the connection, the journal and the delivery latencies in a registry
+     */
+    public void setMetrics(MetricsRegistry registry) {
+        registry.gauge("mqtt.connected", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return mqttAndroidClient.isConnected() ? 1 : 0;
+            }
+        });
+        registry.gauge("mqtt.in_flight", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return inFlightCount;
+            }
+        });
+        registry.gauge("mqtt.published_messages", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return publishedMessages.get();
+            }
+        });
+        registry.gauge("mqtt.published_bytes", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return publishedBytes.get();
+            }
+        });
+        if (journal != null) {
+            registry.gauge("mqtt.journal_backlog_bytes", new MetricsRegistry.Gauge() {
+                @Override
+                public long getValue() {
+                    return journal.getEndOffset() - journal.getAckedOffset();
+                }
+            });
+            registry.gauge("mqtt.journal_dropped_messages", new MetricsRegistry.Gauge() {
+                @Override
+                public long getValue() {
+                    return journal.getDroppedRecords();
+                }
+            });
+        }
+        metrics = new UplinkMetrics(registry);
+    }
+
+    /**
+     * Sets a callback that gets the events of the client after the helper handled them
+     */
     public void setCallback(MqttCallbackExtended callback) {
-        mqttAndroidClient.setCallback(callback);
+        this.callback = callback;
     }
 
     private void connect(){
@@ -63,6 +278,8 @@ public class MqttHelper {
         mqttConnectOptions.setAutomaticReconnect(true);
         mqttConnectOptions.setCleanSession(false);
         mqttConnectOptions.setUserName(username);
+        mqttConnectOptions.setMaxInflight(MAX_IN_FLIGHT);
+        mqttConnectOptions.setWill(RetainedStatePublisher.GATEWAY_PRESENCE_TOPIC, OFFLINE, DEFAULT_QOS, true);
 
         try {
 
@@ -71,27 +288,47 @@ public class MqttHelper {
                 public void onSuccess(IMqttToken asyncActionToken) {
 
                     DisconnectedBufferOptions disconnectedBufferOptions = new DisconnectedBufferOptions();
-                    disconnectedBufferOptions.setBufferEnabled(true);
+                    // The journal keeps the messages while disconnected, the buffer is only a fallback
+                    disconnectedBufferOptions.setBufferEnabled(journal == null);
                     disconnectedBufferOptions.setBufferSize(100);
                     disconnectedBufferOptions.setPersistBuffer(false);
                     disconnectedBufferOptions.setDeleteOldestMessages(false);
                     mqttAndroidClient.setBufferOpts(disconnectedBufferOptions);
+                    connectRetryDelayMs = CONNECT_RETRY_BASE_MS;
                     subscribeToTopic();
+                    scheduleDrain();
                 }
 
                 @Override
                 public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
                     Log.w("Mqtt", "Failed to connect to: " + serverUri + exception.toString());
+                    scheduleConnect();
                 }
             });
 
 
         } catch (MqttException ex){
             ex.printStackTrace();
+            scheduleConnect();
         }
     }
 
 
+    /**
+     * Tries the connect again after the retry delay, somewhere between half and all of it so that
+     * gateways that lost the broker together do not all come back at once. Runs on the main thread.
+     */
+    private void scheduleConnect() {
+        if (closed) {
+            return;
+        }
+        long delay = connectRetryDelayMs;
+        connectRetryDelayMs = Math.min(delay * 2, CONNECT_RETRY_MAX_MS);
+        delay = delay / 2 + (long) (rand.nextDouble() * (delay - delay / 2));
+        Log.i(TAG, "Connecting again in " + delay + " ms");
+        connectHandler.postDelayed(connectTask, delay);
+    }
+
     private void subscribeToTopic() {
         try {
             mqttAndroidClient.subscribe(subscriptionTopic, 0, null, new IMqttActionListener() {
@@ -112,15 +349,376 @@ public class MqttHelper {
         }
     }
 
+    @Override
     public void publishToTopic(String topic, String payload){
         byte[] encodedPayload = new byte[0];
         try {
             encodedPayload = payload.getBytes("UTF-8");
-            MqttMessage message = new MqttMessage(encodedPayload);
-            mqttAndroidClient.publish(topic, message);
+            publishToTopic(topic, encodedPayload);
             Log.d("publishToTopic()", payload);
-        } catch (UnsupportedEncodingException | MqttException e) {
+        } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
         }
     }
+
+    @Override
+    public void publishToTopic(String topic, byte[] payload){
+        if (journal == null) {
+            try {
+                mqttAndroidClient.publish(topic, new MqttMessage(payload));
+                publishedMessages.incrementAndGet();
+                publishedBytes.addAndGet(MqttPackets.publishPacketSize(topic.length(), payload.length, DEFAULT_QOS));
+            } catch (MqttException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        try {
+            long offset;
+            if (metrics == null) {
+                offset = journal.append(topic, payload);
+            } else {
+                // Appended and noted under one lock, so the ring stays in offset order
+                synchronized (appendOffsets) {
+                    offset = journal.append(topic, payload);
+                    noteAppended(offset, System.nanoTime());
+                }
+            }
+            if (startupTimeline != null) {
+                firstMessageOffset.compareAndSet(-1, offset);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot append to the outbound journal", e);
+            return;
+        }
+        scheduleDrain();
+    }
+
+    @Override
+    public void publishRetained(String topic, byte[] payload) {
+        if (closed) {
+            Log.w(TAG, "Retained publish on " + topic + " after close dropped");
+            return;
+        }
+        if (payload.length == 0) {
+            retained.remove(topic);
+        } else {
+            retained.put(topic, payload);
+        }
+        // While disconnected only the map is updated, the connect sends the latest state
+        if (mqttAndroidClient.isConnected()) {
+            sendRetained(topic, payload);
+        }
+    }
+
+    private void sendRetained(String topic, byte[] payload) {
+        try {
+            mqttAndroidClient.publish(topic, payload, DEFAULT_QOS, true);
+            publishedMessages.incrementAndGet();
+            publishedBytes.addAndGet(MqttPackets.publishPacketSize(topic.length(), payload.length, DEFAULT_QOS));
+        } catch (MqttException e) {
+            Log.w(TAG, "Retained publish on " + topic + " failed: " + e);
+        }
+    }
+
+    /**
+     * Marks the gateway online and sends the retained state, runs on the sender thread after
+     * every connect
+     */
+    private final Runnable retainedTask = new Runnable() {
+        @Override
+        public void run() {
+            if (closed) {
+                return;
+            }
+            sendRetained(RetainedStatePublisher.GATEWAY_PRESENCE_TOPIC, ONLINE);
+            for (Map.Entry<String, byte[]> message : retained.entrySet()) {
+                sendRetained(message.getKey(), message.getValue());
+            }
+        }
+    };
+
+    /**
+     * Marks the gateway offline, stops the sender thread, writes the journal to storage and
+     * disconnects. Messages that were not acknowledged stay in the journal and are sent after the
+     * next start. Stop the stages that publish before and wait for them: retained state
+     * published after close is dropped, so the offline presence is the last retained message.
+     */
+    public void close() {
+        closed = true;
+        connectHandler.removeCallbacks(connectTask);
+        if (mqttAndroidClient.isConnected()) {
+            sendRetained(RetainedStatePublisher.GATEWAY_PRESENCE_TOPIC, OFFLINE);
+        }
+        sender.shutdown();
+        try {
+            if (!sender.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Sender thread still busy after " + CLOSE_TIMEOUT_MS + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        try {
+            mqttAndroidClient.disconnect();
+        } catch (MqttException e) {
+            Log.w(TAG, "Disconnect failed: " + e);
+        }
+        mqttAndroidClient.unregisterResources();
+    }
+
+    /**
+     * @return the outbound journal, or null if it could not be opened
+     */
+    public OutboundJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Notes when a message was appended, called with the lock of the ring held
+     */
+    private void noteAppended(long offset, long nanos) {
+        if (appendSize == APPEND_TIMES) {
+            // The oldest message waits too long to be measured
+            appendHead = (appendHead + 1) % APPEND_TIMES;
+            appendSize--;
+        }
+        int tail = (appendHead + appendSize) % APPEND_TIMES;
+        appendOffsets[tail] = offset;
+        appendNanos[tail] = nanos;
+        appendSize++;
+    }
+
+    /**
+     * Records the time from the append to now of every message before an acknowledged offset
+     */
+    private void recordAcknowledged(LatencyHistogram histogram, long acknowledged) {
+        long now = System.nanoTime();
+        synchronized (appendOffsets) {
+            while (appendSize > 0 && appendOffsets[appendHead] < acknowledged) {
+                histogram.record((now - appendNanos[appendHead]) / 1000);
+                appendHead = (appendHead + 1) % APPEND_TIMES;
+                appendSize--;
+            }
+        }
+    }
+
+    private static OutboundJournal openJournal(File directory) {
+        try {
+            return new OutboundJournal(directory, OutboundJournal.DEFAULT_SEGMENT_SIZE);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open the outbound journal, messages are buffered in memory", e);
+            return null;
+        }
+    }
+
+    /**
+     * Schedules a rewind unless one is waiting to run already
+     */
+    private void scheduleRewind() {
+        if (rewindScheduled.compareAndSet(false, true)) {
+            execute(rewindTask);
+        }
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            execute(drainTask);
+        }
+    }
+
+    /**
+     * Runs a task on the sender thread. After close the task is dropped, what it would have sent
+     * is still in the journal.
+     */
+    private void execute(Runnable task) {
+        try {
+            sender.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed, the client may still call back from its own thread
+        }
+    }
+
+    /**
+     * Sends journal messages until the in-flight window is full, runs on the sender thread
+     */
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled.set(false);
+            if (journal == null || !mqttAndroidClient.isConnected()) {
+                return;
+            }
+            int window = MAX_IN_FLIGHT - inFlight.size();
+            if (window <= 0) {
+                return;
+            }
+            failedOffset = -1;
+            long next = journal.read(readOffset, window, sendHandler);
+            // A message the client did not take is tried again on the next drain
+            readOffset = failedOffset >= 0 ? failedOffset : next;
+        }
+    };
+
+    private final OutboundJournal.EntryHandler sendHandler = new OutboundJournal.EntryHandler() {
+        @Override
+        public void onEntry(long offset, long nextOffset, String topic, byte[] payload) {
+            if (failedOffset >= 0) {
+                return;
+            }
+            InFlight message = new InFlight(nextOffset, System.nanoTime(), generation);
+            try {
+                mqttAndroidClient.publish(topic, new MqttMessage(payload), message, deliveryListener);
+            } catch (MqttException e) {
+                Log.w(TAG, "Publish of journal offset " + offset + " failed: " + e);
+                failedOffset = offset;
+                return;
+            }
+            inFlight.addLast(message);
+            inFlightCount = inFlight.size();
+            publishedMessages.incrementAndGet();
+            publishedBytes.addAndGet(MqttPackets.publishPacketSize(topic.length(), payload.length, DEFAULT_QOS));
+        }
+    };
+
+    /**
+     * Acknowledges the journal up to the oldest message that is still in flight, runs on the
+     * sender thread
+     */
+    private final Runnable acknowledgeTask = new Runnable() {
+        @Override
+        public void run() {
+            long acknowledged = -1;
+            while (!inFlight.isEmpty() && inFlight.peekFirst().delivered) {
+                acknowledged = inFlight.pollFirst().nextOffset;
+            }
+            inFlightCount = inFlight.size();
+            if (acknowledged >= 0) {
+                journal.acknowledge(acknowledged);
+                UplinkMetrics uplinkMetrics = metrics;
+                if (uplinkMetrics != null) {
+                    recordAcknowledged(uplinkMetrics.enqueueToAck, acknowledged);
+                }
+                long first = firstMessageOffset.get();
+                StartupTimeline timeline = startupTimeline;
+                if (first >= 0 && acknowledged > first && timeline != null
+                        && timeline.mark(StartupTimeline.Phase.FIRST_READING_ACKED)) {
+                    Log.i(TAG, "Startup timeline:\n" + timeline);
+                }
+            }
+            drainTask.run();
+        }
+    };
+
+    /**
+     * Starts over from the acknowledged offset, runs on the sender thread. The messages in flight
+     * are forgotten: their acknowledgements and failures are ignored, they are sent again.
+     */
+    private final Runnable rewindTask = new Runnable() {
+        @Override
+        public void run() {
+            // The generation goes up before the next rewind can be scheduled
+            generation++;
+            rewindScheduled.set(false);
+            if (journal == null) {
+                return;
+            }
+            inFlight.clear();
+            inFlightCount = 0;
+            readOffset = journal.getAckedOffset();
+            drainTask.run();
+        }
+    };
+
+    private final IMqttActionListener deliveryListener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken asyncActionToken) {
+            InFlight message = (InFlight) asyncActionToken.getUserContext();
+            if (message == null || message.generation != generation) {
+                // Sent before a rewind, or by the client from its own persistence after a restart
+                return;
+            }
+            message.delivered = true;
+            UplinkMetrics uplinkMetrics = metrics;
+            if (uplinkMetrics != null) {
+                uplinkMetrics.sendToAck.recordSinceNanos(message.sentNanos);
+            }
+            execute(acknowledgeTask);
+        }
+
+        @Override
+        public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+            UplinkMetrics uplinkMetrics = metrics;
+            if (uplinkMetrics != null) {
+                uplinkMetrics.deliveryFailures.increment();
+            }
+            // A failed window fails message by message, it is sent again once
+            if (!rewindScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            InFlight message = (InFlight) asyncActionToken.getUserContext();
+            if (message == null || message.generation != generation) {
+                rewindScheduled.set(false);
+                return;
+            }
+            Log.w(TAG, "Delivery failed, sending again from the acknowledged offset: " + exception);
+            execute(rewindTask);
+        }
+    };
+
+    /**
+     * A journal message waiting for its acknowledgement
+     */
+    private static final class InFlight {
+        final long nextOffset;
+        final long sentNanos;
+        // The generation of the helper when the message was sent
+        final int generation;
+        volatile boolean delivered;
+
+        InFlight(long nextOffset, long sentNanos, int generation) {
+            this.nextOffset = nextOffset;
+            this.sentNanos = sentNanos;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * The metrics of the uplink, looked up once
+     */
+    private static final class UplinkMetrics {
+        final MetricsRegistry.Counter connects;
+        final MetricsRegistry.Counter reconnects;
+        final MetricsRegistry.Counter connectionsLost;
+        final MetricsRegistry.Counter delivered;
+        final MetricsRegistry.Counter deliveryFailures;
+        final LatencyHistogram enqueueToAck;
+        final LatencyHistogram sendToAck;
+
+        UplinkMetrics(MetricsRegistry registry) {
+            connects = registry.counter("mqtt.connects");
+            reconnects = registry.counter("mqtt.reconnects");
+            connectionsLost = registry.counter("mqtt.connections_lost");
+            delivered = registry.meter("mqtt.delivered");
+            deliveryFailures = registry.counter("mqtt.delivery_failures");
+            enqueueToAck = registry.histogram("mqtt.enqueue_to_ack_us");
+            sendToAck = registry.histogram("mqtt.send_to_ack_us");
+        }
+    }
+
+    /**
+     * @return the number of PUBLISH packets handed to the client since the helper was created
+     */
+    public long getPublishedMessages() {
+        return publishedMessages.get();
+    }
+
+    /**
+     * @return the number of bytes of PUBLISH packets sent since the helper was created
+     */
+    public long getPublishedBytes() {
+        return publishedBytes.get();
+    }
 }
@@ -1,7 +1,12 @@
 package com.example.androidblegatewaymqttclient;
 
+import android.Manifest;
 import android.annotation.TargetApi;
 import android.app.IntentService;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
@@ -19,15 +24,28 @@ import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 // This is required to allow us to use the lollipop and later scan APIs
@@ -38,14 +56,88 @@ public class PSoCCapSenseLedService extends Service {
     private static BluetoothManager mBluetoothManager;
     private static BluetoothAdapter mBluetoothAdapter;
     private static BluetoothLeScanner mLEScanner;
-    private static BluetoothDevice mLeDevice;
-    private static BluetoothGatt mBluetoothGatt;
 
-    // Bluetooth characteristics that we need to read/write
-    private static BluetoothGattCharacteristic batteryCharacteristic;
-    private static BluetoothGattCharacteristic temperatureCharacteristic;
-    private static BluetoothGattCharacteristic humidityCharacteristic;
+    // One session per peripheral, keyed by MAC address
+    private final Map<String, BleDeviceSession> mSessions = new ConcurrentHashMap<>();
 
+    // Maximum number of peripherals the gateway keeps connected at the same time
+    public final static int DEFAULT_MAX_CONNECTIONS = 7;
+    private volatile int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile boolean mScanning;
+    // Peripherals the scan looks for before it backs off, 0 for as many as connection slots
+    private volatile int mExpectedNodes;
+
+    // Connect to the peripherals found and discover their services without the buttons
+    private volatile boolean mAutoConnect;
+    // Time the scan collects results after a new peripheral, so the strongest ones connect first
+    public final static long AUTO_CONNECT_SETTLE_MS = 300;
+    private volatile boolean mAutoConnectPending;
+    // Discoveries a connection gets after the first one failed, and the time before each of them
+    public final static int MAX_DISCOVERY_RETRIES = 2;
+    public final static long DISCOVERY_RETRY_DELAY_MS = 500;
+
+    // Bring-up phases from the start of the process to the first reading the broker acknowledged
+    private volatile StartupTimeline mStartupTimeline;
+
+    // Bring up without the buttons whenever the service starts, also after Android restarted it
+    public final static boolean AUTO_BRING_UP = true;
+
+    // The MQTT client and the stages that publish the samples, as long as the service lives
+    private GatewayUplink mUplink;
+
+    // Notification of the foreground service, the gateway runs as long as it is shown
+    private final static String NOTIFICATION_CHANNEL_ID = "gateway";
+    private final static int NOTIFICATION_ID = 1;
+
+    // Decodes the values, keeps the latest value of every channel of every peripheral and
+    // delivers every sample to the MQTT side and the UI, in process
+    private final SensorPipeline mPipeline = new SensorPipeline();
+
+    // Compressed on-disk copy of every sample, with downsampled tiers kept for longer
+    private final static String TIMESERIES_DIRECTORY = "timeseries";
+    private TimeSeriesStore mTimeSeriesStore;
+
+    // Counters, gauges and latencies of the whole gateway, published on gateway/stats and
+    // printed by dumpsys
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+
+    // Told about every peripheral that connects or disconnects, for the retained presence
+    private volatile PresenceListener mPresenceListener;
+
+    // Handler used to time out GATT operations that never get a callback
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Reads the characteristics that cannot notify, on intervals that follow how much they move
+    private final GattPollScheduler mPollScheduler = new GattPollScheduler(mHandler);
+
+    // Scans hard while peripherals are missing and backs off once they are all connected
+    private final BleScanScheduler mScanScheduler = new BleScanScheduler(mHandler, new BleScanScheduler.Radio() {
+        @Override
+        public void startScan(int scanMode) {
+            startRadioScan(scanMode);
+        }
+
+        @Override
+        public void stopScan() {
+            stopRadioScan();
+        }
+    }, Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+
+    // Services and characteristics of every peripheral, so a reconnect can skip discovery
+    private final GattServiceCache mServiceCache = new GattServiceCache();
+
+    // Reconnects the peripherals that drop, with jittered exponential backoff
+    private final BleReconnectManager mReconnectManager = new BleReconnectManager(mHandler, new BleReconnectManager.Connector() {
+        @Override
+        public boolean reconnect(String address) {
+            return connect(address);
+        }
+
+        @Override
+        public void cancel(String address) {
+            cancelConnect(address);
+        }
+    });
 
     // UUIDs for the service and characteristics that the custom CapSenseLED service uses
     private final static String batteryServiceUUID = "0000180F-0000-1000-8000-00805F9B34FB";
@@ -55,13 +147,13 @@ public class PSoCCapSenseLedService extends Service {
     public final static String temperatureCharacteristicUUID = "00002A6E-0000-1000-8000-00805F9B34FB";
     public final static String humidityCharacteristicUUID = "00002A6F-0000-1000-8000-00805F9B34FB";
 
-    // Variables to keep track of the BLE Characteristic Value
-    private static String batteryValue = "-";
-    private static String temperatureValue = "-";
-    private static String humidityValue = "-";
+    // Client Characteristic Configuration descriptor, turns notifications and indications on and off
+    public final static UUID CLIENT_CHARACTERISTIC_CONFIG_UUID =
+            UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
 
-    // Variable for keep track of current characteristic and set the topic
-    private static String currentService;
+    // Stream every notifiable characteristic of every ready peripheral, the CapSense switch turns it off
+    public final static boolean DEFAULT_STREAMING = true;
+    private volatile boolean mStreaming = DEFAULT_STREAMING;
 
     // Actions used during broadcasts to the main activity
     public final static String ACTION_BLESCAN_CALLBACK =
@@ -72,8 +164,14 @@ public class PSoCCapSenseLedService extends Service {
             "com.cypress.academy.ble101.ACTION_DISCONNECTED";
     public final static String ACTION_SERVICES_DISCOVERED =
             "com.cypress.academy.ble101.ACTION_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_RECEIVED =
-            "com.cypress.academy.ble101.ACTION_DATA_RECEIVED";
+
+    // Stops the gateway, it keeps running when the activity goes away
+    public final static String ACTION_STOP_GATEWAY =
+            "com.cypress.academy.ble101.ACTION_STOP_GATEWAY";
+
+    // Extra added to every broadcast with the MAC address of the peripheral it is about
+    public final static String EXTRA_ADDRESS =
+            "com.cypress.academy.ble101.EXTRA_ADDRESS";
 
     public PSoCCapSenseLedService() {
     }
@@ -94,9 +192,172 @@ public class PSoCCapSenseLedService extends Service {
 
     @Override
     public boolean onUnbind(Intent intent) {
-        // The BLE close method is called when we unbind the service to free up the resources.
-        close();
-        return super.onUnbind(intent);
+        // The activity only watches, the sessions and the uplink stay until the gateway is stopped
+        return true;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+    }
+
+    /**
+     * Creates the gateway: Bluetooth, the on-disk store and the MQTT side, which starts
+     * connecting while Bluetooth comes up.
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mStartupTimeline = new StartupTimeline(launchNanos());
+        registerMetrics();
+        initialize();
+        mUplink = new GatewayUplink(getApplicationContext(), mStartupTimeline, mMetrics);
+        mUplink.start(this);
+    }
+
+    /**
+     * Keeps the gateway running in the foreground, with or without the activity, and brings it up
+     * when {@link #AUTO_BRING_UP} is set. {@link #ACTION_STOP_GATEWAY} stops it.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP_GATEWAY.equals(intent.getAction())) {
+            stopForeground(true);
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        startForeground(NOTIFICATION_ID, buildNotification());
+        if (AUTO_BRING_UP) {
+            startAutoBringUp();
+        }
+        // Android starts the gateway again after it had to kill it, with a null intent
+        return START_STICKY;
+    }
+
+    /**
+     * Adds the gauges of the BLE side, they are read when the metrics are published
+     */
+    private void registerMetrics() {
+        mMetrics.gauge("ble.known", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return mSessions.size();
+            }
+        });
+        mMetrics.gauge("ble.connected", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return getConnectedCount();
+            }
+        });
+        mMetrics.gauge("ble.reconnect.drops", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return mReconnectManager.getDropCount();
+            }
+        });
+        mMetrics.gauge("ble.reconnect.recoveries", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return mReconnectManager.getRecoveryCount();
+            }
+        });
+        mMetrics.gauge("ble.reconnect.max_time_to_data_ms", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return mReconnectManager.getMaxTimeToDataMs();
+            }
+        });
+        mMetrics.gauge("ble.service_cache.hits", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return mServiceCache.getHitCount();
+            }
+        });
+        mMetrics.gauge("ble.service_cache.misses", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return mServiceCache.getMissCount();
+            }
+        });
+    }
+
+    /**
+     * Prints the bring-up and the metrics, for {@code adb shell dumpsys activity service
+     * PSoCCapSenseLedService}
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        StartupTimeline timeline = mStartupTimeline;
+        if (timeline != null) {
+            writer.println("Startup timeline:");
+            writer.print(timeline);
+        }
+        writer.println("Metrics:");
+        writer.print(mMetrics);
+    }
+
+    /**
+     * @return the System.nanoTime() of the start of the process, or now where it is not known
+     */
+    private static long launchNanos() {
+        long now = System.nanoTime();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return now;
+        }
+        long sinceStartMs = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+        return now - Math.max(0, sinceStartMs) * 1000000L;
+    }
+
+    /**
+     * @return the notification of the foreground service, with the number of peripherals connected
+     */
+    private Notification buildNotification() {
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL_ID,
+                    getString(R.string.gateway_channel), NotificationManager.IMPORTANCE_LOW));
+            builder = new Notification.Builder(this, NOTIFICATION_CHANNEL_ID);
+        } else {
+            //noinspection deprecation
+            builder = new Notification.Builder(this);
+        }
+        PendingIntent openActivity = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        return builder.setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.gateway_notification, getConnectedCount(), getExpectedNodes()))
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentIntent(openActivity)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .build();
+    }
+
+    private void updateNotification() {
+        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.notify(NOTIFICATION_ID, buildNotification());
+    }
+
+    /**
+     * Starts the automatic bring-up: scan, connect, discover and subscribe without the buttons.
+     *
+     * @return false while Bluetooth is off or scanning is not permitted, call again once it is
+     */
+    public boolean startAutoBringUp() {
+        setAutoConnect(true);
+        if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled() || !hasScanPermission()) {
+            return false;
+        }
+        mark(StartupTimeline.Phase.BLE_READY);
+        if (!mScanScheduler.isRunning()) {
+            scan();
+        }
+        return true;
+    }
+
+    private boolean hasScanPermission() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                || checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED;
     }
 
     private final IBinder mBinder = new LocalBinder();
@@ -123,19 +384,74 @@ public class PSoCCapSenseLedService extends Service {
             return false;
         }
 
+        if (mTimeSeriesStore == null) {
+            try {
+                mTimeSeriesStore = TimeSeriesStore.withDefaults(new File(getFilesDir(), TIMESERIES_DIRECTORY));
+                mTimeSeriesStore.start(mPipeline.getEventBus(), TimeSeriesStore.DEFAULT_QUEUE_CAPACITY);
+            } catch (IOException e) {
+                // The gateway still forwards the samples, they are only not kept on the device
+                Log.e(TAG, "Unable to open the time series store", e);
+                mTimeSeriesStore = null;
+            }
+        }
+
         return true;
     }
 
+    @Override
+    public void onDestroy() {
+        // The peripherals go offline first, then the uplink marks the gateway offline
+        close();
+        if (mUplink != null) {
+            mUplink.stop(this);
+            mUplink = null;
+        }
+        // Writes the samples still in memory, on the worker thread of the store
+        if (mTimeSeriesStore != null) {
+            Log.i(TAG, "Time series store: " + mTimeSeriesStore);
+            mTimeSeriesStore.stop();
+            mTimeSeriesStore = null;
+        }
+        super.onDestroy();
+    }
+
     /**
-     * Scans for BLE devices that support the service we are looking for
+     * Scans for BLE devices that support the service we are looking for.
+     * Scanning keeps running until stopScan() is called, every new peripheral gets its own
+     * session. The BleScanScheduler picks the scan mode: low latency while peripherals are
+     * missing, duty cycled low power when the search found nothing new for a while and
+     * opportunistic once the expected peripherals are all connected.
      */
     public void scan() {
+        if (mBluetoothAdapter == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return;
+        }
+        mScanScheduler.setExpectedCount(getExpectedNodes());
+        mScanScheduler.onConnectedCount(getConnectedCount());
+        mScanScheduler.start();
+        mark(StartupTimeline.Phase.SCAN_STARTED);
+    }
+
+    /**
+     * Stops a scan started with scan()
+     */
+    public void stopScan() {
+        mScanScheduler.stop();
+    }
+
+    /**
+     * Starts the scan of the radio, called by the BleScanScheduler
+     *
+     * @param scanMode one of the SCAN_MODE constants of ScanSettings
+     */
+    private void startRadioScan(int scanMode) {
         /* Scan for devices and look for the one with the service that we want */
         UUID batteryService = UUID.fromString(batteryServiceUUID);
         UUID environmentalSensingService = UUID.fromString(environmentalSensingServiceUUID);
         UUID[] listServiceArray = {batteryService, environmentalSensingService};
 
-        // Use old scan method for versions older than lollipop
+        // Use old scan method for versions older than lollipop, it has no scan modes
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
             //noinspection deprecation
             mBluetoothAdapter.startLeScan(listServiceArray, mLeScanCallback);
@@ -144,7 +460,7 @@ public class PSoCCapSenseLedService extends Service {
             List<ScanFilter> filters;
             mLEScanner = mBluetoothAdapter.getBluetoothLeScanner();
             settings = new ScanSettings.Builder()
-                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                    .setScanMode(scanMode)
                     .build();
             filters = new ArrayList<>();
             // Scan selected service
@@ -156,120 +472,488 @@ public class PSoCCapSenseLedService extends Service {
             filters.add(filter2);
             mLEScanner.startScan(filters, settings, mScanCallback);
         }
+        mScanning = true;
+    }
+
+    /**
+     * Stops the scan of the radio, called by the BleScanScheduler
+     */
+    private void stopRadioScan() {
+        if (!mScanning || mBluetoothAdapter == null) {
+            return;
+        }
+        mScanning = false;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            //noinspection deprecation
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+        } else if (mLEScanner != null) {
+            mLEScanner.stopScan(mScanCallback);
+        }
+    }
+
+    /**
+     * Turns the automatic bring-up on or off. When on, the peripherals the scan finds are
+     * connected, strongest first, and their services are discovered right after they connect,
+     * so the values stream without the Connect and Discover buttons.
+     */
+    public void setAutoConnect(boolean autoConnect) {
+        mAutoConnect = autoConnect;
+    }
+
+    public boolean isAutoConnect() {
+        return mAutoConnect;
+    }
+
+    /**
+     * @return the phases of the bring-up so far
+     */
+    public StartupTimeline getStartupTimeline() {
+        return mStartupTimeline;
+    }
+
+    /**
+     * @return the MQTT side of the gateway, null once the service is destroyed
+     */
+    public GatewayUplink getUplink() {
+        return mUplink;
+    }
+
+    /**
+     * @return the metrics of the gateway, to read them locally
+     */
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    private void mark(StartupTimeline.Phase phase) {
+        StartupTimeline timeline = mStartupTimeline;
+        if (timeline != null) {
+            timeline.mark(phase);
+        }
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects the peripherals found during the settle time, strongest first
+     */
+    private final Runnable mAutoConnectTask = new Runnable() {
+        @Override
+        public void run() {
+            mAutoConnectPending = false;
+            if (mAutoConnect) {
+                connect();
+            }
+        }
+    };
+
+    /**
+     * Sets how many peripherals the scan looks for before it backs off to low power.
      *
-     * @return Return true if the connection is initiated successfully. The connection result
-     * is reported asynchronously through the
+     * @param expectedNodes the number of peripherals, 0 for as many as connection slots
+     */
+    public void setExpectedNodes(int expectedNodes) {
+        if (expectedNodes < 0) {
+            throw new IllegalArgumentException("expectedNodes must not be negative");
+        }
+        mExpectedNodes = expectedNodes;
+        mScanScheduler.setExpectedCount(getExpectedNodes());
+    }
+
+    public int getExpectedNodes() {
+        int expected = mExpectedNodes;
+        return expected == 0 ? mMaxConnections : Math.min(expected, mMaxConnections);
+    }
+
+    /**
+     * @return the scheduler of the scan, with the signal strength of every peripheral found
+     */
+    public BleScanScheduler getScanScheduler() {
+        return mScanScheduler;
+    }
+
+    /**
+     * Sets how many peripherals the gateway keeps connected at the same time.
+     *
+     * @param maxConnections the connection ceiling, at least 1
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        mMaxConnections = maxConnections;
+        mScanScheduler.setExpectedCount(getExpectedNodes());
+    }
+
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * Connects to the GATT servers of all discovered peripherals, up to the connection ceiling.
+     * The peripherals with the strongest smoothed signal go first, so when there are more of
+     * them than connection slots the ones in range get the slots.
+     *
+     * @return Return true if at least one connection is initiated successfully. The connection
+     * results are reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
      */
     public boolean connect() {
+        boolean initiated = false;
+        for (String address : mScanScheduler.getCandidates()) {
+            BleDeviceSession session = mSessions.get(address);
+            if (session != null && !session.isActive() && connect(address)) {
+                initiated = true;
+            }
+        }
+        return initiated;
+    }
+
+    /**
+     * Connects to the GATT server hosted on one Bluetooth LE device.
+     *
+     * @param address MAC address of a discovered peripheral
+     * @return Return true if the connection is initiated successfully.
+     */
+    public boolean connect(String address) {
         if (mBluetoothAdapter == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return false;
         }
+        BleDeviceSession session = mSessions.get(address);
+        if (session == null) {
+            Log.w(TAG, "Device " + address + " not discovered yet");
+            return false;
+        }
+        synchronized (mSessions) {
+            if (session.isActive()) {
+                return true;
+            }
+            if (getActiveCount() >= mMaxConnections) {
+                Log.w(TAG, "Connection ceiling of " + mMaxConnections + " reached, not connecting " + address);
+                return false;
+            }
+            session.setState(BleDeviceSession.State.CONNECTING);
+        }
 
         // Previously connected device.  Try to reconnect.
-        if (mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            return mBluetoothGatt.connect();
+        BluetoothGatt gatt = session.getGatt();
+        if (gatt != null) {
+            Log.d(TAG, "Trying to use an existing BluetoothGatt for " + address);
+            if (gatt.connect()) {
+                return true;
+            }
+            session.setState(BleDeviceSession.State.DISCONNECTED);
+            return false;
         }
 
         // We want to directly connect to the device, so we are setting the autoConnect
         // parameter to false.
-        mBluetoothGatt = mLeDevice.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
+        session.setGatt(session.getDevice().connectGatt(this, false, mGattCallback));
+        Log.d(TAG, "Trying to create a new connection to " + address);
         return true;
     }
 
     /**
-     * Runs service discovery on the connected device.
+     * Runs service discovery on every connected device.
      */
     public void discoverServices() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        if (mBluetoothAdapter == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.discoverServices();
+        for (BleDeviceSession session : mSessions.values()) {
+            BluetoothGatt gatt = session.getGatt();
+            if (gatt != null && session.getState() == BleDeviceSession.State.CONNECTED) {
+                session.setState(BleDeviceSession.State.DISCOVERING);
+                gatt.discoverServices();
+            }
+        }
     }
 
     /**
-     * Disconnects an existing connection or cancel a pending connection. The disconnection result
-     * is reported asynchronously through the
+     * Disconnects all existing connections or cancel pending connections. The disconnection
+     * results are reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        if (mBluetoothAdapter == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        // Disconnected on purpose, so none of them is reconnected
+        mReconnectManager.forgetAll();
+        for (BleDeviceSession session : mSessions.values()) {
+            BluetoothGatt gatt = session.getGatt();
+            if (gatt != null) {
+                gatt.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Gives up a connection attempt of the BleReconnectManager that did not connect in time. A
+     * pending reconnect through an existing BluetoothGatt does not always call back when it is
+     * cancelled, so the failed attempt is reported here.
+     */
+    private void cancelConnect(String address) {
+        BleDeviceSession session = mSessions.get(address);
+        if (session == null || session.getState() != BleDeviceSession.State.CONNECTING) {
+            return;
+        }
+        session.setState(BleDeviceSession.State.DISCONNECTED);
+        BluetoothGatt gatt = session.getGatt();
+        if (gatt != null) {
+            gatt.disconnect();
+        }
+        mReconnectManager.onDisconnected(address);
     }
 
     /**
-     * After using a given BLE device, the app must call this method to ensure resources are
+     * After using the BLE devices, the app must call this method to ensure resources are
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
+        stopScan();
+        mHandler.removeCallbacks(mAutoConnectTask);
+        mAutoConnectPending = false;
+        mReconnectManager.forgetAll();
+        Log.i(TAG, "Scan: " + mScanScheduler);
+        Log.i(TAG, "Reconnects: " + mReconnectManager + ", services " + mServiceCache);
+        Log.i(TAG, "Polling: " + mPollScheduler);
+        mPollScheduler.clear();
+        for (BleDeviceSession session : mSessions.values()) {
+            BluetoothGatt gatt = session.getGatt();
+            session.getOperationQueue().attach(null);
+            if (gatt != null) {
+                gatt.close();
+                session.setGatt(null);
+            }
+            if (session.isConnected()) {
+                // Closing the GATT client does not call back with the disconnect
+                notifyPresence(session.getAddress(), false);
+            }
+            session.clearNotifying();
+            session.setState(BleDeviceSession.State.DISCONNECTED);
+        }
+    }
+
+    /**
+     * This method is used to read the ble characteristic. The read is queued behind the other
+     * GATT operations of the peripheral and issued when the connection is idle.
+     */
+    public void readBleCharacteristic(BleDeviceSession session, BluetoothGattCharacteristic characteristic) {
+        if (mBluetoothAdapter == null || characteristic == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return;
+        }
+        session.getOperationQueue().enqueue(GattOperation.read(characteristic));
+    }
+
+    /**
+     * This method is used to write the ble characteristic through the operation queue
+     */
+    public void writeBleCharacteristic(BleDeviceSession session, BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (mBluetoothAdapter == null || characteristic == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        session.getOperationQueue().enqueue(GattOperation.write(characteristic, value));
     }
 
     /**
-     * This method is used to read the ble characteristic
+     * This method is used to write a ble descriptor through the operation queue
      */
-    public void readBleCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void writeBleDescriptor(BleDeviceSession session, BluetoothGattDescriptor descriptor, byte[] value) {
+        if (mBluetoothAdapter == null || descriptor == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        session.getOperationQueue().enqueue(GattOperation.writeDescriptor(descriptor, value));
     }
 
     /**
-     * This method enables or disables notifications for the CapSense slider
+     * This method subscribes to or unsubscribes from the notifications of every sensor
+     * characteristic of every ready peripheral, and of the peripherals that get ready later. The
+     * Client Characteristic Configuration of each characteristic is written through the operation
+     * queue of its peripheral.
      *
-     * @param value Turns notifications on (1) or off (0)
+     * @param value Turns notifications on (true) or off (false)
      */
     public void writeBleCharacteristicNotification(boolean value) {
-        // Set notifications for current characteristic
-        if(currentService.equalsIgnoreCase("batteryService")) {
-            mBluetoothGatt.setCharacteristicNotification(batteryCharacteristic, value);
-        } else if(currentService.equalsIgnoreCase("environmentalSensingService")){
-            mBluetoothGatt.setCharacteristicNotification(temperatureCharacteristic, value);
-            mBluetoothGatt.setCharacteristicNotification(humidityCharacteristic, value);
-        }
-        byte[] byteVal = new byte[1];
-        if (value) {
-            byteVal[0] = 1;
-        } else {
-            byteVal[0] = 0;
+        mStreaming = value;
+        for (BleDeviceSession session : mSessions.values()) {
+            if (session.getGatt() == null || session.getState() != BleDeviceSession.State.READY) {
+                continue;
+            }
+            for (BluetoothGattCharacteristic characteristic : session.getCharacteristics()) {
+                setBleCharacteristicNotification(session, characteristic, value);
+            }
         }
-        // Write Notification value to the device
         Log.i(TAG, "CapSense Notification " + value);
     }
 
     /**
-     * This method returns the value of the selected ble characteristic
+     * This method subscribes to or unsubscribes from the notifications of one characteristic
+     * through the operation queue.
      *
-     * @return the value of the CapSense Slider
+     * @return false if the characteristic cannot notify or indicate
+     */
+    public boolean setBleCharacteristicNotification(BleDeviceSession session, BluetoothGattCharacteristic characteristic,
+                                                    boolean enable) {
+        if (mBluetoothAdapter == null || characteristic == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return false;
+        }
+        int properties = characteristic.getProperties();
+        if ((properties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) == 0) {
+            return false;
+        }
+        BluetoothGattDescriptor configuration = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG_UUID);
+        if (configuration == null) {
+            Log.w(TAG, characteristic.getUuid() + " of " + session.getAddress() + " has no configuration descriptor");
+            return false;
+        }
+        session.getOperationQueue().enqueue(GattOperation.setNotification(characteristic, configuration, enable));
+        return true;
+    }
+
+    /**
+     * Starts the values of a peripheral that just got ready: every characteristic that can
+     * notify streams when streaming is on, the others are polled by the GattPollScheduler. With
+     * streaming off the characteristics that can notify are read once.
+     */
+    private void startStreaming(BleDeviceSession session) {
+        for (BluetoothGattCharacteristic characteristic : session.getCharacteristics()) {
+            int properties = characteristic.getProperties();
+            if ((properties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) == 0
+                    || characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG_UUID) == null) {
+                mPollScheduler.add(session, characteristic);
+            } else if (!mStreaming || !setBleCharacteristicNotification(session, characteristic, true)) {
+                readBleCharacteristic(session, characteristic);
+            }
+        }
+    }
+
+    /**
+     * @return the engine that reconnects the peripherals that drop
      */
-    public String getBatteryValue() {
-        return batteryValue;
+    public BleReconnectManager getReconnectManager() {
+        return mReconnectManager;
     }
-    public String getTemperatureValue() {
-        return temperatureValue;
+
+    /**
+     * @return the services and characteristics discovered on every peripheral
+     */
+    public GattServiceCache getServiceCache() {
+        return mServiceCache;
+    }
+
+    /**
+     * @return the scheduler of the reads of the characteristics that cannot notify
+     */
+    public GattPollScheduler getPollScheduler() {
+        return mPollScheduler;
+    }
+
+    /**
+     * @return true if notifications are turned on for the peripherals
+     */
+    public boolean isStreaming() {
+        return mStreaming;
+    }
+
+    /**
+     * This method returns the session of one peripheral
+     *
+     * @param address MAC address of the peripheral
+     * @return the session, or null when the peripheral has not been discovered
+     */
+    public BleDeviceSession getSession(String address) {
+        return address == null ? null : mSessions.get(address);
+    }
+
+    /**
+     * @return the store with the latest value of every channel of every peripheral
+     */
+    public SensorSnapshotStore getSnapshotStore() {
+        return mPipeline.getSnapshotStore();
+    }
+
+    /**
+     * @return the bus every decoded sample is published on
+     */
+    public SensorEventBus getEventBus() {
+        return mPipeline.getEventBus();
+    }
+
+    /**
+     * @return the recent samples of every channel of every peripheral
+     */
+    public ReadingHistory getHistory() {
+        return mPipeline.getHistory();
+    }
+
+    /**
+     * @return the on-disk store of every sample, or null when it could not be opened
+     */
+    public TimeSeriesStore getTimeSeriesStore() {
+        return mTimeSeriesStore;
+    }
+
+    /**
+     * @return all peripherals discovered so far
+     */
+    public Collection<BleDeviceSession> getSessions() {
+        return mSessions.values();
+    }
+
+    /**
+     * @return the number of peripherals with an open GATT connection
+     */
+    public int getConnectedCount() {
+        int count = 0;
+        for (BleDeviceSession session : mSessions.values()) {
+            if (session.isConnected()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int getActiveCount() {
+        int count = 0;
+        for (BleDeviceSession session : mSessions.values()) {
+            if (session.isActive()) {
+                count++;
+            }
+        }
+        return count;
     }
-    public String getHumidityValue() { return humidityValue; }
-    public String getCurrentService() {
-        return currentService;
+
+    /**
+     * Records the signal of a peripheral found by the scan, and creates a session for it and tells
+     * the main activity about it the first time it is found.
+     *
+     * @param device the peripheral found by the scan
+     * @param rssi the signal strength of the advertisement in dBm
+     */
+    private void onDeviceFound(BluetoothDevice device, int rssi) {
+        String address = device.getAddress();
+        mScanScheduler.onResult(address, rssi);
+        if (mSessions.containsKey(address)) {
+            return;
+        }
+        BleDeviceSession session = new BleDeviceSession(device, mHandler);
+        session.setSampleMeter(mMetrics.meter("ble.samples." + address));
+        mSessions.put(address, session);
+        Log.i(TAG, "Found device " + address + " at " + rssi + " dBm, " + mSessions.size() + " known");
+        mark(StartupTimeline.Phase.DEVICE_FOUND);
+        if (mAutoConnect && !mAutoConnectPending) {
+            mAutoConnectPending = true;
+            mHandler.postDelayed(mAutoConnectTask, AUTO_CONNECT_SETTLE_MS);
+        }
+        broadcastUpdate(ACTION_BLESCAN_CALLBACK, address); // Tell the main activity that a device has been found
     }
 
 
@@ -283,10 +967,7 @@ public class PSoCCapSenseLedService extends Service {
             new BluetoothAdapter.LeScanCallback() {
                 @Override
                 public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-                    mLeDevice = device;
-                    //noinspection deprecation
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback); // Stop scanning after the first device is found
-                    broadcastUpdate(ACTION_BLESCAN_CALLBACK); // Tell the main activity that a device has been found
+                    onDeviceFound(device, rssi);
                 }
             };
 
@@ -299,9 +980,7 @@ public class PSoCCapSenseLedService extends Service {
     private final ScanCallback mScanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            mLeDevice = result.getDevice();
-            mLEScanner.stopScan(mScanCallback); // Stop scanning after the first device is found
-            broadcastUpdate(ACTION_BLESCAN_CALLBACK); // Tell the main activity that a device has been found
+            onDeviceFound(result.getDevice(), result.getRssi());
         }
     };
 
@@ -313,12 +992,45 @@ public class PSoCCapSenseLedService extends Service {
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            BleDeviceSession session = sessionOf(gatt);
+            if (session == null) {
+                return;
+            }
             if (newState == BluetoothProfile.STATE_CONNECTED) {
-                broadcastUpdate(ACTION_CONNECTED);
-                Log.i(TAG, "Connected to GATT server.");
+                session.setState(BleDeviceSession.State.CONNECTED);
+                session.resetDiscoveryFailures();
+                session.getOperationQueue().attach(gatt);
+                mReconnectManager.onConnected(session.getAddress());
+                broadcastUpdate(ACTION_CONNECTED, session.getAddress());
+                notifyPresence(session.getAddress(), true);
+                mScanScheduler.onConnectedCount(getConnectedCount());
+                updateNotification();
+                Log.i(TAG, "Connected to GATT server of " + session.getAddress());
+                mark(StartupTimeline.Phase.DEVICE_CONNECTED);
+                if (mServiceCache.contains(session.getAddress())) {
+                    // Known peripheral, usually a reconnect: use its services without the button
+                    resumeServices(session, gatt);
+                } else if (mAutoConnect) {
+                    session.setState(BleDeviceSession.State.DISCOVERING);
+                    gatt.discoverServices();
+                }
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(ACTION_DISCONNECTED);
+                // An attempt the BleReconnectManager cancelled was already reported
+                boolean wasActive = session.isActive();
+                session.setState(BleDeviceSession.State.DISCONNECTED);
+                session.getOperationQueue().attach(null);
+                session.clearNotifying();
+                mPollScheduler.remove(session);
+                Log.i(TAG, "GATT operations of " + session.getAddress() + ": " + session.getOperationQueue());
+                Log.i(TAG, "Disconnected from GATT server of " + session.getAddress());
+                broadcastUpdate(ACTION_DISCONNECTED, session.getAddress());
+                notifyPresence(session.getAddress(), false);
+                // Back to searching hard while the peripheral is missing
+                mScanScheduler.onConnectedCount(getConnectedCount());
+                updateNotification();
+                if (wasActive) {
+                    mReconnectManager.onDisconnected(session.getAddress());
+                }
             }
         }
 
@@ -333,27 +1045,22 @@ public class PSoCCapSenseLedService extends Service {
          */
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            // Get just the service that we are looking for
-            for (BluetoothGattService gattService : gatt.getServices()) {
-                final String uuidService = gattService.getUuid().toString();
-                if (uuidService.equalsIgnoreCase(batteryServiceUUID)) {
-                    currentService = "batteryService";
-                    System.out.println("Battery service discovered: " + uuidService);
-                    BluetoothGattService batteryService = gatt.getService(UUID.fromString(batteryServiceUUID));
-                    batteryCharacteristic = batteryService.getCharacteristic(UUID.fromString(batteryLevelCharacteristicUUID));
-                    readBleCharacteristic(batteryCharacteristic);
-                } else if (uuidService.equalsIgnoreCase(environmentalSensingServiceUUID)) {
-                    currentService = "environmentalSensingService";
-                    System.out.println("Environmental sensing service discovered: " + uuidService);
-                    BluetoothGattService bleService = gatt.getService(UUID.fromString(environmentalSensingServiceUUID));
-                    temperatureCharacteristic = bleService.getCharacteristic(UUID.fromString(temperatureCharacteristicUUID));
-                    humidityCharacteristic =  bleService.getCharacteristic(UUID.fromString(humidityCharacteristicUUID));
-                    readBleCharacteristic(temperatureCharacteristic);
-                    readBleCharacteristic(humidityCharacteristic);
-                }
+            BleDeviceSession session = sessionOf(gatt);
+            if (session == null) {
+                return;
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                onDiscoveryFailed(session, gatt, status);
+                return;
+            }
+            applyServices(session, gatt);
+            mServiceCache.put(session.getAddress(), gatt);
+            onServicesReady(session);
+            // Read the Database Hash after the subscriptions, a reconnect compares against it
+            BluetoothGattCharacteristic databaseHash = GattServiceCache.databaseHashOf(gatt);
+            if (databaseHash != null) {
+                session.getOperationQueue().enqueue(GattOperation.read(databaseHash));
             }
-            // Broadcast that service/characteristic/descriptor discovery is done
-            broadcastUpdate(ACTION_SERVICES_DISCOVERED);
         }
 
         /**
@@ -368,29 +1075,69 @@ public class PSoCCapSenseLedService extends Service {
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                // Verify that the read was the selected characteristic
-                String uuid = characteristic.getUuid().toString();
-                if(uuid.equalsIgnoreCase(batteryLevelCharacteristicUUID)) {
-                    batteryValue = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0).toString();
-                    Log.i(TAG, "Battery value received from read BLE = " + batteryValue);
-                } else if(uuid.equalsIgnoreCase(temperatureCharacteristicUUID)) {
-                    String value = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, 0).toString();
-                    temperatureValue = value.substring(0, 2) + "." + value.substring(2);
-                    Log.i(TAG, "Temperature value received from read BLE = " + temperatureValue);
-                } else if(uuid.equalsIgnoreCase(humidityCharacteristicUUID)) {
-                    String value = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 0).toString();
-                    humidityValue = value.substring(0, 2) + "." + value.substring(2);
-                    Log.i(TAG, "Humidity value received from read BLE = " + humidityValue);
+            BleDeviceSession session = sessionOf(gatt);
+            if (session == null) {
+                return;
+            }
+            if (GattServiceCache.DATABASE_HASH_UUID.equals(characteristic.getUuid())) {
+                onDatabaseHash(session, gatt, characteristic, status);
+            } else if (status == BluetoothGatt.GATT_SUCCESS) {
+                // Verify that the read was the selected characteristic, the sample goes out on the event bus
+                updateValue(session, characteristic);
+                mPollScheduler.onRead(session, characteristic);
+            }
+            // Let the next queued operation of this peripheral go
+            session.getOperationQueue().onOperationComplete(characteristic, status);
+        }
+
+        /**
+         * This is called when a characteristic write completes
+         *
+         * @param gatt the GATT database object
+         * @param characteristic the GATT characteristic that was written
+         * @param status the status of the transaction
+         */
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            BleDeviceSession session = sessionOf(gatt);
+            if (session != null) {
+                session.getOperationQueue().onOperationComplete(characteristic, status);
+            }
+        }
+
+        /**
+         * This is called when a descriptor write completes
+         *
+         * @param gatt the GATT database object
+         * @param descriptor the GATT descriptor that was written
+         * @param status the status of the transaction
+         */
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt,
+                                      BluetoothGattDescriptor descriptor,
+                                      int status) {
+            BleDeviceSession session = sessionOf(gatt);
+            if (session == null) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS
+                    && CLIENT_CHARACTERISTIC_CONFIG_UUID.equals(descriptor.getUuid())) {
+                boolean enabled = !Arrays.equals(descriptor.getValue(), BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+                session.setNotifying(descriptor.getCharacteristic().getUuid(), enabled);
+                if (enabled) {
+                    mark(StartupTimeline.Phase.SUBSCRIBED);
                 }
-                // Notify the main activity that new data is available
-                broadcastUpdate(ACTION_DATA_RECEIVED);
+                Log.i(TAG, (enabled ? "Streaming " : "Stopped streaming ") + descriptor.getCharacteristic().getUuid()
+                        + " of " + session.getAddress());
             }
+            session.getOperationQueue().onOperationComplete(descriptor, status);
         }
 
         /**
          * This is called when a characteristic with notify set changes.
-         * It broadcasts an update to the main activity with the changed data.
+         * It publishes the changed data on the event bus.
          *
          * @param gatt The GATT database object
          * @param characteristic The characteristic that was changed
@@ -398,33 +1145,190 @@ public class PSoCCapSenseLedService extends Service {
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
+            BleDeviceSession session = sessionOf(gatt);
+            if (session == null) {
+                return;
+            }
+            updateValue(session, characteristic);
+        }
+    }; // End of GATT event callback methods
 
-            String uuid = characteristic.getUuid().toString();
-            if(uuid.equalsIgnoreCase(batteryLevelCharacteristicUUID)) {
-                batteryValue = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0).toString();
-                Log.i(TAG, "Battery value received from read BLE = " + batteryValue);
-            } else if(uuid.equalsIgnoreCase(temperatureCharacteristicUUID)) {
-                String value = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, 0).toString();
-                temperatureValue = value.substring(0, 2) + "." + value.substring(2);
-                Log.i(TAG, "Temperature value received from read BLE = " + temperatureValue);
-            } else if(uuid.equalsIgnoreCase(humidityCharacteristicUUID)) {
-                String value = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 0).toString();
-                humidityValue = value.substring(0, 2) + "." + value.substring(2);
-                Log.i(TAG, "Humidity value received from read BLE = " + humidityValue);
+    /**
+     * Takes the sensor characteristics of a peripheral from the services of its connection.
+     */
+    private void applyServices(BleDeviceSession session, BluetoothGatt gatt) {
+        // Get just the service that we are looking for
+        for (BluetoothGattService gattService : gatt.getServices()) {
+            final String uuidService = gattService.getUuid().toString();
+            if (uuidService.equalsIgnoreCase(batteryServiceUUID)) {
+                session.setCurrentService("batteryService");
+                Log.i(TAG, "Battery service discovered on " + session.getAddress());
+                BluetoothGattService batteryService = gatt.getService(UUID.fromString(batteryServiceUUID));
+                session.setBatteryCharacteristic(batteryService.getCharacteristic(UUID.fromString(batteryLevelCharacteristicUUID)));
+            } else if (uuidService.equalsIgnoreCase(environmentalSensingServiceUUID)) {
+                session.setCurrentService("environmentalSensingService");
+                Log.i(TAG, "Environmental sensing service discovered on " + session.getAddress());
+                BluetoothGattService bleService = gatt.getService(UUID.fromString(environmentalSensingServiceUUID));
+                session.setTemperatureCharacteristic(bleService.getCharacteristic(UUID.fromString(temperatureCharacteristicUUID)));
+                session.setHumidityCharacteristic(bleService.getCharacteristic(UUID.fromString(humidityCharacteristicUUID)));
             }
+        }
+    }
 
-            // Notify the main activity that new data is available
-            broadcastUpdate(ACTION_DATA_RECEIVED);
+    /**
+     * Handles a failed service discovery. The peripheral is not made ready on a partial database:
+     * the discovery is run again a few times and the connection is dropped after that, so that a
+     * kept peripheral goes through the reconnect and a new one is connected again by the scan.
+     */
+    private void onDiscoveryFailed(final BleDeviceSession session, final BluetoothGatt gatt, int status) {
+        String address = session.getAddress();
+        if (session.onDiscoveryFailed() > MAX_DISCOVERY_RETRIES) {
+            Log.w(TAG, "Service discovery on " + address + " failed with status " + status + ", disconnecting");
+            gatt.disconnect();
+            return;
         }
-    }; // End of GATT event callback methods
+        Log.w(TAG, "Service discovery on " + address + " failed with status " + status + ", retrying");
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                // The connection may have gone in the meantime
+                if (session.getGatt() != gatt || session.getState() != BleDeviceSession.State.DISCOVERING) {
+                    return;
+                }
+                if (!gatt.discoverServices()) {
+                    gatt.disconnect();
+                }
+            }
+        }, DISCOVERY_RETRY_DELAY_MS);
+    }
+
+    /**
+     * Makes a peripheral ready once its characteristics are known, by discovery or from the cache.
+     */
+    private void onServicesReady(BleDeviceSession session) {
+        session.setState(BleDeviceSession.State.READY);
+        mark(StartupTimeline.Phase.SERVICES_READY);
+        // Reconnected when it drops from now on
+        mReconnectManager.keep(session.getAddress());
+        // The values stream from now on, at the interval of the sensor instead of one read each
+        startStreaming(session);
+        // Broadcast that service/characteristic/descriptor discovery is done
+        broadcastUpdate(ACTION_SERVICES_DISCOVERED, session.getAddress());
+    }
+
+    /**
+     * Gets a known peripheral that connected ready. The services its BluetoothGatt kept from the
+     * last connection are used when they match the cache and, on peripherals with a Database
+     * Hash, once the hash read back equals the cached one. Otherwise they are discovered again.
+     */
+    private void resumeServices(BleDeviceSession session, BluetoothGatt gatt) {
+        String address = session.getAddress();
+        session.setState(BleDeviceSession.State.DISCOVERING);
+        if (!mServiceCache.matches(address, gatt)) {
+            rediscoverServices(session, gatt);
+            return;
+        }
+        BluetoothGattCharacteristic databaseHash = GattServiceCache.databaseHashOf(gatt);
+        if (databaseHash != null && mServiceCache.getDatabaseHash(address) != null) {
+            // onDatabaseHash goes on from here
+            session.getOperationQueue().enqueue(GattOperation.read(databaseHash));
+            return;
+        }
+        useCachedServices(session, gatt);
+    }
+
+    /**
+     * Handles a read of the Database Hash: after a discovery it goes to the cache, after a
+     * reconnect it decides whether the cached services are still valid.
+     */
+    private void onDatabaseHash(BleDeviceSession session, BluetoothGatt gatt,
+                                BluetoothGattCharacteristic characteristic, int status) {
+        String address = session.getAddress();
+        byte[] hash = status == BluetoothGatt.GATT_SUCCESS ? characteristic.getValue() : null;
+        if (session.getState() != BleDeviceSession.State.DISCOVERING) {
+            mServiceCache.setDatabaseHash(address, hash);
+        } else if (hash != null && Arrays.equals(hash, mServiceCache.getDatabaseHash(address))) {
+            useCachedServices(session, gatt);
+        } else {
+            rediscoverServices(session, gatt);
+        }
+    }
+
+    private void useCachedServices(BleDeviceSession session, BluetoothGatt gatt) {
+        mServiceCache.recordHit();
+        Log.i(TAG, "Using the cached services of " + session.getAddress());
+        applyServices(session, gatt);
+        onServicesReady(session);
+    }
+
+    private void rediscoverServices(BleDeviceSession session, BluetoothGatt gatt) {
+        mServiceCache.recordMiss();
+        mServiceCache.invalidate(session.getAddress());
+        Log.i(TAG, "GATT database of " + session.getAddress() + " changed, discovering the services");
+        session.setState(BleDeviceSession.State.DISCOVERING);
+        gatt.discoverServices();
+    }
+
+    /**
+     * Looks up the session a GATT callback belongs to.
+     *
+     * @param gatt The GATT database object passed to the callback
+     * @return the session, or null for a peripheral that is no longer known
+     */
+    private BleDeviceSession sessionOf(BluetoothGatt gatt) {
+        return mSessions.get(gatt.getDevice().getAddress());
+    }
+
+    /**
+     * Hands the value of a characteristic that was read or notified to the pipeline, which
+     * decodes it into a fixed-point int, publishes it in the snapshot store and delivers it to
+     * the listeners of the event bus.
+     *
+     * @param session the peripheral the value came from
+     * @param characteristic the GATT characteristic that holds the value
+     * @return the channel that was updated, or null for an unknown or empty characteristic
+     */
+    private SensorChannel updateValue(BleDeviceSession session, BluetoothGattCharacteristic characteristic) {
+        SensorChannel channel = SensorChannel.fromUuid(characteristic.getUuid());
+        if (channel == null) {
+            return null;
+        }
+        if (!mPipeline.onCharacteristicValue(session.getAddress(), channel, characteristic.getValue(),
+                System.currentTimeMillis())) {
+            return null;
+        }
+        mReconnectManager.onData(session.getAddress());
+        MetricsRegistry.Counter sampleMeter = session.getSampleMeter();
+        if (sampleMeter != null) {
+            sampleMeter.increment();
+        }
+        mark(StartupTimeline.Phase.FIRST_SAMPLE);
+        return channel;
+    }
+
+    /**
+     * @param listener told about every peripheral that connects or disconnects, null for none
+     */
+    public void setPresenceListener(PresenceListener listener) {
+        mPresenceListener = listener;
+    }
+
+    private void notifyPresence(String address, boolean online) {
+        PresenceListener listener = mPresenceListener;
+        if (listener != null) {
+            listener.onPresence(address, online);
+        }
+    }
 
     /**
      * Sends a broadcast to the listener in the main activity.
      *
      * @param action The type of action that occurred.
+     * @param address MAC address of the peripheral the action is about
      */
-    private void broadcastUpdate(final String action) {
+    private void broadcastUpdate(final String action, final String address) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
         sendBroadcast(intent);
     }
 
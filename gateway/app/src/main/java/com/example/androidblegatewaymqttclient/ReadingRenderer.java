@@ -0,0 +1,360 @@
+package com.example.androidblegatewaymqttclient;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows the samples on the screen at the pace of the display instead of the pace of the
+ * peripherals.
+ * <p>
+ * The renderer listens on the event bus without an executor, so a sample only updates a table
+ * under a lock on the thread that published it. The first sample after a frame asks the
+ * Choreographer for the next frame, and in that frame every view whose value changed gets one
+ * update, however many samples came in between: at most one update per view per frame. A view is
+ * only touched when the value differs from the one it shows. The text is formatted into a char
+ * array of the view, without a String per sample.
+ * <p>
+ * The three value views of the layout show the latest value of any peripheral, the RecyclerView
+ * one row per peripheral, so the screen scales to many of them with only the visible rows bound.
+ */
+public class ReadingRenderer implements SampleListener {
+
+    private final static SensorChannel[] CHANNELS = SensorChannel.values();
+    private final static int NO_VALUE = Integer.MIN_VALUE;
+    // Long enough for every value with its unit
+    private final static int TEXT_CAPACITY = 24;
+    // Payload of a row update, so the RecyclerView rebinds the values without a full bind
+    private final static Object VALUES_PAYLOAD = new Object();
+
+    private final TextView[] latestViews;
+    private final RowAdapter adapter = new RowAdapter();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final StringBuilder format = new StringBuilder(TEXT_CAPACITY);
+
+    // Written by the publishing threads under the lock
+    private final Map<String, Row> rows = new HashMap<>();
+    private final List<Row> newRows = new ArrayList<>();
+    private final List<Row> dirtyRows = new ArrayList<>();
+    private final int[] latest = new int[CHANNELS.length];
+    private boolean latestDirty;
+    // Also true while detached, so the samples taken then do not post to the main thread
+    private boolean frameRequested = true;
+    private long samples;
+
+    // Only used on the main thread
+    private final List<Row> shownRows = new ArrayList<>();
+    private final List<Row> frameRows = new ArrayList<>();
+    private final int[] latestShown = new int[CHANNELS.length];
+    private final int[] latestFrame = new int[CHANNELS.length];
+    private final char[][] latestText = new char[CHANNELS.length][TEXT_CAPACITY];
+    private boolean attached;
+
+    // Counters, see toString
+    private volatile long frames;
+    private volatile long viewUpdates;
+    private volatile long totalRenderNanos;
+    private volatile long maxRenderNanos;
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            render();
+        }
+    };
+
+    private final Runnable requestFrame = new Runnable() {
+        @Override
+        public void run() {
+            // Detached, the frame is posted again by attach
+            if (attached) {
+                Choreographer.getInstance().postFrameCallback(frameCallback);
+            }
+        }
+    };
+
+    /**
+     * @param battery the view for the latest battery level
+     * @param temperature the view for the latest temperature
+     * @param humidity the view for the latest humidity
+     * @param list the list with one row per peripheral
+     */
+    public ReadingRenderer(TextView battery, TextView temperature, TextView humidity, RecyclerView list) {
+        latestViews = new TextView[CHANNELS.length];
+        latestViews[SensorChannel.BATTERY.ordinal()] = battery;
+        latestViews[SensorChannel.TEMPERATURE.ordinal()] = temperature;
+        latestViews[SensorChannel.HUMIDITY.ordinal()] = humidity;
+        for (int i = 0; i < CHANNELS.length; i++) {
+            latest[i] = NO_VALUE;
+            latestShown[i] = NO_VALUE;
+        }
+        adapter.setHasStableIds(true);
+        list.setAdapter(adapter);
+    }
+
+    /**
+     * Starts rendering, called on the main thread when the views are visible
+     */
+    public void attach() {
+        attached = true;
+        synchronized (this) {
+            frameRequested = latestDirty || !dirtyRows.isEmpty() || !newRows.isEmpty();
+            if (frameRequested) {
+                mainHandler.post(requestFrame);
+            }
+        }
+    }
+
+    /**
+     * Stops rendering while the views are not visible, the samples are still taken so the first
+     * frame after attach shows the latest values. No frame is requested until then, so a stopped
+     * activity costs the main thread nothing per sample. Called on the main thread.
+     */
+    public void detach() {
+        attached = false;
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+        synchronized (this) {
+            frameRequested = true;
+        }
+    }
+
+    /**
+     * Forgets what the value views show, called on the main thread after something else wrote
+     * them. The next sample of a channel is shown even if its value did not change.
+     */
+    public void invalidateLatest() {
+        for (int i = 0; i < CHANNELS.length; i++) {
+            latestShown[i] = NO_VALUE;
+        }
+    }
+
+    /**
+     * Takes a sample, on the thread that published it
+     */
+    @Override
+    public void onSample(String address, SensorChannel channel, int value, long timestampMillis, long version) {
+        int index = channel.ordinal();
+        synchronized (this) {
+            samples++;
+            Row row = rows.get(address);
+            if (row == null) {
+                row = new Row(address);
+                rows.put(address, row);
+                newRows.add(row);
+            }
+            row.values[index] = value;
+            if (!row.dirty) {
+                row.dirty = true;
+                dirtyRows.add(row);
+            }
+            latest[index] = value;
+            latestDirty = true;
+            if (frameRequested) {
+                return;
+            }
+            frameRequested = true;
+        }
+        // The Choreographer belongs to the main thread
+        mainHandler.post(requestFrame);
+    }
+
+    /**
+     * Applies everything that changed since the last frame, runs on the main thread
+     */
+    private void render() {
+        long start = System.nanoTime();
+        int inserted;
+        boolean latestChanged;
+        synchronized (this) {
+            frameRequested = false;
+            inserted = newRows.size();
+            for (int i = 0; i < inserted; i++) {
+                Row row = newRows.get(i);
+                row.position = shownRows.size();
+                shownRows.add(row);
+            }
+            newRows.clear();
+            for (int i = 0; i < dirtyRows.size(); i++) {
+                Row row = dirtyRows.get(i);
+                System.arraycopy(row.values, 0, row.frameValues, 0, CHANNELS.length);
+                row.dirty = false;
+                frameRows.add(row);
+            }
+            dirtyRows.clear();
+            latestChanged = latestDirty;
+            if (latestDirty) {
+                System.arraycopy(latest, 0, latestFrame, 0, CHANNELS.length);
+                latestDirty = false;
+            }
+        }
+        if (latestChanged) {
+            for (int i = 0; i < CHANNELS.length; i++) {
+                if (latestFrame[i] != NO_VALUE && latestFrame[i] != latestShown[i]) {
+                    setValue(latestViews[i], latestText[i], CHANNELS[i], latestFrame[i]);
+                    latestShown[i] = latestFrame[i];
+                }
+            }
+        }
+        if (inserted > 0) {
+            adapter.notifyItemRangeInserted(shownRows.size() - inserted, inserted);
+        }
+        for (int i = 0; i < frameRows.size(); i++) {
+            Row row = frameRows.get(i);
+            if (row.position < shownRows.size() - inserted) {
+                // Only rows that were already there, new ones get a full bind
+                adapter.notifyItemChanged(row.position, VALUES_PAYLOAD);
+            }
+        }
+        frameRows.clear();
+        long elapsed = System.nanoTime() - start;
+        frames++;
+        totalRenderNanos += elapsed;
+        if (elapsed > maxRenderNanos) {
+            maxRenderNanos = elapsed;
+        }
+    }
+
+    /**
+     * Shows a value with its unit in a view, formatted into the text buffer of the view
+     */
+    private void setValue(TextView view, char[] text, SensorChannel channel, int value) {
+        format.setLength(0);
+        SigCharacteristicCodec.appendFixedPoint(format, value, channel.getDecimals()).append(channel.getUnit());
+        int length = Math.min(format.length(), text.length);
+        format.getChars(0, length, text, 0);
+        view.setText(text, 0, length);
+        viewUpdates++;
+    }
+
+    /**
+     * @return the number of samples taken
+     */
+    public synchronized long getSampleCount() {
+        return samples;
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    public long getViewUpdateCount() {
+        return viewUpdates;
+    }
+
+    /**
+     * @return the longest time one frame spent applying the updates, in milliseconds
+     */
+    public double getMaxRenderMs() {
+        return maxRenderNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        long sampleCount = getSampleCount();
+        long frameCount = frames;
+        return sampleCount + " samples in " + frameCount + " frames, " + viewUpdates + " view updates"
+                + (frameCount == 0 ? "" : String.format(", %.3f ms mean %.3f ms max per frame",
+                totalRenderNanos / 1e6 / frameCount, maxRenderNanos / 1e6));
+    }
+
+    /**
+     * The values of one peripheral
+     */
+    private static final class Row {
+        final String address;
+        // Latest values, written under the lock of the renderer
+        final int[] values = new int[CHANNELS.length];
+        boolean dirty;
+        // Values of the current frame and the position in the list, main thread only
+        final int[] frameValues = new int[CHANNELS.length];
+        int position;
+
+        Row(String address) {
+            this.address = address;
+            for (int i = 0; i < CHANNELS.length; i++) {
+                values[i] = NO_VALUE;
+                frameValues[i] = NO_VALUE;
+            }
+        }
+    }
+
+    /**
+     * The views of one row, with the values they show
+     */
+    private static final class RowHolder extends RecyclerView.ViewHolder {
+        final TextView address;
+        final TextView[] valueViews = new TextView[CHANNELS.length];
+        final int[] shown = new int[CHANNELS.length];
+        final char[][] text = new char[CHANNELS.length][TEXT_CAPACITY];
+
+        RowHolder(View itemView) {
+            super(itemView);
+            address = (TextView) itemView.findViewById(R.id.device_address);
+            valueViews[SensorChannel.BATTERY.ordinal()] = (TextView) itemView.findViewById(R.id.device_battery);
+            valueViews[SensorChannel.TEMPERATURE.ordinal()] = (TextView) itemView.findViewById(R.id.device_temperature);
+            valueViews[SensorChannel.HUMIDITY.ordinal()] = (TextView) itemView.findViewById(R.id.device_humidity);
+        }
+    }
+
+    /**
+     * Binds the rows shown so far, on the main thread
+     */
+    private final class RowAdapter extends RecyclerView.Adapter<RowHolder> {
+
+        @Override
+        public RowHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            return new RowHolder(LayoutInflater.from(parent.getContext()).inflate(R.layout.item_device, parent, false));
+        }
+
+        @Override
+        public void onBindViewHolder(RowHolder holder, int position) {
+            // A recycled holder shows another peripheral, everything is written
+            holder.address.setText(shownRows.get(position).address);
+            for (int i = 0; i < CHANNELS.length; i++) {
+                holder.shown[i] = NO_VALUE;
+                holder.valueViews[i].setText(R.string.NoTouch);
+            }
+            bindValues(holder, shownRows.get(position));
+        }
+
+        @Override
+        public void onBindViewHolder(RowHolder holder, int position, List<Object> payloads) {
+            if (payloads.isEmpty()) {
+                onBindViewHolder(holder, position);
+            } else {
+                bindValues(holder, shownRows.get(position));
+            }
+        }
+
+        private void bindValues(RowHolder holder, Row row) {
+            for (int i = 0; i < CHANNELS.length; i++) {
+                int value = row.frameValues[i];
+                if (value != NO_VALUE && value != holder.shown[i]) {
+                    setValue(holder.valueViews[i], holder.text[i], CHANNELS[i], value);
+                    holder.shown[i] = value;
+                }
+            }
+        }
+
+        @Override
+        public int getItemCount() {
+            return shownRows.size();
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.androidblegatewaymqttclient;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.FrameMetrics;
+import android.view.Window;
+
+/**
+ * Measures how long the frames of a window take, to see whether the readings keep the UI within
+ * the frame budget. The durations come from the frame metrics of Android 7.0 and later on a
+ * thread of their own, so measuring does not load the main thread. On older versions the monitor
+ * does nothing.
+ */
+public class UiFrameMonitor {
+
+    // One frame at 60 Hz
+    public final static long FRAME_BUDGET_NANOS = 16666667;
+    // Upper bounds of the histogram buckets, in frame budgets
+    private final static int[] BUCKET_BUDGETS = {1, 2, 4};
+
+    private final Window window;
+    private HandlerThread thread;
+    private Object listener;
+
+    // Written on the metrics thread, see toString
+    private volatile long frames;
+    private volatile long overBudget;
+    private volatile long droppedReports;
+    private volatile long totalNanos;
+    private volatile long maxNanos;
+    private final long[] buckets = new long[BUCKET_BUDGETS.length + 1];
+
+    /**
+     * @param window the window of the activity
+     */
+    public UiFrameMonitor(Window window) {
+        this.window = window;
+    }
+
+    /**
+     * Starts measuring, called on the main thread
+     */
+    public void start() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N || listener != null) {
+            return;
+        }
+        thread = new HandlerThread("frame-metrics");
+        thread.start();
+        listener = addListener(new Handler(thread.getLooper()));
+    }
+
+    /**
+     * Stops measuring, called on the main thread. The counts are kept.
+     */
+    public void stop() {
+        if (listener == null) {
+            return;
+        }
+        removeListener(listener);
+        listener = null;
+        thread.quitSafely();
+        thread = null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private Object addListener(Handler handler) {
+        Window.OnFrameMetricsAvailableListener metricsListener = new Window.OnFrameMetricsAvailableListener() {
+            @Override
+            public void onFrameMetricsAvailable(Window window, FrameMetrics frameMetrics, int dropCountSinceLastInvocation) {
+                record(frameMetrics.getMetric(FrameMetrics.TOTAL_DURATION), dropCountSinceLastInvocation);
+            }
+        };
+        window.addOnFrameMetricsAvailableListener(metricsListener, handler);
+        return metricsListener;
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private void removeListener(Object metricsListener) {
+        window.removeOnFrameMetricsAvailableListener((Window.OnFrameMetricsAvailableListener) metricsListener);
+    }
+
+    private void record(long nanos, int dropped) {
+        frames++;
+        droppedReports += dropped;
+        totalNanos += nanos;
+        if (nanos > maxNanos) {
+            maxNanos = nanos;
+        }
+        if (nanos > FRAME_BUDGET_NANOS) {
+            overBudget++;
+        }
+        int bucket = 0;
+        while (bucket < BUCKET_BUDGETS.length && nanos > BUCKET_BUDGETS[bucket] * FRAME_BUDGET_NANOS) {
+            bucket++;
+        }
+        synchronized (buckets) {
+            buckets[bucket]++;
+        }
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * @return the number of frames that took longer than {@link #FRAME_BUDGET_NANOS}
+     */
+    public long getOverBudgetCount() {
+        return overBudget;
+    }
+
+    public double getMaxFrameMs() {
+        return maxNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        long frameCount = frames;
+        if (frameCount == 0) {
+            return "no frames measured";
+        }
+        StringBuilder out = new StringBuilder(128);
+        out.append(frameCount).append(" frames, ").append(overBudget).append(" over budget, ")
+                .append(String.format("%.2f ms mean %.2f ms max", totalNanos / 1e6 / frameCount, maxNanos / 1e6));
+        synchronized (buckets) {
+            for (int i = 0; i < buckets.length; i++) {
+                out.append(i == 0 ? ", " : " ").append(i < BUCKET_BUDGETS.length ? "<=" : ">")
+                        .append(BUCKET_BUDGETS[Math.min(i, BUCKET_BUDGETS.length - 1)]).append("f:")
+                        .append(buckets[i]);
+            }
+        }
+        if (droppedReports > 0) {
+            out.append(", ").append(droppedReports).append(" reports dropped");
+        }
+        return out.toString();
+    }
+}
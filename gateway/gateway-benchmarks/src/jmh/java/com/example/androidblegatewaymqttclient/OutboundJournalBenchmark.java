@@ -0,0 +1,90 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append and drain throughput of the OutboundJournal on the local filesystem. The journal lives
+ * in a temporary directory; appended messages are acknowledged now and then so that segments
+ * roll and get deleted the way they do on the phone.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class OutboundJournalBenchmark {
+
+    private final static int ACKNOWLEDGE_EVERY = 4096;
+
+    @Param({"64", "1024"})
+    public int payloadSize;
+
+    private File directory;
+    private OutboundJournal journal;
+    private byte[] payload;
+    private int appended;
+    private long readOffset;
+    private Blackhole blackhole;
+
+    private final OutboundJournal.EntryHandler handler = new OutboundJournal.EntryHandler() {
+        @Override
+        public void onEntry(long offset, long nextOffset, String topic, byte[] payload) {
+            blackhole.consume(payload);
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) throws IOException {
+        this.blackhole = blackhole;
+        directory = File.createTempFile("journal", "");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        journal = new OutboundJournal(directory, OutboundJournal.DEFAULT_SEGMENT_SIZE);
+        payload = new byte[payloadSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        journal.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public long append() throws IOException {
+        long offset = journal.append(MqttPublisher.BATCH_TOPIC, payload);
+        if (++appended % ACKNOWLEDGE_EVERY == 0) {
+            journal.acknowledge(journal.getEndOffset());
+        }
+        return offset;
+    }
+
+    /**
+     * One message in and out: append, read it back like the sender thread and acknowledge it
+     */
+    @Benchmark
+    public long appendAndDrain() throws IOException {
+        journal.append(MqttPublisher.BATCH_TOPIC, payload);
+        readOffset = journal.read(readOffset, 1, handler);
+        journal.acknowledge(readOffset);
+        return readOffset;
+    }
+}
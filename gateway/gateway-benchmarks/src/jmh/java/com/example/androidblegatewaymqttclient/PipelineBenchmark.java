@@ -0,0 +1,105 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A sample from the simulated peripherals through the whole gateway pipeline: decode, snapshot
+ * store, event bus and the MQTT side, for 1, 4 and 16 connected devices.
+ * <ul>
+ * <li>{@link #handOff()} stops at the hand-off into the ring of the publisher, the cost the
+ * GATT callback thread pays. The publisher worker drains the ring on its own thread.</li>
+ * <li>{@link #inline()} runs the publisher on the calling thread, so one operation is the
+ * complete path up to the MqttMessage.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int devices;
+
+    private SimulatedPeripheralSource handOffSource;
+    private MqttPublisher workerPublisher;
+    private SimulatedPeripheralSource inlineSource;
+    private MqttPublisher inlinePublisher;
+
+    /**
+     * Builds the MqttMessage like MqttHelper and hands it to the blackhole instead of the client
+     */
+    private static final class MessageSink implements MessageTransport {
+        private Blackhole blackhole;
+
+        @Override
+        public void publishToTopic(String topic, String payload) {
+            try {
+                publishToTopic(topic, payload.getBytes("UTF-8"));
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public void publishToTopic(String topic, byte[] payload) {
+            MqttMessage message = new MqttMessage(payload);
+            if (blackhole != null) {
+                blackhole.consume(message);
+            }
+        }
+
+        @Override
+        public void publishRetained(String topic, byte[] payload) {
+            publishToTopic(topic, payload);
+        }
+    }
+
+    private final MessageSink workerSink = new MessageSink();
+    private final MessageSink inlineSink = new MessageSink();
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        inlineSink.blackhole = blackhole;
+
+        SensorPipeline handOffPipeline = new SensorPipeline();
+        workerPublisher = new MqttPublisher(workerSink);
+        workerPublisher.start(handOffPipeline.getEventBus(), MqttPublisher.DEFAULT_QUEUE_CAPACITY);
+        handOffSource = new SimulatedPeripheralSource(handOffPipeline, devices);
+
+        SensorPipeline inlinePipeline = new SensorPipeline();
+        inlinePublisher = new MqttPublisher(inlineSink);
+        inlinePipeline.getEventBus().register(inlinePublisher);
+        inlineSource = new SimulatedPeripheralSource(inlinePipeline, devices);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        workerPublisher.stop();
+        inlinePublisher.stop();
+        handOffSource.shutdown();
+        inlineSource.shutdown();
+    }
+
+    @Benchmark
+    public void handOff() {
+        handOffSource.emit(1);
+    }
+
+    @Benchmark
+    public void inline() {
+        inlineSource.emit(1);
+    }
+}
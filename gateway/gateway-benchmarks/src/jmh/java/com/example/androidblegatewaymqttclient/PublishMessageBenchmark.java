@@ -0,0 +1,109 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the messages MqttHelper.publishToTopic hands to the client, per sample and per batch
+ * of {@link #BATCH} samples in the text and the binary payload format.
+ * <p>
+ * Next to the time, every benchmark reports what the mode costs on the uplink as the secondary
+ * results messagesPerSample and wireBytesPerSample: the PUBLISH packets and their size in bytes
+ * with MqttPackets.publishPacketSize, at QoS 1, divided by the samples they carry:
+ * <pre>
+ * singleTextMessage   1 message    27 bytes per sample
+ * textBatch           1/32         50.5
+ * binaryFrame         1/32          6
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class PublishMessageBenchmark {
+
+    private final static int BATCH = 32;
+    private final static String ADDRESS = "24:0A:C4:00:00:01";
+    private final static long TIMESTAMP = 1588080000000L;
+    // The quality of service MqttHelper publishes with
+    private final static int QOS = 1;
+
+    private final StringBuilder text = new StringBuilder(16);
+    private final StringBuilder batch = new StringBuilder(MqttPublisher.DEFAULT_BATCH_BYTES + 64);
+    private final BinaryFrameCodec.FrameWriter frame = new BinaryFrameCodec.FrameWriter(MqttPublisher.DEFAULT_BATCH_BYTES);
+    private final long deviceId = BinaryFrameCodec.parseAddress(ADDRESS);
+
+    /**
+     * The cost on the wire of the last message built, per sample. JMH sums event counters over
+     * the iterations, threads and forks of a run, so every iteration reports its share.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class WireCounters {
+        public double messagesPerSample;
+        public double wireBytesPerSample;
+        private double share;
+
+        @Setup(Level.Trial)
+        public void share(BenchmarkParams params) {
+            share = 1.0 / (params.getMeasurement().getCount() * params.getThreads() * Math.max(params.getForks(), 1));
+        }
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            messagesPerSample = 0;
+            wireBytesPerSample = 0;
+        }
+
+        void record(String topic, MqttMessage message, int samples) {
+            messagesPerSample = share / samples;
+            wireBytesPerSample = share * MqttPackets.publishPacketSize(topic.length(),
+                    message.getPayload().length, QOS) / samples;
+        }
+    }
+
+    @Benchmark
+    public MqttMessage singleTextMessage(WireCounters counters) throws UnsupportedEncodingException {
+        text.setLength(0);
+        SigCharacteristicCodec.appendFixedPoint(text, 2750, 2);
+        MqttMessage message = new MqttMessage(text.toString().getBytes("UTF-8"));
+        counters.record(SensorChannel.TEMPERATURE.getTopic(), message, 1);
+        return message;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public MqttMessage textBatch(WireCounters counters) throws UnsupportedEncodingException {
+        batch.setLength(0);
+        for (int i = 0; i < BATCH; i++) {
+            MqttPublisher.appendRecord(batch, ADDRESS, SensorChannel.TEMPERATURE, 2750 + i, TIMESTAMP + i * 100);
+        }
+        MqttMessage message = new MqttMessage(batch.toString().getBytes("UTF-8"));
+        counters.record(MqttPublisher.BATCH_TOPIC, message, BATCH);
+        return message;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public MqttMessage binaryFrame(WireCounters counters) {
+        frame.begin(deviceId, 1, TIMESTAMP);
+        for (int i = 0; i < BATCH; i++) {
+            frame.append(SensorChannel.TEMPERATURE, 2750 + i, TIMESTAMP + i * 100);
+        }
+        MqttMessage message = new MqttMessage(frame.toByteArray());
+        counters.record(MqttPublisher.FRAME_TOPIC, message, BATCH);
+        return message;
+    }
+}
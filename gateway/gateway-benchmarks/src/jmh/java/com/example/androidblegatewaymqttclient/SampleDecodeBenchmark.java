@@ -0,0 +1,117 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The steps a notification goes through before it is handed on: finding the channel of the
+ * characteristic, decoding the raw bytes, formatting the value and selecting the topic, as in
+ * PSoCCapSenseLedService.onCharacteristicChanged and MqttPublisher.onSample.
+ * <p>
+ * The legacy benchmarks repeat what onCharacteristicChanged did before on the same bytes:
+ * compare the UUID as a String, box the value as getIntValue does and cut its text with
+ * substring. The jmh task runs the gc profiler, its gc.alloc.rate.norm gives the bytes allocated
+ * per sample. On a JDK 17 desktop:
+ * <pre>
+ * legacyChannelFromUuid     80 B/op     9 ops/us    channelFromUuid   0 B/op   220 ops/us
+ * legacyDecodeAndFormat    272 B/op     6 ops/us    decodeAndFormat   0 B/op    38 ops/us
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SampleDecodeBenchmark {
+
+    private final UUID temperatureUuid = UUID.fromString("00002a6e-0000-1000-8000-00805f9b34fb");
+    private final UUID unknownUuid = UUID.fromString("00002a00-0000-1000-8000-00805f9b34fb");
+    // The UUIDs the service compared against before
+    private final static String LEGACY_BATTERY_UUID = "00002A19-0000-1000-8000-00805F9B34FB";
+    private final static String LEGACY_TEMPERATURE_UUID = "00002A6E-0000-1000-8000-00805F9B34FB";
+    private final static String LEGACY_HUMIDITY_UUID = "00002A6F-0000-1000-8000-00805F9B34FB";
+    // 27.50 °C as sint16 little endian
+    private final byte[] temperature = {(byte) 0xBE, 0x0A};
+    private final int value = 2750;
+    private final StringBuilder text = new StringBuilder(16);
+
+    @Benchmark
+    public SensorChannel channelFromUuid() {
+        return SensorChannel.fromUuid(temperatureUuid);
+    }
+
+    @Benchmark
+    public SensorChannel channelFromUnknownUuid() {
+        return SensorChannel.fromUuid(unknownUuid);
+    }
+
+    @Benchmark
+    public int decode() {
+        return SensorChannel.fromUuid(temperatureUuid).decode(temperature);
+    }
+
+    @Benchmark
+    public int formatIntoBuilder() {
+        text.setLength(0);
+        return SigCharacteristicCodec.appendFixedPoint(text, value, 2).length();
+    }
+
+    @Benchmark
+    public String formatToString() {
+        return SensorChannel.TEMPERATURE.format(value);
+    }
+
+    @Benchmark
+    public int decodeAndFormat() {
+        SensorChannel channel = SensorChannel.fromUuid(temperatureUuid);
+        text.setLength(0);
+        return SigCharacteristicCodec.appendFixedPoint(text, channel.decode(temperature), channel.getDecimals()).length();
+    }
+
+    @Benchmark
+    public int legacyChannelFromUuid() {
+        return legacyChannelOf(temperatureUuid.toString());
+    }
+
+    @Benchmark
+    public String legacyDecodeAndFormat() {
+        String uuid = temperatureUuid.toString();
+        if (legacyChannelOf(uuid) != 1) {
+            return null;
+        }
+        String text = getIntValueSint16(temperature).toString();
+        return text.substring(0, 2) + "." + text.substring(2);
+    }
+
+    @Benchmark
+    public String selectTopic() {
+        return SensorChannel.fromUuid(temperatureUuid).getTopic();
+    }
+
+    private static int legacyChannelOf(String uuid) {
+        if (uuid.equalsIgnoreCase(LEGACY_BATTERY_UUID)) {
+            return 0;
+        } else if (uuid.equalsIgnoreCase(LEGACY_TEMPERATURE_UUID)) {
+            return 1;
+        } else if (uuid.equalsIgnoreCase(LEGACY_HUMIDITY_UUID)) {
+            return 2;
+        }
+        return -1;
+    }
+
+    /**
+     * BluetoothGattCharacteristic.getIntValue(FORMAT_SINT16, 0) of Android, which returns an Integer
+     */
+    private static Integer getIntValueSint16(byte[] value) {
+        int unsigned = (value[0] & 0xFF) + ((value[1] & 0xFF) << 8);
+        if ((unsigned & 0x8000) != 0) {
+            unsigned = -1 * (0x8000 - (unsigned & 0x7FFF));
+        }
+        return unsigned;
+    }
+}
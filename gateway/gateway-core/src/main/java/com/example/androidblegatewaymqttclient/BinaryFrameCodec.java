@@ -0,0 +1,219 @@
+package com.example.androidblegatewaymqttclient;
+
+/**
+ * Compact binary telemetry frame: the samples of one peripheral in a few bytes each, with
+ * fixed-point values so neither end parses floats or strings. All fields are big endian.
+ * <pre>
+ * offset  size  field
+ * 0       1     version, currently 1
+ * 1       6     device id, the MAC address of the peripheral
+ * 7       2     sequence number, per device, wraps at 65536
+ * 9       6     base timestamp, milliseconds since the epoch
+ * 15      ...   records
+ * </pre>
+ * Each record is
+ * <pre>
+ * 1      channel: low byte of the SIG assigned number (0x19, 0x6E, 0x6F), bit 7 set for a wide value
+ * 2      timestamp offset from the base timestamp in milliseconds, unsigned
+ * 2 / 4  fixed-point value, signed, 4 bytes when the channel byte has bit 7 set
+ * </pre>
+ * The client-app dashboard has the matching decoder in assets/js/index.js.
+ */
+public final class BinaryFrameCodec {
+
+    public final static int VERSION = 1;
+    public final static int HEADER_SIZE = 15;
+    public final static int MAX_RECORD_SIZE = 7;
+
+    private final static int WIDE_VALUE = 0x80;
+    private final static int MAX_OFFSET_MS = 0xFFFF;
+    private final static SensorChannel[] CHANNELS = SensorChannel.values();
+
+    private BinaryFrameCodec() {
+    }
+
+    /**
+     * Receives the records of a decoded frame
+     */
+    public interface RecordVisitor {
+        void onRecord(long deviceId, int sequence, SensorChannel channel, int value, long timestampMillis);
+    }
+
+    /**
+     * Builds frames in a reusable buffer
+     */
+    public static final class FrameWriter {
+        private final byte[] buffer;
+        private int length;
+        private int records;
+        private long baseTimestampMillis;
+
+        /**
+         * @param capacity the largest frame in bytes, header included
+         */
+        public FrameWriter(int capacity) {
+            buffer = new byte[Math.max(capacity, HEADER_SIZE + MAX_RECORD_SIZE)];
+        }
+
+        /**
+         * Starts a new frame, dropping what was written before.
+         *
+         * @param deviceId the device id, see {@link #parseAddress(String)}
+         * @param sequence the sequence number of the frame
+         * @param baseTimestampMillis the timestamp the record offsets are relative to
+         */
+        public void begin(long deviceId, int sequence, long baseTimestampMillis) {
+            buffer[0] = VERSION;
+            putLong48(buffer, 1, deviceId);
+            buffer[7] = (byte) (sequence >> 8);
+            buffer[8] = (byte) sequence;
+            putLong48(buffer, 9, baseTimestampMillis);
+            this.baseTimestampMillis = baseTimestampMillis;
+            length = HEADER_SIZE;
+            records = 0;
+        }
+
+        /**
+         * Adds one sample to the frame.
+         *
+         * @return false if the sample does not fit, because the frame is full or the timestamp
+         * is out of the range of the base timestamp; the frame is left unchanged
+         */
+        public boolean append(SensorChannel channel, int value, long timestampMillis) {
+            long offset = timestampMillis - baseTimestampMillis;
+            boolean wide = value < Short.MIN_VALUE || value > Short.MAX_VALUE;
+            int size = wide ? 7 : 5;
+            if (offset < 0 || offset > MAX_OFFSET_MS || length + size > buffer.length) {
+                return false;
+            }
+            int channelByte = channel.getAssignedNumber() & 0x7F;
+            buffer[length++] = (byte) (wide ? channelByte | WIDE_VALUE : channelByte);
+            buffer[length++] = (byte) (offset >> 8);
+            buffer[length++] = (byte) offset;
+            if (wide) {
+                buffer[length++] = (byte) (value >> 24);
+                buffer[length++] = (byte) (value >> 16);
+            }
+            buffer[length++] = (byte) (value >> 8);
+            buffer[length++] = (byte) value;
+            records++;
+            return true;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getRecordCount() {
+            return records;
+        }
+
+        /**
+         * @return a copy of the frame, ready to be sent
+         */
+        public byte[] toByteArray() {
+            byte[] frame = new byte[length];
+            System.arraycopy(buffer, 0, frame, 0, length);
+            return frame;
+        }
+    }
+
+    /**
+     * Decodes a frame and hands every record to the visitor.
+     *
+     * @param frame the bytes of the frame
+     * @param visitor receives the records
+     * @return the number of records
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public static int decode(byte[] frame, RecordVisitor visitor) {
+        if (frame.length < HEADER_SIZE || frame[0] != VERSION) {
+            throw new IllegalArgumentException("Not a version " + VERSION + " frame");
+        }
+        long deviceId = getLong48(frame, 1);
+        int sequence = ((frame[7] & 0xFF) << 8) | (frame[8] & 0xFF);
+        long baseTimestampMillis = getLong48(frame, 9);
+        int position = HEADER_SIZE;
+        int records = 0;
+        while (position < frame.length) {
+            int channelByte = frame[position] & 0xFF;
+            boolean wide = (channelByte & WIDE_VALUE) != 0;
+            if (position + (wide ? 7 : 5) > frame.length) {
+                throw new IllegalArgumentException("Truncated record at " + position);
+            }
+            SensorChannel channel = channelOf(channelByte & 0x7F);
+            int offset = ((frame[position + 1] & 0xFF) << 8) | (frame[position + 2] & 0xFF);
+            int value;
+            if (wide) {
+                value = ((frame[position + 3] & 0xFF) << 24) | ((frame[position + 4] & 0xFF) << 16)
+                        | ((frame[position + 5] & 0xFF) << 8) | (frame[position + 6] & 0xFF);
+                position += 7;
+            } else {
+                value = (short) (((frame[position + 3] & 0xFF) << 8) | (frame[position + 4] & 0xFF));
+                position += 5;
+            }
+            if (channel != null) {
+                visitor.onRecord(deviceId, sequence, channel, value, baseTimestampMillis + offset);
+            }
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Turns a MAC address such as 24:0A:C4:00:00:01 into a 48 bit device id, without allocating.
+     *
+     * @param address the MAC address
+     * @return the device id
+     */
+    public static long parseAddress(String address) {
+        long id = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                id = (id << 4) | digit;
+            }
+        }
+        return id & 0xFFFFFFFFFFFFL;
+    }
+
+    /**
+     * @param deviceId a 48 bit device id
+     * @return the MAC address in the form 24:0A:C4:00:00:01
+     */
+    public static String formatAddress(long deviceId) {
+        StringBuilder address = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int octet = (int) (deviceId >> shift) & 0xFF;
+            address.append(Character.toUpperCase(Character.forDigit(octet >> 4, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(octet & 0xF, 16)));
+            if (shift > 0) {
+                address.append(':');
+            }
+        }
+        return address.toString();
+    }
+
+    private static SensorChannel channelOf(int id) {
+        for (SensorChannel channel : CHANNELS) {
+            if ((channel.getAssignedNumber() & 0x7F) == id) {
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    private static void putLong48(byte[] buffer, int offset, long value) {
+        for (int i = 0; i < 6; i++) {
+            buffer[offset + i] = (byte) (value >> (40 - 8 * i));
+        }
+    }
+
+    private static long getLong48(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 6; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
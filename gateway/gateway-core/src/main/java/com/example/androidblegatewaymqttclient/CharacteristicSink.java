@@ -0,0 +1,19 @@
+package com.example.androidblegatewaymqttclient;
+
+/**
+ * Takes the raw characteristic values a peripheral reports, from the GATT callbacks of the BLE
+ * service or from the SimulatedPeripheralSource.
+ */
+public interface CharacteristicSink {
+
+    /**
+     * Called for every characteristic value that was read or notified.
+     *
+     * @param address MAC address of the peripheral
+     * @param channel the channel of the characteristic
+     * @param value raw bytes of the characteristic, not kept after the call
+     * @param timestampMillis when the value was received
+     * @return true if the value was decoded, false if it was empty or malformed
+     */
+    boolean onCharacteristicValue(String address, SensorChannel channel, byte[] value, long timestampMillis);
+}
@@ -0,0 +1,173 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Change detection in front of the uplink: a sample only goes on when it moved far enough away
+ * from the value last let through for the same peripheral and channel, or when the channel has
+ * been quiet for longer than the heartbeat interval.
+ * <p>
+ * Every channel has its own deadband, either absolute in fixed-point units of the channel (10 is
+ * 0.10 °C for the temperature) or relative to the last value let through (0.01 is 1 %). An
+ * absolute deadband of 0 lets every change through and suppresses repeats of the same value.
+ * The first sample of every peripheral and channel always goes on.
+ * <p>
+ * Filtering keeps a few primitives per peripheral and channel and does not allocate per sample.
+ */
+public class DeadbandFilter {
+
+    public final static long DEFAULT_HEARTBEAT_MS = 60000;
+
+    private final static int CHANNEL_COUNT = SensorChannel.values().length;
+
+    // Deadband of every channel, a relative deadband is negative: -0.01 stands for 1 %
+    private final double[] deadbands = new double[CHANNEL_COUNT];
+    private long heartbeatMs = DEFAULT_HEARTBEAT_MS;
+
+    private final Map<String, DeviceState> devices = new HashMap<>();
+    private long passed;
+    private long suppressed;
+    private long heartbeats;
+
+    /**
+     * Creates a filter that only suppresses repeated values, with the default heartbeat
+     */
+    public DeadbandFilter() {
+    }
+
+    /**
+     * Creates the filter the gateway uses: battery on change, 0.10 °C for the temperature,
+     * 0.50 % for the humidity, heartbeat every minute.
+     */
+    public static DeadbandFilter withDefaults() {
+        DeadbandFilter filter = new DeadbandFilter();
+        filter.setAbsolute(SensorChannel.BATTERY, 0);
+        filter.setAbsolute(SensorChannel.TEMPERATURE, 10);
+        filter.setAbsolute(SensorChannel.HUMIDITY, 50);
+        return filter;
+    }
+
+    /**
+     * Sets an absolute deadband.
+     *
+     * @param channel the channel
+     * @param threshold the smallest change that goes on, in fixed-point units of the channel;
+     *                  0 lets every change through
+     */
+    public synchronized void setAbsolute(SensorChannel channel, int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        deadbands[channel.ordinal()] = threshold;
+    }
+
+    /**
+     * Sets a deadband relative to the last value let through.
+     *
+     * @param channel the channel
+     * @param fraction the smallest relative change that goes on, 0.01 for 1 %
+     */
+    public synchronized void setRelative(SensorChannel channel, double fraction) {
+        if (fraction <= 0) {
+            throw new IllegalArgumentException("fraction must be positive");
+        }
+        deadbands[channel.ordinal()] = -fraction;
+    }
+
+    /**
+     * @param heartbeatMs the longest a channel stays silent, a sample arriving after that goes on
+     *                    even without a change
+     */
+    public synchronized void setHeartbeat(long heartbeatMs) {
+        if (heartbeatMs <= 0) {
+            throw new IllegalArgumentException("heartbeatMs must be positive");
+        }
+        this.heartbeatMs = heartbeatMs;
+    }
+
+    /**
+     * Decides whether a sample goes on, and remembers it if it does.
+     *
+     * @param address MAC address of the peripheral
+     * @param channel the channel the sample belongs to
+     * @param value the fixed-point value
+     * @param timestampMillis when the sample was received
+     * @return true to publish the sample, false to suppress it
+     */
+    public synchronized boolean accept(String address, SensorChannel channel, int value, long timestampMillis) {
+        DeviceState device = devices.get(address);
+        if (device == null) {
+            device = new DeviceState();
+            devices.put(address, device);
+        }
+        int index = channel.ordinal();
+        if (device.seen[index]) {
+            boolean changed = exceeds(deadbands[index], device.values[index], value);
+            if (!changed && timestampMillis - device.timestamps[index] < heartbeatMs) {
+                suppressed++;
+                return false;
+            }
+            if (!changed) {
+                heartbeats++;
+            }
+        }
+        device.seen[index] = true;
+        device.values[index] = value;
+        device.timestamps[index] = timestampMillis;
+        passed++;
+        return true;
+    }
+
+    /**
+     * Forgets the values let through, so the next sample of every channel goes on
+     */
+    public synchronized void reset() {
+        devices.clear();
+    }
+
+    /**
+     * @return the number of samples let through, heartbeats included
+     */
+    public synchronized long getPassedCount() {
+        return passed;
+    }
+
+    /**
+     * @return the number of samples suppressed
+     */
+    public synchronized long getSuppressedCount() {
+        return suppressed;
+    }
+
+    /**
+     * @return the number of samples let through only because the channel was silent too long
+     */
+    public synchronized long getHeartbeatCount() {
+        return heartbeats;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long total = passed + suppressed;
+        return "passed=" + passed + " suppressed=" + suppressed + " heartbeats=" + heartbeats
+                + (total == 0 ? "" : " (" + (suppressed * 100 / total) + "% suppressed)");
+    }
+
+    private static boolean exceeds(double deadband, int last, int value) {
+        long change = Math.abs((long) value - last);
+        if (change == 0) {
+            return false;
+        }
+        return deadband >= 0 ? change >= deadband : change >= -deadband * Math.abs((long) last);
+    }
+
+    /**
+     * The values last let through for one peripheral
+     */
+    private static final class DeviceState {
+        final int[] values = new int[CHANNEL_COUNT];
+        final long[] timestamps = new long[CHANNEL_COUNT];
+        final boolean[] seen = new boolean[CHANNEL_COUNT];
+    }
+}
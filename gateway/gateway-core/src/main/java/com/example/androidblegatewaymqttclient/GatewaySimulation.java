@@ -0,0 +1,164 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the gateway pipeline on a plain JVM: simulated peripherals feed the SensorPipeline, the
+ * MqttPublisher takes the samples off the event bus and sends them to a LocalBroker. At the end
+ * it prints what went in, what came out and how fast.
+ * <p>
+ * Usage, every argument is optional:
+ * <pre>
+ * GatewaySimulation [--devices 4] [--rate 1000] [--seconds 10] [--format text|binary]
+ *                   [--batch] [--queue 1024] [--deadband] [--window 1000] [--panes 1] [--no-raw]
+ *                   [--store directory] [--stats]
+ * </pre>
+ * A rate of 0 emits samples as fast as the pipeline takes them. With --deadband the samples go
+ * through a DeadbandFilter with the deadbands the app uses. With --window the samples are also
+ * aggregated into windows of that period, --no-raw only publishes the window summaries. With
+ * --store every sample is also kept in a TimeSeriesStore in that directory. The metrics of the
+ * publisher are printed at the end, with --stats they are also published every second.
+ */
+public class GatewaySimulation {
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        int devices = 4;
+        double rate = 1000;
+        int seconds = 10;
+        MqttPublisher.PayloadFormat format = MqttPublisher.PayloadFormat.TEXT;
+        boolean batching = false;
+        boolean deadband = false;
+        boolean raw = true;
+        boolean statsExport = false;
+        long windowMs = 0;
+        int panes = 1;
+        File storeDirectory = null;
+        int queueCapacity = MqttPublisher.DEFAULT_QUEUE_CAPACITY;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--batch".equals(arg)) {
+                batching = true;
+            } else if ("--deadband".equals(arg)) {
+                deadband = true;
+            } else if ("--no-raw".equals(arg)) {
+                raw = false;
+            } else if ("--stats".equals(arg)) {
+                statsExport = true;
+            } else if (i + 1 < args.length) {
+                String value = args[++i];
+                if ("--devices".equals(arg)) {
+                    devices = Integer.parseInt(value);
+                } else if ("--rate".equals(arg)) {
+                    rate = Double.parseDouble(value);
+                } else if ("--seconds".equals(arg)) {
+                    seconds = Integer.parseInt(value);
+                } else if ("--format".equals(arg)) {
+                    format = MqttPublisher.PayloadFormat.valueOf(value.toUpperCase());
+                } else if ("--window".equals(arg)) {
+                    windowMs = Long.parseLong(value);
+                } else if ("--panes".equals(arg)) {
+                    panes = Integer.parseInt(value);
+                } else if ("--store".equals(arg)) {
+                    storeDirectory = new File(value);
+                } else if ("--queue".equals(arg)) {
+                    queueCapacity = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown argument " + arg);
+                }
+            } else {
+                throw new IllegalArgumentException("Missing value of " + arg);
+            }
+        }
+
+        SensorPipeline pipeline = new SensorPipeline();
+        LocalBroker broker = new LocalBroker();
+        MqttPublisher publisher = new MqttPublisher(broker);
+        MetricsRegistry metrics = new MetricsRegistry();
+        publisher.setMetrics(metrics);
+        StatsPublisher stats = null;
+        if (statsExport) {
+            stats = new StatsPublisher(broker, metrics, 1000);
+            stats.start();
+        }
+        publisher.setPayloadFormat(format);
+        if (batching) {
+            publisher.setBatching(MqttPublisher.DEFAULT_LINGER_MS, MqttPublisher.DEFAULT_BATCH_SAMPLES,
+                    MqttPublisher.DEFAULT_BATCH_BYTES);
+        }
+        if (deadband) {
+            publisher.setFilter(DeadbandFilter.withDefaults());
+        }
+        if (raw) {
+            publisher.start(pipeline.getEventBus(), queueCapacity);
+        }
+        WindowAggregator aggregator = null;
+        if (windowMs > 0) {
+            aggregator = new WindowAggregator(broker, windowMs, panes);
+            aggregator.start(pipeline.getEventBus(), queueCapacity);
+        }
+        TimeSeriesStore store = null;
+        if (storeDirectory != null) {
+            store = TimeSeriesStore.withDefaults(storeDirectory);
+            store.start(pipeline.getEventBus(), queueCapacity);
+        }
+        SimulatedPeripheralSource source = new SimulatedPeripheralSource(pipeline, devices);
+
+        System.out.println("Simulating " + devices + " devices at " + (rate > 0 ? rate + " samples/s" : "full speed")
+                + " for " + seconds + " s, " + format + (batching ? " batched" : ""));
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(seconds);
+        if (rate > 0) {
+            source.start(rate);
+            TimeUnit.SECONDS.sleep(seconds);
+            source.stop();
+        } else {
+            while (System.nanoTime() < endNanos) {
+                source.emit(1000);
+            }
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        source.shutdown();
+        publisher.stop();
+        publisher.awaitStopped(10, TimeUnit.SECONDS);
+        if (stats != null) {
+            stats.stop();
+            stats.awaitStopped(10, TimeUnit.SECONDS);
+        }
+        if (aggregator != null) {
+            aggregator.stop();
+            aggregator.awaitStopped(10, TimeUnit.SECONDS);
+        }
+        if (store != null) {
+            store.stop();
+            store.awaitStopped(10, TimeUnit.SECONDS);
+        }
+
+        double elapsedSeconds = elapsedNanos / 1e9;
+        long emitted = source.getEmittedCount();
+        long sent = emitted - publisher.getDroppedCount();
+        System.out.printf("samples in:        %d (%.0f/s), %d rejected%n", emitted, emitted / elapsedSeconds,
+                source.getRejectedCount());
+        System.out.printf("samples dropped:   %d%n", publisher.getDroppedCount());
+        if (aggregator != null) {
+            System.out.printf("window summaries:  %d in %d messages, %d samples dropped%n",
+                    aggregator.getSummaryCount(), aggregator.getPublishedCount(), aggregator.getDroppedCount());
+        }
+        if (store != null) {
+            System.out.println("time series store: " + store);
+        }
+        if (deadband) {
+            System.out.println("deadband filter:   " + publisher.getFilter());
+        }
+        System.out.printf("snapshot version:  %d%n", pipeline.getSnapshotStore().snapshot().getVersion());
+        System.out.printf("messages out:      %d (%.0f/s)%n", broker.getMessageCount(),
+                broker.getMessageCount() / elapsedSeconds);
+        System.out.printf("bytes on the wire: %d (%.1f per sample sent)%n", broker.getPacketBytes(),
+                sent == 0 ? 0.0 : (double) broker.getPacketBytes() / sent);
+        if (stats != null) {
+            System.out.printf("stats exports:     %d%n", stats.getExportCount());
+        }
+        System.out.print(metrics);
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bit-level compression of a series of timestamped fixed-point values, after the Gorilla
+ * time-series format.
+ * <p>
+ * The timestamp of the first sample is kept outside the encoded bits, by the caller. Every
+ * sample after it stores the difference between its delta and the previous delta, which is 0
+ * for samples that arrive at a steady rate:
+ * <pre>
+ * '0'                     delta of delta is 0
+ * '10'   + 7 bits         -64 .. 63 ms
+ * '110'  + 9 bits         -256 .. 255 ms
+ * '1110' + 12 bits        -2048 .. 2047 ms
+ * '1111' + 32 bits        anything else
+ * </pre>
+ * The first value is stored in 32 bits, every value after it as the XOR with the previous one:
+ * <pre>
+ * '0'                     same value
+ * '10' + meaningful bits  the XOR fits the window of leading and trailing zeros of the previous one
+ * '11' + 5 bits leading zeros + 5 bits length - 1 + meaningful bits
+ * </pre>
+ * Fixed-point values that move by a few units leave most of the 32 bits of the XOR zero, so a
+ * sample of a steady sensor takes a few bits.
+ */
+public final class GorillaCodec {
+
+    // Most bits one sample can take: 4 + 32 for the timestamp, 2 + 5 + 5 + 32 for the value
+    public final static int MAX_BITS_PER_SAMPLE = 80;
+
+    private GorillaCodec() {
+    }
+
+    /**
+     * Receives decoded samples
+     */
+    public interface SampleVisitor {
+        void onSample(long timestampMillis, int value);
+    }
+
+    /**
+     * Encodes samples into a fixed buffer, reused for one block after the other
+     */
+    public static final class Encoder {
+        private final byte[] buffer;
+        private int bitLength;
+        private int count;
+        private long firstTimestamp;
+        private long lastTimestamp;
+        private long lastDelta;
+        private int lastValue;
+        private int lastLeading;
+        private int lastTrailing;
+
+        /**
+         * @param capacityBytes the size of the largest block
+         */
+        public Encoder(int capacityBytes) {
+            buffer = new byte[Math.max(capacityBytes, 16)];
+        }
+
+        /**
+         * Forgets the samples, to start the next block
+         */
+        public void reset() {
+            for (int i = 0, n = (bitLength + 7) >>> 3; i < n; i++) {
+                buffer[i] = 0;
+            }
+            bitLength = 0;
+            count = 0;
+        }
+
+        /**
+         * @return true if one more sample surely fits
+         */
+        public boolean hasRoom() {
+            return bitLength + MAX_BITS_PER_SAMPLE <= buffer.length * 8;
+        }
+
+        /**
+         * Adds a sample.
+         *
+         * @return false if the block is full, the sample was not added
+         */
+        public boolean append(long timestampMillis, int value) {
+            if (!hasRoom()) {
+                return false;
+            }
+            if (count == 0) {
+                firstTimestamp = timestampMillis;
+                lastDelta = 0;
+                writeBits(value, 32);
+                // An impossible window, so the second value writes its own
+                lastLeading = Integer.MAX_VALUE;
+                lastTrailing = 0;
+            } else {
+                long delta = timestampMillis - lastTimestamp;
+                writeDeltaOfDelta(delta - lastDelta);
+                lastDelta = delta;
+                writeXor(value ^ lastValue);
+            }
+            lastTimestamp = timestampMillis;
+            lastValue = value;
+            count++;
+            return true;
+        }
+
+        private void writeDeltaOfDelta(long deltaOfDelta) {
+            if (deltaOfDelta == 0) {
+                writeBits(0, 1);
+            } else if (deltaOfDelta >= -64 && deltaOfDelta <= 63) {
+                writeBits(0x2, 2);
+                writeBits(deltaOfDelta, 7);
+            } else if (deltaOfDelta >= -256 && deltaOfDelta <= 255) {
+                writeBits(0x6, 3);
+                writeBits(deltaOfDelta, 9);
+            } else if (deltaOfDelta >= -2048 && deltaOfDelta <= 2047) {
+                writeBits(0xE, 4);
+                writeBits(deltaOfDelta, 12);
+            } else {
+                writeBits(0xF, 4);
+                writeBits(deltaOfDelta, 32);
+            }
+        }
+
+        private void writeXor(int xor) {
+            if (xor == 0) {
+                writeBits(0, 1);
+                return;
+            }
+            int leading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+            int trailing = Integer.numberOfTrailingZeros(xor);
+            if (leading >= lastLeading && trailing >= lastTrailing) {
+                writeBits(0x2, 2);
+                writeBits(xor >>> lastTrailing, 32 - lastLeading - lastTrailing);
+                return;
+            }
+            int length = 32 - leading - trailing;
+            writeBits(0x3, 2);
+            writeBits(leading, 5);
+            writeBits(length - 1, 5);
+            writeBits(xor >>> trailing, length);
+            lastLeading = leading;
+            lastTrailing = trailing;
+        }
+
+        private void writeBits(long bits, int n) {
+            for (int i = n - 1; i >= 0; i--) {
+                if (((bits >>> i) & 1) != 0) {
+                    buffer[bitLength >>> 3] |= (byte) (0x80 >>> (bitLength & 7));
+                }
+                bitLength++;
+            }
+        }
+
+        public byte[] getBuffer() {
+            return buffer;
+        }
+
+        public int getBitLength() {
+            return bitLength;
+        }
+
+        /**
+         * @return the number of bytes the encoded bits take
+         */
+        public int getByteLength() {
+            return (bitLength + 7) >>> 3;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getFirstTimestamp() {
+            return firstTimestamp;
+        }
+
+        public long getLastTimestamp() {
+            return lastTimestamp;
+        }
+    }
+
+    /**
+     * Decodes a block.
+     *
+     * @param bits the buffer holding the encoded bits
+     * @param offset the position of the first byte of the block in the buffer
+     * @param count the number of samples in the block
+     * @param firstTimestamp the timestamp of the first sample
+     * @param visitor receives the samples
+     */
+    public static void decode(ByteBuffer bits, int offset, int count, long firstTimestamp, SampleVisitor visitor) {
+        BitReader reader = new BitReader(bits, offset);
+        long timestamp = firstTimestamp;
+        long delta = 0;
+        int value = 0;
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                value = (int) reader.read(32);
+            } else {
+                delta += readDeltaOfDelta(reader);
+                timestamp += delta;
+                if (reader.read(1) != 0) {
+                    if (reader.read(1) != 0) {
+                        leading = (int) reader.read(5);
+                        int length = (int) reader.read(5) + 1;
+                        trailing = 32 - leading - length;
+                    }
+                    int length = 32 - leading - trailing;
+                    value ^= (int) (reader.read(length) << trailing);
+                }
+            }
+            visitor.onSample(timestamp, value);
+        }
+    }
+
+    private static long readDeltaOfDelta(BitReader reader) {
+        if (reader.read(1) == 0) {
+            return 0;
+        }
+        if (reader.read(1) == 0) {
+            return signed(reader.read(7), 7);
+        }
+        if (reader.read(1) == 0) {
+            return signed(reader.read(9), 9);
+        }
+        if (reader.read(1) == 0) {
+            return signed(reader.read(12), 12);
+        }
+        return signed(reader.read(32), 32);
+    }
+
+    private static long signed(long bits, int n) {
+        return (bits << (64 - n)) >> (64 - n);
+    }
+
+    private static final class BitReader {
+        private final ByteBuffer buffer;
+        private final int offset;
+        private int position;
+
+        BitReader(ByteBuffer buffer, int offset) {
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+
+        long read(int n) {
+            long bits = 0;
+            for (int i = 0; i < n; i++) {
+                int b = buffer.get(offset + (position >>> 3));
+                bits = (bits << 1) | ((b >>> (7 - (position & 7))) & 1);
+                position++;
+            }
+            return bits;
+        }
+    }
+}
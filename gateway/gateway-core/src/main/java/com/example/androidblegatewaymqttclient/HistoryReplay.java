@@ -0,0 +1,317 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers history requests of dashboards from the ReadingHistory, so a dashboard that just
+ * connected shows the recent values right away instead of waiting for the next samples.
+ * <p>
+ * A request is a message on {@link #REQUEST_TOPIC}:
+ * <pre>
+ * replyId,fromMillis[,toMillis[,channel[,address]]]
+ * </pre>
+ * A fromMillis of 0 or less is relative to the clock of the gateway, -600000 asks for the last ten
+ * minutes whatever the clock of the dashboard says. A missing or 0 toMillis means now, a missing
+ * channel or address means all of them. The samples go back on {@code node/history/<replyId>} in
+ * the format of the batches, one line per sample:
+ * <pre>
+ * address,channel,timestampMillis,value
+ * </pre>
+ * ordered by time within every peripheral and channel, at most {@link #DEFAULT_CHUNK_SAMPLES} per
+ * message and one message per {@link #DEFAULT_CHUNK_INTERVAL_MS}, so a replay does not crowd out
+ * the live samples. The last message goes on {@code node/history/<replyId>/end} with the number
+ * of samples sent.
+ * <p>
+ * A replay sends at most {@link #DEFAULT_MAX_SAMPLES} samples, split evenly over the series it
+ * covers, and a series with more samples in the range than its share sends the newest ones.
+ */
+public class HistoryReplay {
+
+    public final static String REQUEST_TOPIC = "sensor/history";
+    public final static String REPLY_TOPIC_PREFIX = "node/history/";
+    public final static String END_SUFFIX = "/end";
+    public final static int DEFAULT_CHUNK_SAMPLES = 100;
+    public final static long DEFAULT_CHUNK_INTERVAL_MS = 20;
+    public final static int DEFAULT_MAX_SAMPLES = 10000;
+    public final static int MAX_ACTIVE_REPLAYS = 4;
+
+    private final static int MAX_REPLY_ID_LENGTH = 64;
+    private final static SensorChannel[] CHANNELS = SensorChannel.values();
+
+    private final MessageTransport transport;
+    private final ReadingHistory history;
+    private final ScheduledExecutorService worker;
+    private int chunkSamples = DEFAULT_CHUNK_SAMPLES;
+    private long chunkIntervalMs = DEFAULT_CHUNK_INTERVAL_MS;
+    private int maxSamples = DEFAULT_MAX_SAMPLES;
+
+    // Counters, see the getters
+    private int active;
+    private long requests;
+    private long rejected;
+    private long replayed;
+    private long messages;
+
+    /**
+     * @param transport where the replies go
+     * @param history where the samples come from
+     */
+    public HistoryReplay(MessageTransport transport, ReadingHistory history) {
+        this.transport = transport;
+        this.history = history;
+        this.worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "history-replay");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param chunkSamples the largest number of samples in one message
+     * @param chunkIntervalMs the time between two messages of one replay
+     * @param maxSamples the largest number of samples one replay sends
+     */
+    public synchronized void setPacing(int chunkSamples, long chunkIntervalMs, int maxSamples) {
+        if (chunkSamples < 1 || chunkIntervalMs < 0 || maxSamples < 1) {
+            throw new IllegalArgumentException("Invalid pacing");
+        }
+        this.chunkSamples = chunkSamples;
+        this.chunkIntervalMs = chunkIntervalMs;
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * Handles a message of the broker.
+     *
+     * @param topic the topic of the message
+     * @param payload the payload of the message
+     * @return true if the message was a history request and the replay was started
+     */
+    public boolean onMessage(String topic, String payload) {
+        if (!REQUEST_TOPIC.equals(topic)) {
+            return false;
+        }
+        return request(payload, System.currentTimeMillis());
+    }
+
+    /**
+     * Starts a replay, see the class comment for the format of the request.
+     *
+     * @param request the request
+     * @param nowMillis the current time
+     * @return false if the request is invalid or too many replays are running
+     */
+    public synchronized boolean request(String request, long nowMillis) {
+        requests++;
+        String[] fields = request.trim().split(",");
+        Replay replay;
+        try {
+            String replyId = fields[0];
+            if (replyId.isEmpty() || replyId.length() > MAX_REPLY_ID_LENGTH || replyId.indexOf('/') >= 0
+                    || replyId.indexOf('+') >= 0 || replyId.indexOf('#') >= 0) {
+                throw new IllegalArgumentException("Invalid reply id " + replyId);
+            }
+            long from = Long.parseLong(fields[1].trim());
+            long to = fields.length > 2 ? Long.parseLong(fields[2].trim()) : 0;
+            SensorChannel channel = fields.length > 3 && !fields[3].isEmpty() ? channelOf(fields[3].trim()) : null;
+            String address = fields.length > 4 && !fields[4].isEmpty() ? fields[4].trim() : null;
+            replay = new Replay(replyId, from <= 0 ? nowMillis + from : from, to <= 0 ? nowMillis + 1 : to,
+                    channel, address);
+        } catch (RuntimeException e) {
+            // Also covers missing fields and numbers that do not parse
+            rejected++;
+            return false;
+        }
+        if (active >= MAX_ACTIVE_REPLAYS || worker.isShutdown()) {
+            rejected++;
+            return false;
+        }
+        active++;
+        try {
+            worker.execute(replay);
+        } catch (RejectedExecutionException e) {
+            // Stopped in the meantime
+            active--;
+            rejected++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops the replays that are running and ends the worker thread
+     */
+    public void stop() {
+        worker.shutdownNow();
+    }
+
+    public boolean awaitStopped(long timeout, TimeUnit unit) throws InterruptedException {
+        return worker.awaitTermination(timeout, unit);
+    }
+
+    private synchronized void finished(long samples, long chunks) {
+        active--;
+        replayed += samples;
+        messages += chunks;
+    }
+
+    private static SensorChannel channelOf(String key) {
+        for (SensorChannel channel : CHANNELS) {
+            if (channel.getKey().equals(key)) {
+                return channel;
+            }
+        }
+        throw new IllegalArgumentException("Unknown channel " + key);
+    }
+
+    /**
+     * @return the number of requests received, rejected ones included
+     */
+    public synchronized long getRequestCount() {
+        return requests;
+    }
+
+    /**
+     * @return the number of requests that were invalid or came while too many replays were running
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * @return the number of samples sent by finished replays
+     */
+    public synchronized long getReplayedCount() {
+        return replayed;
+    }
+
+    /**
+     * @return the number of messages sent by finished replays, the end messages included
+     */
+    public synchronized long getMessageCount() {
+        return messages;
+    }
+
+    /**
+     * One replay, runs on the worker thread and schedules itself again after every message. A
+     * series is copied out of the history when the replay gets to it, so the history is not locked
+     * while the messages go out.
+     */
+    private final class Replay implements Runnable {
+        final String topic;
+        final long from;
+        final long to;
+        final SensorChannel channel;
+        final String[] devices;
+        final int chunk;
+        final long interval;
+        final long[] timestamps;
+        final int[] values;
+        final StringBuilder payload = new StringBuilder(1024);
+        // Next series to load, device index times the number of channels plus channel index
+        int nextSeries;
+        // Series not loaded yet, the budget left is split over them
+        int seriesLeft;
+        String address;
+        SensorChannel current;
+        // Samples of the current series, and how many of them were sent
+        int length;
+        int position;
+        int budget;
+        long sent;
+        long chunks;
+
+        Replay(String replyId, long from, long to, SensorChannel channel, String address) {
+            this.topic = REPLY_TOPIC_PREFIX + replyId;
+            this.from = from;
+            this.to = to;
+            this.channel = channel;
+            this.devices = address == null ? history.getDevices() : new String[]{address};
+            this.chunk = chunkSamples;
+            this.interval = chunkIntervalMs;
+            this.budget = maxSamples;
+            this.seriesLeft = devices.length * (channel == null ? CHANNELS.length : 1);
+            // Big enough for the share of any series
+            this.timestamps = new long[Math.min(maxSamples, history.getCapacity())];
+            this.values = new int[timestamps.length];
+        }
+
+        @Override
+        public void run() {
+            // The slot of the replay is given back however it ends
+            boolean scheduled = false;
+            try {
+                payload.setLength(0);
+                int lines = 0;
+                while (lines < chunk && nextSample()) {
+                    MqttPublisher.appendRecord(payload, address, current, values[position], timestamps[position]);
+                    position++;
+                    lines++;
+                }
+                if (lines > 0) {
+                    transport.publishToTopic(topic, payload.toString());
+                    sent += lines;
+                    chunks++;
+                }
+                if (lines == chunk) {
+                    worker.schedule(this, interval, TimeUnit.MILLISECONDS);
+                    scheduled = true;
+                    return;
+                }
+                transport.publishToTopic(topic + END_SUFFIX, Long.toString(sent));
+                chunks++;
+            } catch (RejectedExecutionException e) {
+                // Stopped, the replay ends without its end message
+            } finally {
+                if (!scheduled) {
+                    finished(sent, chunks);
+                }
+            }
+        }
+
+        /**
+         * @return false when the replay is complete, otherwise the sample at position is next
+         */
+        private boolean nextSample() {
+            while (position >= length) {
+                if (!loadNextSeries()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return false when there is no series left with samples in the range
+         */
+        private boolean loadNextSeries() {
+            while (nextSeries < devices.length * CHANNELS.length) {
+                int series = nextSeries++;
+                SensorChannel candidate = CHANNELS[series % CHANNELS.length];
+                if (channel != null && candidate != channel) {
+                    continue;
+                }
+                address = devices[series / CHANNELS.length];
+                current = candidate;
+                position = 0;
+                // An even share of what is left, what a short series does not take goes to the next
+                int share = (budget + seriesLeft - 1) / seriesLeft;
+                seriesLeft--;
+                length = history.range(address, current, from, to, Math.min(share, timestamps.length),
+                        timestamps, values);
+                budget -= length;
+                if (length > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of latencies in microseconds, in the log-linear buckets of an HDR histogram:
+ * values below 16 get a bucket each, above that every power of two is split into 16 buckets, so
+ * a bucket is at most 1/16 of its values wide. Values up to {@link #MAX_VALUE_US}, about 19
+ * hours, fit in 528 buckets, larger ones count in the last bucket.
+ * <p>
+ * Recording only increments atomic counters, it allocates nothing and may be called on any
+ * thread. Percentiles are read from the buckets, as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+
+    public final static long MAX_VALUE_US = (1L << 36) - 1;
+
+    private final static int SUB_BUCKET_BITS = 4;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final static int BUCKETS = bucketOf(MAX_VALUE_US) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one latency.
+     *
+     * @param micros the latency in microseconds, negative values count as 0
+     */
+    public void record(long micros) {
+        long value = Math.min(Math.max(micros, 0), MAX_VALUE_US);
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Records the time since a System.nanoTime()
+     */
+    public void recordSinceNanos(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * @return the number of latencies recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxUs() {
+        return max.get();
+    }
+
+    public long getMeanUs() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency in microseconds that the percentile of the recorded latencies does not
+     * exceed, 0 if nothing was recorded
+     */
+    public long getPercentileUs(double percentile) {
+        return percentileOf(snapshot(), percentile);
+    }
+
+    /**
+     * @return a copy of the bucket counts, for {@link #percentileOf(long[], double)}
+     */
+    public long[] snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * @param buckets bucket counts of a snapshot, or the difference of two snapshots
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket the percentile falls in, 0 for empty buckets
+     */
+    public static long percentileOf(long[] buckets, double percentile) {
+        long total = 0;
+        for (long bucketCount : buckets) {
+            total += bucketCount;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(buckets.length - 1);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long subBucket = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        long[] buckets = snapshot();
+        return getCount() + " recorded, p50 " + percentileOf(buckets, 50) + " us, p90 "
+                + percentileOf(buckets, 90) + " us, p99 " + percentileOf(buckets, 99) + " us, max "
+                + getMaxUs() + " us, mean " + getMeanUs() + " us";
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the MQTT broker, so the publishing side runs without a network.
+ * <p>
+ * Messages are handed to the matching subscribers right away on the publishing thread. Topic
+ * filters use the MQTT wildcards, + for one level and # for the rest of the topic. Retained
+ * messages are kept per topic and handed to every new subscription that matches. The broker
+ * counts the messages and the bytes the PUBLISH packets would take on the wire.
+ */
+public class LocalBroker implements MessageTransport {
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the messages of a subscription
+     */
+    public interface MessageListener {
+        void onMessage(String topic, byte[] payload);
+    }
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Map<String, byte[]> retained = new ConcurrentHashMap<>();
+    private final int qos;
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong payloadBytes = new AtomicLong();
+    private final AtomicLong packetBytes = new AtomicLong();
+
+    public LocalBroker() {
+        this(1);
+    }
+
+    /**
+     * @param qos the quality of service the packet sizes are computed for
+     */
+    public LocalBroker(int qos) {
+        this.qos = qos;
+    }
+
+    /**
+     * @param topicFilter the topics to receive, may hold + and # wildcards
+     * @param listener receives the messages
+     */
+    public void subscribe(String topicFilter, MessageListener listener) {
+        subscriptions.add(new Subscription(topicFilter, listener));
+        for (Map.Entry<String, byte[]> message : retained.entrySet()) {
+            if (matches(topicFilter, message.getKey())) {
+                listener.onMessage(message.getKey(), message.getValue());
+            }
+        }
+    }
+
+    public void unsubscribe(MessageListener listener) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    @Override
+    public void publishToTopic(String topic, String payload) {
+        publishToTopic(topic, payload.getBytes(UTF_8));
+    }
+
+    @Override
+    public void publishToTopic(String topic, byte[] payload) {
+        messages.incrementAndGet();
+        payloadBytes.addAndGet(payload.length);
+        packetBytes.addAndGet(MqttPackets.publishPacketSize(topic.length(), payload.length, qos));
+        for (Subscription subscription : subscriptions) {
+            if (matches(subscription.topicFilter, topic)) {
+                subscription.listener.onMessage(topic, payload);
+            }
+        }
+    }
+
+    @Override
+    public void publishRetained(String topic, byte[] payload) {
+        if (payload.length == 0) {
+            retained.remove(topic);
+        } else {
+            retained.put(topic, payload);
+        }
+        publishToTopic(topic, payload);
+    }
+
+    /**
+     * @return the number of topics with a retained message
+     */
+    public int getRetainedCount() {
+        return retained.size();
+    }
+
+    public long getMessageCount() {
+        return messages.get();
+    }
+
+    public long getPayloadBytes() {
+        return payloadBytes.get();
+    }
+
+    /**
+     * @return the bytes the PUBLISH packets would take on the wire
+     */
+    public long getPacketBytes() {
+        return packetBytes.get();
+    }
+
+    /**
+     * Matches a topic against a filter with MQTT wildcards, without splitting either.
+     *
+     * @param topicFilter the filter, for example node/+ or sensor/#
+     * @param topic the topic of a message
+     * @return true if the topic matches the filter
+     */
+    static boolean matches(String topicFilter, String topic) {
+        int f = 0;
+        int t = 0;
+        while (f < topicFilter.length()) {
+            char c = topicFilter.charAt(f);
+            if (c == '#') {
+                return true;
+            }
+            if (c == '+') {
+                while (t < topic.length() && topic.charAt(t) != '/') {
+                    t++;
+                }
+                f++;
+                continue;
+            }
+            if (t >= topic.length() || topic.charAt(t) != c) {
+                // sensor/# also matches sensor itself
+                return t == topic.length() && topicFilter.startsWith("/#", f);
+            }
+            f++;
+            t++;
+        }
+        return t == topic.length();
+    }
+
+    private static final class Subscription {
+        final String topicFilter;
+        final MessageListener listener;
+
+        Subscription(String topicFilter, MessageListener listener) {
+            this.topicFilter = topicFilter;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.androidblegatewaymqttclient;
+
+/**
+ * Where the publishing side of the gateway sends its messages: the MQTT client on the phone,
+ * or the LocalBroker when the pipeline runs on a plain JVM.
+ */
+public interface MessageTransport {
+
+    /**
+     * Publishes a UTF-8 text message.
+     *
+     * @param topic the topic to publish on
+     * @param payload the text of the message
+     */
+    void publishToTopic(String topic, String payload);
+
+    /**
+     * Publishes a binary message.
+     *
+     * @param topic the topic to publish on
+     * @param payload the bytes of the message
+     */
+    void publishToTopic(String topic, byte[] payload);
+
+    /**
+     * Publishes the current state of a topic as a retained message, which the broker hands to
+     * every new subscriber right away. A later retained message on the topic replaces it. Only
+     * the last state matters, so it may skip the outbound journal and be sent again after a
+     * reconnect instead.
+     *
+     * @param topic the topic to publish on
+     * @param payload the bytes of the message, empty to clear the retained message
+     */
+    void publishRetained(String topic, byte[] payload);
+}
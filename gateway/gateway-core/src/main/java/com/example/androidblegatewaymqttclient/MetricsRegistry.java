@@ -0,0 +1,147 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The counters, gauges and latency histograms of the gateway, by name.
+ * <p>
+ * Metrics are looked up or created once, when a component starts, and the component keeps the
+ * object: recording on it only touches atomic counters, allocates nothing and may happen on any
+ * thread. Gauges are read when the metrics are read, so they cost nothing in between.
+ * <p>
+ * Names are dotted, the component first, for example {@code mqtt.reconnects}. Latencies are in
+ * microseconds and their names end in {@code _us}.
+ */
+public class MetricsRegistry {
+
+    /**
+     * A value that is read when the metrics are read, for example the depth of a queue
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    /**
+     * A count that only goes up
+     */
+    public static final class Counter {
+        private final AtomicLong count = new AtomicLong();
+        private final boolean rated;
+
+        Counter(boolean rated) {
+            this.rated = rated;
+        }
+
+        public void increment() {
+            count.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            count.addAndGet(delta);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return true if the rate of the counter is exported next to the count
+         */
+        public boolean isRated() {
+            return rated;
+        }
+    }
+
+    private final Map<String, Object> metrics = new TreeMap<>();
+
+    /**
+     * @return the counter of a name, created on first use
+     */
+    public Counter counter(String name) {
+        return counter(name, false);
+    }
+
+    /**
+     * A counter whose rate per second is exported next to its count, for example the samples of
+     * a peripheral.
+     *
+     * @return the counter of a name, created on first use
+     */
+    public Counter meter(String name) {
+        return counter(name, true);
+    }
+
+    private synchronized Counter counter(String name, boolean rated) {
+        Object metric = metrics.get(name);
+        if (metric == null) {
+            metric = new Counter(rated);
+            metrics.put(name, metric);
+        } else if (!(metric instanceof Counter)) {
+            throw new IllegalArgumentException(name + " is not a counter");
+        }
+        return (Counter) metric;
+    }
+
+    /**
+     * @return the histogram of a name, created on first use
+     */
+    public synchronized LatencyHistogram histogram(String name) {
+        Object metric = metrics.get(name);
+        if (metric == null) {
+            metric = new LatencyHistogram();
+            metrics.put(name, metric);
+        } else if (!(metric instanceof LatencyHistogram)) {
+            throw new IllegalArgumentException(name + " is not a histogram");
+        }
+        return (LatencyHistogram) metric;
+    }
+
+    /**
+     * Sets the gauge of a name, replacing the one set before
+     */
+    public synchronized void gauge(String name, Gauge gauge) {
+        Object metric = metrics.get(name);
+        if (metric != null && !(metric instanceof Gauge)) {
+            throw new IllegalArgumentException(name + " is not a gauge");
+        }
+        metrics.put(name, gauge);
+    }
+
+    /**
+     * Removes a metric, for example the gauges of a component that stopped
+     */
+    public synchronized void remove(String name) {
+        metrics.remove(name);
+    }
+
+    /**
+     * @return the metrics by name, in name order
+     */
+    synchronized Map<String, Object> copy() {
+        return new TreeMap<>(metrics);
+    }
+
+    /**
+     * @return the current value of every metric, one per line, counters and gauges as
+     * {@code name value}, histograms as {@code name count, percentiles, max and mean}
+     */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(1024);
+        for (Map.Entry<String, Object> entry : copy().entrySet()) {
+            Object metric = entry.getValue();
+            out.append(entry.getKey()).append(' ');
+            if (metric instanceof Counter) {
+                out.append(((Counter) metric).getCount());
+            } else if (metric instanceof Gauge) {
+                out.append(((Gauge) metric).getValue());
+            } else {
+                out.append(metric);
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.androidblegatewaymqttclient;
+
+/**
+ * Sizes of MQTT 3.1.1 packets, to account for what the gateway puts on the wire.
+ */
+public final class MqttPackets {
+
+    private MqttPackets() {
+    }
+
+    /**
+     * Computes the size of an MQTT 3.1.1 PUBLISH packet: fixed header with variable length
+     * remaining length, topic with its length prefix, packet identifier for QoS 1 and 2, payload.
+     *
+     * @param topicLength length of the topic in bytes
+     * @param payloadLength length of the payload in bytes
+     * @param qos quality of service of the message
+     * @return the number of bytes the packet takes on the wire
+     */
+    public static int publishPacketSize(int topicLength, int payloadLength, int qos) {
+        int remaining = 2 + topicLength + (qos > 0 ? 2 : 0) + payloadLength;
+        int lengthBytes = 1;
+        for (int rest = remaining >> 7; rest > 0; rest >>= 7) {
+            lengthBytes++;
+        }
+        return 1 + lengthBytes + remaining;
+    }
+}
@@ -0,0 +1,391 @@
+package com.example.androidblegatewaymqttclient;
+
+import com.example.androidblegatewaymqttclient.BinaryFrameCodec.FrameWriter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipeline stage that publishes decoded samples to MQTT on its own worker thread.
+ * <p>
+ * The stage subscribes to the SensorEventBus with a bounded ring as hand-off queue, so the
+ * GATT callbacks only copy the sample into the ring, the UI thread never touches the network
+ * and a slow uplink drops the oldest samples instead of blocking BLE ingestion. Because it
+ * listens on the bus of the service and not through the activity, publishing keeps going
+ * while the activity is paused.
+ * <p>
+ * In batching mode samples are collected and sent as one message on {@link #BATCH_TOPIC} when
+ * the linger time since the first sample of the batch passed, or the batch reached its maximum
+ * number of samples or bytes. The very first batch goes out with its first sample, so the
+ * broker gets a reading as soon as there is one after a start. The payload has one record per line:
+ * <pre>
+ * address,channel,timestampMillis,value
+ * </pre>
+ * for example {@code 24:0A:C4:00:00:01,temperature,1588080000000,27.50}.
+ * <p>
+ * With the {@link PayloadFormat#BINARY} format the samples of each peripheral are sent as
+ * BinaryFrameCodec frames on {@link #FRAME_TOPIC} instead, as many per frame as the batch
+ * triggers allow. Frames are filled that way with or without batching: a frame of one sample
+ * spends its 15 byte header on a single record and is larger than the text message it replaces.
+ * <p>
+ * An optional DeadbandFilter runs on the worker thread before a sample is encoded, so samples
+ * that did not change enough never reach the uplink.
+ * <p>
+ * With a MetricsRegistry the time from the GATT callback to the hand-off to the transport is
+ * recorded for every message in {@link #ENQUEUE_LATENCY_METRIC}, for a batch from its oldest sample.
+ */
+public class MqttPublisher implements SampleListener {
+    public final static int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * How samples are encoded on the wire
+     */
+    public enum PayloadFormat {
+        // Human readable UTF-8 text, one topic per channel or node/batch
+        TEXT,
+        // BinaryFrameCodec frames on node/frame
+        BINARY
+    }
+
+    public final static String BATCH_TOPIC = "node/batch";
+    public final static String FRAME_TOPIC = "node/frame";
+    public final static long DEFAULT_LINGER_MS = 1000;
+    public final static int DEFAULT_BATCH_SAMPLES = 32;
+    public final static int DEFAULT_BATCH_BYTES = 1024;
+    public final static String ENQUEUE_LATENCY_METRIC = "publisher.callback_to_enqueue_us";
+
+    private final MessageTransport transport;
+    private final ScheduledExecutorService worker;
+    private SensorEventBus bus;
+    private SensorEventBus.Subscription subscription;
+    private boolean running;
+
+    // Filtering, encoding and batching settings
+    private volatile DeadbandFilter filter;
+    private volatile PayloadFormat payloadFormat = PayloadFormat.TEXT;
+    private volatile boolean batching;
+    private volatile long lingerMs = DEFAULT_LINGER_MS;
+    private volatile int maxBatchSamples = DEFAULT_BATCH_SAMPLES;
+    private volatile int maxBatchBytes = DEFAULT_BATCH_BYTES;
+    private volatile LatencyHistogram enqueueLatency;
+
+    // Only used on the worker thread
+    private final StringBuilder text = new StringBuilder(16);
+    private final StringBuilder batch = new StringBuilder(DEFAULT_BATCH_BYTES + 64);
+    private final Map<String, DeviceFrame> frames = new HashMap<>();
+    private int batchSamples;
+    private int batchBytes;
+    private long batchOldestMillis = Long.MAX_VALUE;
+    private ScheduledFuture<?> lingerTimer;
+    private volatile long published;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param transport where the messages go, the MQTT client or a LocalBroker
+     */
+    public MqttPublisher(MessageTransport transport) {
+        this.transport = transport;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mqtt-publisher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // A linger timer cancelled by the last flush must not keep the worker alive after stop
+        executor.setRemoveOnCancelPolicy(true);
+        this.worker = executor;
+    }
+
+    /**
+     * Filters the samples before they are published.
+     *
+     * @param filter the filter, or null to publish every sample
+     */
+    public void setFilter(DeadbandFilter filter) {
+        this.filter = filter;
+    }
+
+    public DeadbandFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Records the latencies and the queue of the publisher in a registry
+     */
+    public void setMetrics(MetricsRegistry registry) {
+        enqueueLatency = registry.histogram(ENQUEUE_LATENCY_METRIC);
+        registry.gauge("publisher.queue_depth", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return getQueueDepth();
+            }
+        });
+        registry.gauge("publisher.dropped", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return getDroppedCount();
+            }
+        });
+        registry.gauge("publisher.published", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return published;
+            }
+        });
+    }
+
+    /**
+     * Selects how samples are encoded. What is batched so far is sent in the old format first.
+     *
+     * @param payloadFormat the encoding to use from now on
+     */
+    public void setPayloadFormat(PayloadFormat payloadFormat) {
+        worker.execute(flushTask);
+        this.payloadFormat = payloadFormat;
+    }
+
+    public PayloadFormat getPayloadFormat() {
+        return payloadFormat;
+    }
+
+    /**
+     * Switches to batching mode. A batch is sent when the first of the triggers fires.
+     *
+     * @param lingerMs the longest time a sample waits in a batch
+     * @param maxSamples the number of samples that sends the batch right away
+     * @param maxBytes the payload size in bytes that sends the batch right away
+     */
+    public void setBatching(long lingerMs, int maxSamples, int maxBytes) {
+        if (lingerMs < 0 || maxSamples < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Invalid batching settings");
+        }
+        this.lingerMs = lingerMs;
+        this.maxBatchSamples = maxSamples;
+        this.maxBatchBytes = maxBytes;
+        this.batching = true;
+    }
+
+    /**
+     * Switches back to one message per sample in the text format, after sending what is batched
+     * so far. Binary frames still wait for the batch triggers.
+     */
+    public void disableBatching() {
+        batching = false;
+        worker.execute(flushTask);
+    }
+
+    /**
+     * Starts publishing the samples of a bus.
+     *
+     * @param bus the bus to take samples from
+     * @param queueCapacity how many samples may wait for the uplink before the oldest are dropped
+     */
+    public synchronized void start(SensorEventBus bus, int queueCapacity) {
+        if (running) {
+            return;
+        }
+        this.bus = bus;
+        subscription = bus.register(this, worker, queueCapacity);
+        running = true;
+    }
+
+    /**
+     * Stops publishing and ends the worker thread. The current batch is sent, samples still
+     * queued are dropped.
+     */
+    public synchronized void stop() {
+        if (running) {
+            bus.unregister(this);
+            worker.execute(flushTask);
+            running = false;
+        }
+        worker.shutdown();
+    }
+
+    /**
+     * Waits for the worker thread to send the last batch after {@link #stop()}.
+     *
+     * @return true if the worker ended within the timeout
+     */
+    public boolean awaitStopped(long timeout, TimeUnit unit) throws InterruptedException {
+        return worker.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Called on the worker thread for every sample taken from the hand-off queue
+     */
+    @Override
+    public void onSample(String address, SensorChannel channel, int value, long timestampMillis, long version) {
+        DeadbandFilter deadbandFilter = filter;
+        if (deadbandFilter != null && !deadbandFilter.accept(address, channel, value, timestampMillis)) {
+            return;
+        }
+        boolean binary = payloadFormat == PayloadFormat.BINARY;
+        if ((batching || binary) && timestampMillis < batchOldestMillis) {
+            batchOldestMillis = timestampMillis;
+        }
+        if (binary) {
+            appendFrame(address, channel, value, timestampMillis);
+            return;
+        }
+        if (!batching) {
+            text.setLength(0);
+            SigCharacteristicCodec.appendFixedPoint(text, value, channel.getDecimals());
+            transport.publishToTopic(channel.getTopic(), text.toString());
+            published++;
+            recordEnqueued(timestampMillis);
+            return;
+        }
+        int before = batch.length();
+        appendRecord(batch, address, channel, value, timestampMillis);
+        onBatched(batch.length() - before);
+    }
+
+    /**
+     * Adds a sample to the binary frame of its peripheral, runs on the worker thread. The frames
+     * are sent by the batch triggers even without batching, see the class comment.
+     */
+    private void appendFrame(String address, SensorChannel channel, int value, long timestampMillis) {
+        DeviceFrame frame = frames.get(address);
+        if (frame == null) {
+            frame = new DeviceFrame(BinaryFrameCodec.parseAddress(address), maxBatchBytes);
+            frames.put(address, frame);
+        }
+        FrameWriter writer = frame.writer;
+        if (writer.getRecordCount() == 0) {
+            writer.begin(frame.deviceId, frame.sequence, timestampMillis);
+        }
+        int before = writer.getLength();
+        if (!writer.append(channel, value, timestampMillis)) {
+            // Frame full or the sample is too far from its base timestamp, start a new one
+            send(frame);
+            writer.begin(frame.deviceId, frame.sequence, timestampMillis);
+            before = writer.getLength();
+            writer.append(channel, value, timestampMillis);
+        }
+        onBatched(writer.getLength() - before);
+    }
+
+    /**
+     * Checks the batch triggers after a sample was added to the batch
+     *
+     * @param bytes the number of bytes the sample added
+     */
+    private void onBatched(int bytes) {
+        batchSamples++;
+        batchBytes += bytes;
+        if (published == 0 || batchSamples >= maxBatchSamples || batchBytes >= maxBatchBytes) {
+            flush();
+        } else if (lingerTimer == null) {
+            lingerTimer = worker.schedule(flushTask, lingerMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the binary frame of one peripheral and advances its sequence number
+     */
+    private void send(DeviceFrame frame) {
+        if (frame.writer.getRecordCount() == 0) {
+            return;
+        }
+        transport.publishToTopic(FRAME_TOPIC, frame.writer.toByteArray());
+        published++;
+        frame.sequence = (frame.sequence + 1) & 0xFFFF;
+        frame.writer.begin(frame.deviceId, frame.sequence, 0);
+    }
+
+    /**
+     * Appends one sample to a batch payload, see the class comment for the format.
+     */
+    static StringBuilder appendRecord(StringBuilder out, String address, SensorChannel channel,
+                                      int value, long timestampMillis) {
+        out.append(address).append(',')
+                .append(channel.getKey()).append(',')
+                .append(timestampMillis).append(',');
+        return SigCharacteristicCodec.appendFixedPoint(out, value, channel.getDecimals()).append('\n');
+    }
+
+    /**
+     * Sends the current batch, runs on the worker thread
+     */
+    private void flush() {
+        if (lingerTimer != null) {
+            lingerTimer.cancel(false);
+            lingerTimer = null;
+        }
+        if (batchSamples == 0) {
+            return;
+        }
+        if (batch.length() > 0) {
+            transport.publishToTopic(BATCH_TOPIC, batch.toString());
+            published++;
+            batch.setLength(0);
+        }
+        for (DeviceFrame frame : frames.values()) {
+            send(frame);
+        }
+        recordEnqueued(batchOldestMillis);
+        batchSamples = 0;
+        batchBytes = 0;
+        batchOldestMillis = Long.MAX_VALUE;
+    }
+
+    /**
+     * Records the time from the GATT callback of a sample to now, after its message was handed to
+     * the transport
+     */
+    private void recordEnqueued(long timestampMillis) {
+        LatencyHistogram histogram = enqueueLatency;
+        if (histogram != null && timestampMillis != Long.MAX_VALUE) {
+            histogram.record((System.currentTimeMillis() - timestampMillis) * 1000);
+        }
+    }
+
+    /**
+     * The binary frame being filled for one peripheral
+     */
+    private static final class DeviceFrame {
+        final long deviceId;
+        final FrameWriter writer;
+        int sequence;
+
+        DeviceFrame(long deviceId, int capacity) {
+            this.deviceId = deviceId;
+            this.writer = new FrameWriter(capacity);
+        }
+    }
+
+    /**
+     * @return the number of messages handed to the MQTT client
+     */
+    public long getPublishedCount() {
+        return published;
+    }
+
+    /**
+     * @return the number of samples waiting in the hand-off queue
+     */
+    public synchronized int getQueueDepth() {
+        return subscription == null ? 0 : subscription.getPending();
+    }
+
+    /**
+     * @return the number of samples dropped because the uplink fell behind
+     */
+    public synchronized long getDroppedCount() {
+        return subscription == null ? 0 : subscription.getDroppedCount();
+    }
+}
@@ -0,0 +1,445 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only journal of outbound MQTT messages.
+ * <p>
+ * Messages are appended to memory-mapped segment files, so they survive the death of the
+ * process and an uplink outage is only limited by disk space. Every message has an offset; the
+ * sender drains messages in order from the acknowledged offset and acknowledges them once the
+ * broker confirmed delivery. The acknowledged offset is kept in a small mapped file as well.
+ * When a segment is full the journal rolls over to a new one, and segments that only hold
+ * acknowledged messages are deleted.
+ * <p>
+ * A long outage would otherwise fill the disk: with {@link #setMaxSegments(int)} the journal
+ * keeps at most that many segments, and a roll over beyond it drops the oldest segment with the
+ * messages that were not acknowledged, which are counted. The newest data is worth more to a
+ * dashboard than the oldest.
+ * <p>
+ * A segment is a sequence of records followed by zeroes:
+ * <pre>
+ * int    length of the rest of the record after the crc
+ * int    CRC32 of the rest of the record
+ * short  topic length
+ * byte[] topic, UTF-8
+ * byte[] payload
+ * </pre>
+ * A length of -1 marks the end of a segment that was rolled over. A record with a bad CRC, left
+ * behind by a write that was cut short, ends the journal when it is opened again.
+ */
+public class OutboundJournal implements Closeable {
+
+    public final static int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private final static int RECORD_HEADER_SIZE = 10;
+    private final static int END_OF_SEGMENT = -1;
+    private final static String SEGMENT_PREFIX = "segment-";
+    private final static String SEGMENT_SUFFIX = ".log";
+    private final static String ACK_FILE = "acked.offset";
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the messages read from the journal
+     */
+    public interface EntryHandler {
+        /**
+         * @param offset the offset of the message
+         * @param nextOffset the offset right after the message, acknowledge this one once it is delivered
+         * @param topic the topic of the message
+         * @param payload the payload of the message
+         */
+        void onEntry(long offset, long nextOffset, String topic, byte[] payload);
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final MappedByteBuffer ackBuffer;
+    private final CRC32 crc = new CRC32();
+    private Segment active;
+    private int writePosition;
+    private long ackedOffset;
+    private boolean closed;
+    private int maxSegments;
+
+    // Counters
+    private long appendedRecords;
+    private long appendedBytes;
+    private long rolledSegments;
+    private long deletedSegments;
+    private long droppedSegments;
+    private long droppedRecords;
+
+    /**
+     * Opens the journal in a directory, recovering the messages that were not acknowledged.
+     *
+     * @param directory the directory that holds the segment files, created if needed
+     * @param segmentSize the size of a segment file in bytes
+     * @throws IOException if the files cannot be created or mapped
+     */
+    public OutboundJournal(File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.ackBuffer = map(new File(directory, ACK_FILE), 8);
+        this.ackedOffset = ackBuffer.getLong(0);
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    long base = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(base, new Segment(base, file, map(file, segmentSize)));
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            roll(ackedOffset);
+        } else {
+            active = segments.lastEntry().getValue();
+            writePosition = recover(active);
+        }
+    }
+
+    /**
+     * Bounds the disk space of the journal to segments times the segment size.
+     *
+     * @param maxSegments the largest number of segments kept, at least 2, or 0 for no bound
+     */
+    public synchronized void setMaxSegments(int maxSegments) {
+        if (maxSegments < 0 || maxSegments == 1) {
+            throw new IllegalArgumentException("maxSegments must be 0 or at least 2");
+        }
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Appends a message.
+     *
+     * @param topic the topic to publish on
+     * @param payload the payload of the message
+     * @return the offset of the message
+     * @throws IOException if a new segment cannot be created, or the journal is closed
+     */
+    public synchronized long append(String topic, byte[] payload) throws IOException {
+        if (closed) {
+            throw new IOException("Journal closed");
+        }
+        byte[] topicBytes = topic.getBytes(UTF_8);
+        int length = 2 + topicBytes.length + payload.length;
+        int recordSize = 8 + length;
+        if (recordSize > segmentSize) {
+            throw new IllegalArgumentException("Message of " + recordSize + " bytes does not fit a segment");
+        }
+        if (writePosition + recordSize > segmentSize) {
+            if (writePosition + 4 <= segmentSize) {
+                active.buffer.putInt(writePosition, END_OF_SEGMENT);
+            }
+            roll(active.base + segmentSize);
+        }
+        crc.reset();
+        crc.update(topicBytes.length >> 8);
+        crc.update(topicBytes.length);
+        crc.update(topicBytes, 0, topicBytes.length);
+        crc.update(payload, 0, payload.length);
+
+        MappedByteBuffer buffer = active.buffer;
+        int position = writePosition;
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putShort(position + 8, (short) topicBytes.length);
+        for (int i = 0; i < topicBytes.length; i++) {
+            buffer.put(position + RECORD_HEADER_SIZE + i, topicBytes[i]);
+        }
+        int payloadPosition = position + RECORD_HEADER_SIZE + topicBytes.length;
+        for (int i = 0; i < payload.length; i++) {
+            buffer.put(payloadPosition + i, payload[i]);
+        }
+        // The length goes in last, a reader never sees a record that is half written
+        buffer.putInt(position, length);
+        writePosition += recordSize;
+        appendedRecords++;
+        appendedBytes += recordSize;
+        return active.base + position;
+    }
+
+    /**
+     * Reads messages in order.
+     *
+     * @param offset the offset to start at, for example the acknowledged offset
+     * @param maxEntries the largest number of messages to read
+     * @param handler receives the messages
+     * @return the offset after the last message read, equal to offset if there was none or the
+     * journal is closed
+     */
+    public synchronized long read(long offset, int maxEntries, EntryHandler handler) {
+        if (closed) {
+            return offset;
+        }
+        if (offset < ackedOffset) {
+            offset = ackedOffset;
+        }
+        int read = 0;
+        while (read < maxEntries) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+            if (entry == null) {
+                // Older segments were deleted, continue with the first one that is left
+                offset = segments.firstKey();
+                continue;
+            }
+            Segment segment = entry.getValue();
+            int position = (int) (offset - segment.base);
+            int length = position + 4 <= segmentSize ? segment.buffer.getInt(position) : END_OF_SEGMENT;
+            if (length == END_OF_SEGMENT || position >= segmentSize) {
+                Long next = segments.higherKey(segment.base);
+                if (next == null) {
+                    break;
+                }
+                offset = next;
+                continue;
+            }
+            if (length <= 0 || position + 8 + length > segmentSize) {
+                break;
+            }
+            int topicLength = segment.buffer.getShort(position + 8);
+            byte[] topicBytes = new byte[topicLength];
+            for (int i = 0; i < topicLength; i++) {
+                topicBytes[i] = segment.buffer.get(position + RECORD_HEADER_SIZE + i);
+            }
+            byte[] payload = new byte[length - 2 - topicLength];
+            int payloadPosition = position + RECORD_HEADER_SIZE + topicLength;
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = segment.buffer.get(payloadPosition + i);
+            }
+            long nextOffset = offset + 8 + length;
+            handler.onEntry(offset, nextOffset, new String(topicBytes, UTF_8), payload);
+            offset = nextOffset;
+            read++;
+        }
+        return offset;
+    }
+
+    /**
+     * Marks all messages before an offset as delivered and deletes the segments that only
+     * hold delivered messages.
+     *
+     * @param offset the offset after the last delivered message
+     */
+    public synchronized void acknowledge(long offset) {
+        if (closed || offset <= ackedOffset) {
+            return;
+        }
+        ackedOffset = offset;
+        ackBuffer.putLong(0, offset);
+        while (segments.size() > 1) {
+            Map.Entry<Long, Segment> first = segments.firstEntry();
+            Long next = segments.higherKey(first.getKey());
+            if (next > offset) {
+                break;
+            }
+            segments.remove(first.getKey());
+            if (first.getValue().file.delete()) {
+                deletedSegments++;
+            }
+        }
+    }
+
+    /**
+     * Writes the mapped pages to the storage device, for durability beyond a crash of the process
+     */
+    public synchronized void force() {
+        active.buffer.force();
+        ackBuffer.force();
+    }
+
+    public synchronized long getAckedOffset() {
+        return ackedOffset;
+    }
+
+    /**
+     * @return the offset the next message will be appended at
+     */
+    public synchronized long getEndOffset() {
+        return active.base + writePosition;
+    }
+
+    /**
+     * @return true if there are messages that were not acknowledged
+     */
+    public synchronized boolean hasPending() {
+        return getEndOffset() > ackedOffset && read(ackedOffset, 1, NO_OP) != ackedOffset;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized long getAppendedRecords() {
+        return appendedRecords;
+    }
+
+    public synchronized long getAppendedBytes() {
+        return appendedBytes;
+    }
+
+    public synchronized long getRolledSegments() {
+        return rolledSegments;
+    }
+
+    public synchronized long getDeletedSegments() {
+        return deletedSegments;
+    }
+
+    /**
+     * @return the number of segments dropped with messages that were not acknowledged
+     */
+    public synchronized long getDroppedSegments() {
+        return droppedSegments;
+    }
+
+    /**
+     * @return the number of messages dropped before they were acknowledged
+     */
+    public synchronized long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    /**
+     * Writes the journal to storage. Appends after this fail, reads find nothing.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        force();
+        segments.clear();
+        closed = true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "acked=" + ackedOffset + " end=" + getEndOffset() + " segments=" + segments.size()
+                + " appended=" + appendedRecords + " rolled=" + rolledSegments + " deleted=" + deletedSegments
+                + " dropped=" + droppedRecords;
+    }
+
+    private void roll(long base) throws IOException {
+        File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, base, SEGMENT_SUFFIX));
+        if (active != null) {
+            active.buffer.force();
+            rolledSegments++;
+        }
+        active = new Segment(base, file, map(file, segmentSize));
+        segments.put(base, active);
+        writePosition = 0;
+        while (maxSegments > 0 && segments.size() > maxSegments) {
+            dropOldest();
+        }
+    }
+
+    /**
+     * Drops the oldest segment and the messages in it that were not acknowledged
+     */
+    private void dropOldest() {
+        Map.Entry<Long, Segment> first = segments.pollFirstEntry();
+        Segment segment = first.getValue();
+        int position = (int) Math.max(ackedOffset - segment.base, 0);
+        int records = 0;
+        while (position + 4 <= segmentSize) {
+            int length = segment.buffer.getInt(position);
+            if (length <= 0) {
+                break;
+            }
+            records++;
+            position += 8 + length;
+        }
+        droppedRecords += records;
+        droppedSegments++;
+        // The sender continues with the oldest segment that is left
+        ackedOffset = segments.firstKey();
+        ackBuffer.putLong(0, ackedOffset);
+        if (segment.file.delete()) {
+            deletedSegments++;
+        }
+    }
+
+    /**
+     * Finds the end of the records in a segment, cutting off a record that was half written.
+     *
+     * @return the write position
+     */
+    private int recover(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + 4 <= segmentSize) {
+            int length = buffer.getInt(position);
+            if (length == END_OF_SEGMENT) {
+                return segmentSize;
+            }
+            if (length == 0) {
+                return position;
+            }
+            if (length < 0 || position + 8 + length > segmentSize || !checkCrc(buffer, position, length)) {
+                // A torn write: clear the rest of the segment, so that readers stop here and a
+                // shorter record appended in its place is not followed by its remains
+                for (int i = position; i < segmentSize; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                return position;
+            }
+            position += 8 + length;
+        }
+        return position;
+    }
+
+    private boolean checkCrc(MappedByteBuffer buffer, int position, int length) {
+        crc.reset();
+        for (int i = 0; i < length; i++) {
+            crc.update(buffer.get(position + 8 + i));
+        }
+        return (int) crc.getValue() == buffer.getInt(position + 4);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() < size) {
+                randomAccessFile.setLength(size);
+            }
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private final static EntryHandler NO_OP = new EntryHandler() {
+        @Override
+        public void onEntry(long offset, long nextOffset, String topic, byte[] payload) {
+        }
+    };
+
+    private static final class Segment {
+        final long base;
+        final File file;
+        final MappedByteBuffer buffer;
+
+        Segment(long base, File file, MappedByteBuffer buffer) {
+            this.base = base;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
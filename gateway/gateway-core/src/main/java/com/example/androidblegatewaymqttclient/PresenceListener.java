@@ -0,0 +1,15 @@
+package com.example.androidblegatewaymqttclient;
+
+/**
+ * Receives the connection changes of the peripherals
+ */
+public interface PresenceListener {
+
+    /**
+     * Called when a peripheral connects or disconnects.
+     *
+     * @param address MAC address of the peripheral
+     * @param online true when it connected, false when it disconnected
+     */
+    void onPresence(String address, boolean online);
+}
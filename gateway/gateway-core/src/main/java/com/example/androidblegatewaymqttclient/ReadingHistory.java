@@ -0,0 +1,346 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent history of every channel of every peripheral, in memory.
+ * <p>
+ * Each series, one per peripheral and channel, is a ring of primitive timestamps and
+ * fixed-point values: once full, the oldest sample is overwritten. A sample takes
+ * {@link #BYTES_PER_SAMPLE} bytes, so the memory of the cache is bounded by the capacity of a
+ * series times the largest number of series, both fixed when the cache is created. Samples of a
+ * peripheral that does not fit any more are counted and not kept.
+ * <p>
+ * Queries copy into arrays of the caller, so reading the history for a chart or a late-joining
+ * client does not allocate either. Timestamps of a series are expected to go up, which holds for
+ * the receive time the pipeline stamps on the samples.
+ */
+public class ReadingHistory implements SampleListener {
+
+    // One long timestamp and one int value
+    public final static int BYTES_PER_SAMPLE = 12;
+    public final static int DEFAULT_CAPACITY = 4096;
+    public final static int DEFAULT_MAX_DEVICES = 16;
+
+    private final static SensorChannel[] CHANNELS = SensorChannel.values();
+
+    private final int capacity;
+    private final int maxDevices;
+    private final Map<String, Series[]> devices = new ConcurrentHashMap<>();
+    private volatile long rejected;
+
+    public ReadingHistory() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_DEVICES);
+    }
+
+    /**
+     * @param capacity the number of samples kept per peripheral and channel
+     * @param maxDevices the largest number of peripherals kept
+     */
+    public ReadingHistory(int capacity, int maxDevices) {
+        if (capacity < 1 || maxDevices < 1) {
+            throw new IllegalArgumentException("Invalid history size");
+        }
+        this.capacity = capacity;
+        this.maxDevices = maxDevices;
+    }
+
+    /**
+     * Creates a cache that fits a memory budget.
+     *
+     * @param budgetBytes the memory the samples may take
+     * @param maxDevices the largest number of peripherals kept
+     * @return the cache
+     */
+    public static ReadingHistory withBudget(long budgetBytes, int maxDevices) {
+        long perSeries = budgetBytes / ((long) maxDevices * CHANNELS.length * BYTES_PER_SAMPLE);
+        return new ReadingHistory((int) Math.max(1, Math.min(Integer.MAX_VALUE, perSeries)), maxDevices);
+    }
+
+    /**
+     * Records a sample, called on the thread that publishes on the bus
+     */
+    @Override
+    public void onSample(String address, SensorChannel channel, int value, long timestampMillis, long version) {
+        Series[] series = devices.get(address);
+        if (series == null) {
+            series = addDevice(address);
+            if (series == null) {
+                rejected++;
+                return;
+            }
+        }
+        series[channel.ordinal()].add(timestampMillis, value);
+    }
+
+    private synchronized Series[] addDevice(String address) {
+        Series[] series = devices.get(address);
+        if (series != null || devices.size() >= maxDevices) {
+            return series;
+        }
+        series = new Series[CHANNELS.length];
+        for (int i = 0; i < series.length; i++) {
+            series[i] = new Series(capacity);
+        }
+        devices.put(address, series);
+        return series;
+    }
+
+    /**
+     * Copies the most recent samples of a series, oldest first.
+     *
+     * @param address MAC address of the peripheral
+     * @param channel the channel
+     * @param count the largest number of samples to copy
+     * @param timestamps receives the timestamps, at least count long
+     * @param values receives the fixed-point values, at least count long
+     * @return the number of samples copied
+     */
+    public int last(String address, SensorChannel channel, int count, long[] timestamps, int[] values) {
+        Series series = seriesOf(address, channel);
+        return series == null ? 0 : series.last(count, timestamps, values);
+    }
+
+    /**
+     * Copies the samples of a series received at or after a point in time, oldest first.
+     *
+     * @param address MAC address of the peripheral
+     * @param channel the channel
+     * @param sinceMillis the earliest timestamp to copy
+     * @param timestamps receives the timestamps, its length limits the number of samples
+     * @param values receives the fixed-point values, at least as long as timestamps
+     * @return the number of samples copied; when there are more than fit, the oldest are copied
+     */
+    public int since(String address, SensorChannel channel, long sinceMillis, long[] timestamps, int[] values) {
+        Series series = seriesOf(address, channel);
+        return series == null ? 0 : series.since(sinceMillis, timestamps, values);
+    }
+
+    /**
+     * Copies the most recent samples of a series in a time range, oldest first.
+     *
+     * @param address MAC address of the peripheral
+     * @param channel the channel
+     * @param fromMillis start of the range, inclusive
+     * @param toMillis end of the range, exclusive
+     * @param count the largest number of samples to copy
+     * @param timestamps receives the timestamps, at least count long
+     * @param values receives the fixed-point values, at least count long
+     * @return the number of samples copied; when there are more than count, the newest are copied
+     */
+    public int range(String address, SensorChannel channel, long fromMillis, long toMillis, int count,
+                     long[] timestamps, int[] values) {
+        Series series = seriesOf(address, channel);
+        return series == null || toMillis <= fromMillis ? 0 : series.range(fromMillis, toMillis, count, timestamps, values);
+    }
+
+    /**
+     * Downsamples a time range of a series into buckets of equal duration, for charts. Every
+     * bucket that has samples gets the mean, the minimum and the maximum of its values.
+     *
+     * @param address MAC address of the peripheral
+     * @param channel the channel
+     * @param fromMillis start of the range, inclusive
+     * @param toMillis end of the range, exclusive
+     * @param timestamps receives the start of every non-empty bucket; its length is the number of buckets
+     * @param means receives the rounded mean of every non-empty bucket
+     * @param mins receives the minimum of every non-empty bucket, or null
+     * @param maxs receives the maximum of every non-empty bucket, or null
+     * @return the number of non-empty buckets
+     */
+    public int downsample(String address, SensorChannel channel, long fromMillis, long toMillis,
+                          long[] timestamps, int[] means, int[] mins, int[] maxs) {
+        Series series = seriesOf(address, channel);
+        if (series == null || toMillis <= fromMillis || timestamps.length == 0) {
+            return 0;
+        }
+        return series.downsample(fromMillis, toMillis, timestamps, means, mins, maxs);
+    }
+
+    /**
+     * @return the number of samples kept of a series
+     */
+    public int size(String address, SensorChannel channel) {
+        Series series = seriesOf(address, channel);
+        return series == null ? 0 : series.size();
+    }
+
+    /**
+     * @return the MAC addresses of the peripherals in the cache
+     */
+    public String[] getDevices() {
+        return devices.keySet().toArray(new String[0]);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the bytes the samples of the series created so far take
+     */
+    public long getMemoryBytes() {
+        return (long) devices.size() * CHANNELS.length * capacity * BYTES_PER_SAMPLE;
+    }
+
+    /**
+     * @return the bytes the samples take when every peripheral is in the cache
+     */
+    public long getMemoryBudget() {
+        return (long) maxDevices * CHANNELS.length * capacity * BYTES_PER_SAMPLE;
+    }
+
+    /**
+     * @return the number of samples not kept because the cache had no room for their peripheral
+     */
+    public long getRejectedCount() {
+        return rejected;
+    }
+
+    private Series seriesOf(String address, SensorChannel channel) {
+        Series[] series = devices.get(address);
+        return series == null ? null : series[channel.ordinal()];
+    }
+
+    /**
+     * Ring of the samples of one channel of one peripheral
+     */
+    private static final class Series {
+        private final long[] timestamps;
+        private final int[] values;
+        // Index of the oldest sample
+        private int head;
+        private int size;
+
+        Series(int capacity) {
+            timestamps = new long[capacity];
+            values = new int[capacity];
+        }
+
+        synchronized void add(long timestampMillis, int value) {
+            int capacity = values.length;
+            int tail = (head + size) % capacity;
+            timestamps[tail] = timestampMillis;
+            values[tail] = value;
+            if (size == capacity) {
+                head = (head + 1) % capacity;
+            } else {
+                size++;
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized int last(int count, long[] outTimestamps, int[] outValues) {
+            int n = Math.min(count, size);
+            copy(size - n, n, outTimestamps, outValues);
+            return n;
+        }
+
+        synchronized int since(long sinceMillis, long[] outTimestamps, int[] outValues) {
+            int first = firstAtOrAfter(sinceMillis);
+            int n = Math.min(size - first, outTimestamps.length);
+            copy(first, n, outTimestamps, outValues);
+            return n;
+        }
+
+        synchronized int range(long fromMillis, long toMillis, int count, long[] outTimestamps, int[] outValues) {
+            int first = firstAtOrAfter(fromMillis);
+            int end = firstAtOrAfter(toMillis);
+            int n = Math.min(end - first, count);
+            copy(end - n, n, outTimestamps, outValues);
+            return n;
+        }
+
+        synchronized int downsample(long fromMillis, long toMillis, long[] outTimestamps,
+                                    int[] outMeans, int[] outMins, int[] outMaxs) {
+            int buckets = outTimestamps.length;
+            long bucketMillis = Math.max(1, (toMillis - fromMillis + buckets - 1) / buckets);
+            int written = 0;
+            int currentBucket = -1;
+            long sum = 0;
+            int count = 0;
+            int min = 0;
+            int max = 0;
+            for (int i = firstAtOrAfter(fromMillis); i < size; i++) {
+                int index = (head + i) % values.length;
+                long timestamp = timestamps[index];
+                if (timestamp >= toMillis) {
+                    break;
+                }
+                int bucket = (int) ((timestamp - fromMillis) / bucketMillis);
+                if (bucket != currentBucket) {
+                    if (count > 0) {
+                        written = emit(written, fromMillis + currentBucket * bucketMillis, sum, count, min, max,
+                                outTimestamps, outMeans, outMins, outMaxs);
+                    }
+                    currentBucket = bucket;
+                    sum = 0;
+                    count = 0;
+                }
+                int value = values[index];
+                if (count == 0 || value < min) {
+                    min = value;
+                }
+                if (count == 0 || value > max) {
+                    max = value;
+                }
+                sum += value;
+                count++;
+            }
+            if (count > 0) {
+                written = emit(written, fromMillis + currentBucket * bucketMillis, sum, count, min, max,
+                        outTimestamps, outMeans, outMins, outMaxs);
+            }
+            return written;
+        }
+
+        private static int emit(int written, long bucketStart, long sum, int count, int min, int max,
+                                long[] outTimestamps, int[] outMeans, int[] outMins, int[] outMaxs) {
+            outTimestamps[written] = bucketStart;
+            outMeans[written] = (int) (sum >= 0 ? (sum + count / 2) / count : (sum - count / 2) / count);
+            if (outMins != null) {
+                outMins[written] = min;
+            }
+            if (outMaxs != null) {
+                outMaxs[written] = max;
+            }
+            return written + 1;
+        }
+
+        /**
+         * @return the logical index of the first sample at or after a timestamp, size if none
+         */
+        private int firstAtOrAfter(long timestampMillis) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (timestamps[(head + middle) % timestamps.length] < timestampMillis) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Copies n samples from a logical index on, in at most two array copies
+         */
+        private void copy(int from, int n, long[] outTimestamps, int[] outValues) {
+            int capacity = values.length;
+            int start = (head + from) % capacity;
+            int firstPart = Math.min(n, capacity - start);
+            System.arraycopy(timestamps, start, outTimestamps, 0, firstPart);
+            System.arraycopy(values, start, outValues, 0, firstPart);
+            if (n > firstPart) {
+                System.arraycopy(timestamps, 0, outTimestamps, firstPart, n - firstPart);
+                System.arraycopy(values, 0, outValues, firstPart, n - firstPart);
+            }
+        }
+    }
+}
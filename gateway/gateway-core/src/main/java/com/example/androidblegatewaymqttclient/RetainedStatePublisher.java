@@ -0,0 +1,224 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the current state of every peripheral in retained messages, so a dashboard that
+ * subscribes gets the latest values and who is online with the SUBACK, instead of waiting for
+ * the next samples.
+ * <p>
+ * The latest value of every channel of a peripheral goes on
+ * {@code node/snapshot/<address>}, one line per channel in the format of the batches:
+ * <pre>
+ * address,channel,timestampMillis,value
+ * </pre>
+ * A snapshot is published when a value of the peripheral changed, at most once per interval:
+ * a retained message only has to hold the last state, so the samples in between are folded
+ * into it. Every sample is taken, the deadband of the raw forwarding does not apply.
+ * <p>
+ * {@code node/presence/<address>} holds {@link #ONLINE} or {@link #OFFLINE} for every peripheral
+ * and {@link #GATEWAY_PRESENCE_TOPIC} the same for the gateway, where the last will of the MQTT
+ * connection sets it to offline. The presence of a peripheral is only current while the gateway
+ * is online.
+ */
+public class RetainedStatePublisher implements SampleListener, PresenceListener {
+
+    public final static String SNAPSHOT_TOPIC_PREFIX = "node/snapshot/";
+    public final static String PRESENCE_TOPIC_PREFIX = "node/presence/";
+    public final static String GATEWAY_PRESENCE_TOPIC = PRESENCE_TOPIC_PREFIX + "gateway";
+    public final static String ONLINE = "online";
+    public final static String OFFLINE = "offline";
+    public final static long DEFAULT_INTERVAL_MS = 1000;
+    public final static int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final static SensorChannel[] CHANNELS = SensorChannel.values();
+    private final static byte[] ONLINE_PAYLOAD = ONLINE.getBytes(UTF_8);
+    private final static byte[] OFFLINE_PAYLOAD = OFFLINE.getBytes(UTF_8);
+
+    private final MessageTransport transport;
+    private final long intervalMs;
+    private final ScheduledExecutorService worker;
+    private SensorEventBus bus;
+    private SensorEventBus.Subscription subscription;
+    private ScheduledFuture<?> ticker;
+
+    // Only used on the worker thread
+    private final Map<String, DeviceState> devices = new HashMap<>();
+    private final List<DeviceState> deviceList = new ArrayList<>();
+    private final StringBuilder payload = new StringBuilder(256);
+    private volatile long snapshots;
+    private volatile long presenceChanges;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            publishSnapshots();
+        }
+    };
+
+    /**
+     * @param transport where the retained messages go
+     * @param intervalMs the shortest time between two snapshots of one peripheral
+     */
+    public RetainedStatePublisher(MessageTransport transport, long intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("intervalMs must be positive");
+        }
+        this.transport = transport;
+        this.intervalMs = intervalMs;
+        this.worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "retained-state");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts keeping the snapshots of the samples of a bus.
+     *
+     * @param bus the bus to take samples from
+     * @param queueCapacity how many samples may wait before the oldest are dropped
+     */
+    public synchronized void start(SensorEventBus bus, int queueCapacity) {
+        if (ticker != null) {
+            return;
+        }
+        this.bus = bus;
+        subscription = bus.register(this, worker, queueCapacity);
+        ticker = worker.scheduleAtFixedRate(tick, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops and ends the worker thread, the snapshots that changed are published first
+     */
+    public synchronized void stop() {
+        if (ticker != null) {
+            bus.unregister(this);
+            ticker.cancel(false);
+            ticker = null;
+            worker.execute(tick);
+        }
+        worker.shutdown();
+    }
+
+    public boolean awaitStopped(long timeout, TimeUnit unit) throws InterruptedException {
+        return worker.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Called on the worker thread for every sample
+     */
+    @Override
+    public void onSample(String address, SensorChannel channel, int value, long timestampMillis, long version) {
+        DeviceState device = devices.get(address);
+        if (device == null) {
+            device = new DeviceState(address);
+            devices.put(address, device);
+            deviceList.add(device);
+        }
+        int index = channel.ordinal();
+        if (device.seen[index] && device.values[index] == value) {
+            // Same value, the snapshot only gets the newer timestamp when something else changes
+            device.timestamps[index] = timestampMillis;
+            return;
+        }
+        device.seen[index] = true;
+        device.values[index] = value;
+        device.timestamps[index] = timestampMillis;
+        device.dirty = true;
+    }
+
+    /**
+     * Publishes the presence of a peripheral, may be called on any thread
+     */
+    @Override
+    public void onPresence(final String address, final boolean online) {
+        try {
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    transport.publishRetained(PRESENCE_TOPIC_PREFIX + address, online ? ONLINE_PAYLOAD : OFFLINE_PAYLOAD);
+                    presenceChanges++;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Stopped, the gateway is going offline anyway
+        }
+    }
+
+    /**
+     * Publishes the snapshot of every peripheral that changed, runs on the worker thread.
+     * Package-private so the tests can publish without waiting for the ticker.
+     */
+    void publishSnapshots() {
+        for (int d = 0; d < deviceList.size(); d++) {
+            DeviceState device = deviceList.get(d);
+            if (!device.dirty) {
+                continue;
+            }
+            payload.setLength(0);
+            for (SensorChannel channel : CHANNELS) {
+                int index = channel.ordinal();
+                if (device.seen[index]) {
+                    MqttPublisher.appendRecord(payload, device.address, channel, device.values[index],
+                            device.timestamps[index]);
+                }
+            }
+            transport.publishRetained(device.topic, payload.toString().getBytes(UTF_8));
+            device.dirty = false;
+            snapshots++;
+        }
+    }
+
+    /**
+     * @return the number of snapshots published
+     */
+    public long getSnapshotCount() {
+        return snapshots;
+    }
+
+    /**
+     * @return the number of presence messages published
+     */
+    public long getPresenceCount() {
+        return presenceChanges;
+    }
+
+    /**
+     * @return the number of samples dropped because the publisher fell behind
+     */
+    public synchronized long getDroppedCount() {
+        return subscription == null ? 0 : subscription.getDroppedCount();
+    }
+
+    /**
+     * The latest value of every channel of one peripheral
+     */
+    private static final class DeviceState {
+        final String address;
+        final String topic;
+        final int[] values = new int[CHANNELS.length];
+        final long[] timestamps = new long[CHANNELS.length];
+        final boolean[] seen = new boolean[CHANNELS.length];
+        boolean dirty;
+
+        DeviceState(String address) {
+            this.address = address;
+            this.topic = SNAPSHOT_TOPIC_PREFIX + address;
+        }
+    }
+}
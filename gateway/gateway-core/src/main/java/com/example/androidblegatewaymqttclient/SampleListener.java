@@ -0,0 +1,19 @@
+package com.example.androidblegatewaymqttclient;
+
+/**
+ * Receives decoded samples from the SensorEventBus. The sample is passed as plain arguments so
+ * that delivering it does not allocate.
+ */
+public interface SampleListener {
+
+    /**
+     * Called for every decoded sample, on the executor the listener was registered with.
+     *
+     * @param address MAC address of the peripheral
+     * @param channel the channel the sample belongs to
+     * @param value the fixed-point value, see SensorChannel.getDecimals()
+     * @param timestampMillis when the sample was received
+     * @param version version of the SensorSnapshotStore snapshot that holds the sample
+     */
+    void onSample(String address, SensorChannel channel, int value, long timestampMillis, long version);
+}
@@ -0,0 +1,117 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.util.UUID;
+
+/**
+ * The readings a node can report, one per SIG characteristic, with how to decode the raw
+ * characteristic bytes and where the value is published.
+ */
+public enum SensorChannel {
+    BATTERY(0x2A19, 0, "battery", "%"),
+    TEMPERATURE(0x2A6E, 2, "temperature", "°C"),
+    HUMIDITY(0x2A6F, 2, "humidity", "%");
+
+    // Bluetooth SIG base UUID, a 16 bit assigned number goes in bits 32 to 47
+    private final static long SIG_BASE_MSB = 0x0000000000001000L;
+    private final static long SIG_BASE_LSB = 0x800000805F9B34FBL;
+
+    private final static SensorChannel[] VALUES = values();
+
+    private final int assignedNumber;
+    private final int decimals;
+    private final String key;
+    private final String topic;
+    private final String unit;
+
+    SensorChannel(int assignedNumber, int decimals, String key, String unit) {
+        this.assignedNumber = assignedNumber;
+        this.decimals = decimals;
+        this.key = key;
+        this.topic = "node/" + key;
+        this.unit = unit;
+    }
+
+    /**
+     * @return the 16 bit Bluetooth SIG assigned number of the characteristic
+     */
+    public int getAssignedNumber() {
+        return assignedNumber;
+    }
+
+    /**
+     * @return the full 128 bit UUID of the characteristic
+     */
+    public UUID getUuid() {
+        return new UUID(SIG_BASE_MSB | ((long) assignedNumber << 32), SIG_BASE_LSB);
+    }
+
+    /**
+     * @return the number of digits after the decimal point of the fixed-point value
+     */
+    public int getDecimals() {
+        return decimals;
+    }
+
+    /**
+     * @return the lower case name used for the channel in topics and payloads
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the MQTT topic the channel is published on
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * @param value raw bytes of the characteristic
+     * @return the fixed-point value, or SigCharacteristicCodec.NO_VALUE
+     */
+    public int decode(byte[] value) {
+        switch (this) {
+            case BATTERY:
+                return SigCharacteristicCodec.decodeBatteryLevel(value);
+            case TEMPERATURE:
+                return SigCharacteristicCodec.decodeTemperature(value);
+            case HUMIDITY:
+                return SigCharacteristicCodec.decodeHumidity(value);
+            default:
+                return SigCharacteristicCodec.NO_VALUE;
+        }
+    }
+
+    /**
+     * @param value the fixed-point value
+     * @return the value as text, without unit
+     */
+    public String format(int value) {
+        return SigCharacteristicCodec.format(value, decimals);
+    }
+
+    /**
+     * Finds the channel of a characteristic without building the UUID string.
+     *
+     * @param uuid UUID of the characteristic
+     * @return the channel, or null if the characteristic is not a known reading
+     */
+    public static SensorChannel fromUuid(UUID uuid) {
+        if (uuid.getLeastSignificantBits() != SIG_BASE_LSB
+                || (uuid.getMostSignificantBits() & 0xFFFF0000FFFFFFFFL) != SIG_BASE_MSB) {
+            return null;
+        }
+        int assignedNumber = (int) (uuid.getMostSignificantBits() >>> 32);
+        for (SensorChannel channel : VALUES) {
+            if (channel.assignedNumber == assignedNumber) {
+                return channel;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,232 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-process publish/subscribe of decoded samples between the BLE service, the MQTT side and
+ * the UI.
+ * <p>
+ * A listener registered without an executor is called right away on the publishing thread.
+ * A listener registered with an executor gets its own bounded ring of primitive sample fields:
+ * publishing copies the fields into the ring and schedules a single drain task on the executor
+ * when none is pending, so dispatch does not allocate per sample. When a slow listener lets its
+ * ring fill up, the oldest samples are dropped and counted.
+ */
+public class SensorEventBus {
+
+    public final static int DEFAULT_CAPACITY = 256;
+
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    /**
+     * Registers a listener that is called on the publishing thread.
+     *
+     * @param listener the listener to call for each sample
+     * @return the subscription, to read its counters
+     */
+    public Subscription register(SampleListener listener) {
+        return register(listener, null, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Registers a listener that is called on the given executor.
+     *
+     * @param listener the listener to call for each sample
+     * @param executor the executor the listener runs on, or null to run on the publishing thread
+     * @return the subscription, to read its counters
+     */
+    public Subscription register(SampleListener listener, Executor executor) {
+        return register(listener, executor, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Registers a listener that is called on the given executor.
+     *
+     * @param listener the listener to call for each sample
+     * @param executor the executor the listener runs on, or null to run on the publishing thread
+     * @param capacity how many samples may wait for the listener before the oldest are dropped
+     * @return the subscription, to read its counters
+     */
+    public synchronized Subscription register(SampleListener listener, Executor executor, int capacity) {
+        Subscription subscription = new Subscription(listener, executor, capacity);
+        Subscription[] grown = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+        grown[grown.length - 1] = subscription;
+        subscriptions = grown;
+        return subscription;
+    }
+
+    /**
+     * Removes every subscription of a listener. Samples already waiting in its ring are dropped.
+     *
+     * @param listener the listener to remove
+     */
+    public synchronized void unregister(SampleListener listener) {
+        Subscription[] current = subscriptions;
+        int kept = 0;
+        Subscription[] remaining = new Subscription[current.length];
+        for (Subscription subscription : current) {
+            if (subscription.listener == listener) {
+                subscription.active = false;
+            } else {
+                remaining[kept++] = subscription;
+            }
+        }
+        subscriptions = Arrays.copyOf(remaining, kept);
+    }
+
+    /**
+     * Delivers a sample to every listener.
+     *
+     * @param address MAC address of the peripheral
+     * @param channel the channel the sample belongs to
+     * @param value the fixed-point value
+     * @param timestampMillis when the sample was received
+     * @param version version of the snapshot that holds the sample
+     */
+    public void publish(String address, SensorChannel channel, int value, long timestampMillis, long version) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            current[i].offer(address, channel, value, timestampMillis, version);
+        }
+    }
+
+    /**
+     * One listener with the executor it runs on and the samples waiting for it
+     */
+    public static final class Subscription {
+        private final SampleListener listener;
+        private final Executor executor;
+        private volatile boolean active = true;
+
+        // Ring of waiting samples, one array per field
+        private final String[] addresses;
+        private final SensorChannel[] channels;
+        private final int[] values;
+        private final long[] timestamps;
+        private final long[] versions;
+        private int head;
+        private int size;
+
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private long delivered;
+        private long dropped;
+
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        Subscription(SampleListener listener, Executor executor, int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("capacity must be at least 1");
+            }
+            this.listener = listener;
+            this.executor = executor;
+            this.addresses = new String[capacity];
+            this.channels = new SensorChannel[capacity];
+            this.values = new int[capacity];
+            this.timestamps = new long[capacity];
+            this.versions = new long[capacity];
+        }
+
+        void offer(String address, SensorChannel channel, int value, long timestampMillis, long version) {
+            if (!active) {
+                return;
+            }
+            if (executor == null) {
+                synchronized (this) {
+                    delivered++;
+                }
+                listener.onSample(address, channel, value, timestampMillis, version);
+                return;
+            }
+            synchronized (this) {
+                int capacity = values.length;
+                if (size == capacity) {
+                    // Drop the oldest sample to make room
+                    head = (head + 1) % capacity;
+                    size--;
+                    dropped++;
+                }
+                int tail = (head + size) % capacity;
+                addresses[tail] = address;
+                channels[tail] = channel;
+                values[tail] = value;
+                timestamps[tail] = timestampMillis;
+                versions[tail] = version;
+                size++;
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(drain);
+                } catch (RejectedExecutionException e) {
+                    // The executor was shut down before the listener unregistered, nothing drains
+                    // the ring any more: its samples count as dropped
+                    synchronized (this) {
+                        dropped += size;
+                        for (int i = 0; i < size; i++) {
+                            addresses[(head + i) % values.length] = null;
+                        }
+                        head = 0;
+                        size = 0;
+                        scheduled.set(false);
+                    }
+                }
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                String address;
+                SensorChannel channel;
+                int value;
+                long timestampMillis;
+                long version;
+                synchronized (this) {
+                    if (size == 0 || !active) {
+                        // Cleared under the lock, so a sample offered from now on schedules a new drain
+                        scheduled.set(false);
+                        return;
+                    }
+                    address = addresses[head];
+                    channel = channels[head];
+                    value = values[head];
+                    timestampMillis = timestamps[head];
+                    version = versions[head];
+                    addresses[head] = null;
+                    head = (head + 1) % values.length;
+                    size--;
+                    delivered++;
+                }
+                listener.onSample(address, channel, value, timestampMillis, version);
+            }
+        }
+
+        public SampleListener getListener() {
+            return listener;
+        }
+
+        /**
+         * @return the number of samples waiting for the listener
+         */
+        public synchronized int getPending() {
+            return size;
+        }
+
+        public synchronized long getDeliveredCount() {
+            return delivered;
+        }
+
+        /**
+         * @return the number of samples dropped because the listener fell behind
+         */
+        public synchronized long getDroppedCount() {
+            return dropped;
+        }
+    }
+}
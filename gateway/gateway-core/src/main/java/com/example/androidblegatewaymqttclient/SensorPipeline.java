@@ -0,0 +1,68 @@
+package com.example.androidblegatewaymqttclient;
+
+/**
+ * Ingestion side of the gateway: decodes raw characteristic values, keeps the latest value in
+ * the snapshot store and delivers the sample to the listeners of the event bus.
+ * <p>
+ * The recent samples are also kept in a ReadingHistory, registered on the bus like any other
+ * listener, for charts and late-joining clients.
+ * <p>
+ * The pipeline does not know where the values come from, so the same path runs behind the GATT
+ * callbacks on the phone and behind the SimulatedPeripheralSource on a plain JVM.
+ */
+public class SensorPipeline implements CharacteristicSink {
+
+    private final SensorSnapshotStore snapshotStore;
+    private final SensorEventBus eventBus;
+    private final ReadingHistory history;
+
+    public SensorPipeline() {
+        this(new SensorSnapshotStore(), new SensorEventBus(), new ReadingHistory());
+    }
+
+    /**
+     * @param snapshotStore keeps the latest values
+     * @param eventBus delivers the samples
+     * @param history keeps the recent samples, or null to keep none
+     */
+    public SensorPipeline(SensorSnapshotStore snapshotStore, SensorEventBus eventBus, ReadingHistory history) {
+        this.snapshotStore = snapshotStore;
+        this.eventBus = eventBus;
+        this.history = history;
+        if (history != null) {
+            eventBus.register(history);
+        }
+    }
+
+    @Override
+    public boolean onCharacteristicValue(String address, SensorChannel channel, byte[] value, long timestampMillis) {
+        int decoded = channel.decode(value);
+        if (decoded == SigCharacteristicCodec.NO_VALUE) {
+            return false;
+        }
+        SensorSnapshotStore.Snapshot snapshot = snapshotStore.update(address, channel, decoded, timestampMillis);
+        eventBus.publish(address, channel, decoded, timestampMillis, snapshot.getVersion());
+        return true;
+    }
+
+    /**
+     * @return the store with the latest value of every channel of every peripheral
+     */
+    public SensorSnapshotStore getSnapshotStore() {
+        return snapshotStore;
+    }
+
+    /**
+     * @return the bus every decoded sample is published on
+     */
+    public SensorEventBus getEventBus() {
+        return eventBus;
+    }
+
+    /**
+     * @return the recent samples of every channel of every peripheral, or null
+     */
+    public ReadingHistory getHistory() {
+        return history;
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Latest value of every channel of every peripheral, published as immutable snapshots.
+ * <p>
+ * The GATT callbacks write from binder threads while the UI and the MQTT side read from their
+ * own threads. Every update builds a new snapshot with a version one higher than the previous
+ * one and swaps it in with a compare-and-set, so writers never take a lock and readers get a
+ * consistent view with a single volatile read. A reader that remembers the version it last
+ * processed can ask for just the readings that changed since then.
+ */
+public class SensorSnapshotStore {
+
+    private final static int CHANNEL_COUNT = SensorChannel.values().length;
+
+    private final static Comparator<Reading> BY_VERSION = new Comparator<Reading>() {
+        @Override
+        public int compare(Reading a, Reading b) {
+            return a.version < b.version ? -1 : (a.version == b.version ? 0 : 1);
+        }
+    };
+
+    /**
+     * One value of one channel of one peripheral
+     */
+    public static final class Reading {
+        private final String address;
+        private final SensorChannel channel;
+        private final int value;
+        private final long timestampMillis;
+        private final long version;
+
+        Reading(String address, SensorChannel channel, int value, long timestampMillis, long version) {
+            this.address = address;
+            this.channel = channel;
+            this.value = value;
+            this.timestampMillis = timestampMillis;
+            this.version = version;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public SensorChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * @return the fixed-point value, see SensorChannel.getDecimals()
+         */
+        public int getValue() {
+            return value;
+        }
+
+        public long getTimestampMillis() {
+            return timestampMillis;
+        }
+
+        /**
+         * @return the version of the snapshot that introduced this reading
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        @Override
+        public String toString() {
+            return address + " " + channel + "=" + channel.format(value) + " v" + version;
+        }
+    }
+
+    /**
+     * An immutable view of all readings at one version
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final Map<String, Integer> deviceIndex;
+        private final Reading[] readings;
+
+        Snapshot(long version, Map<String, Integer> deviceIndex, Reading[] readings) {
+            this.version = version;
+            this.deviceIndex = deviceIndex;
+            this.readings = readings;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the MAC addresses of all peripherals that reported a reading
+         */
+        public Set<String> getDevices() {
+            return deviceIndex.keySet();
+        }
+
+        /**
+         * @param address MAC address of the peripheral
+         * @param channel the reading to get
+         * @return the reading, or null if the peripheral never reported the channel
+         */
+        public Reading get(String address, SensorChannel channel) {
+            Integer index = deviceIndex.get(address);
+            return index == null ? null : readings[index * CHANNEL_COUNT + channel.ordinal()];
+        }
+
+        /**
+         * @param address MAC address of the peripheral
+         * @param channel the reading to get
+         * @return the fixed-point value, or SigCharacteristicCodec.NO_VALUE
+         */
+        public int getValue(String address, SensorChannel channel) {
+            Reading reading = get(address, channel);
+            return reading == null ? SigCharacteristicCodec.NO_VALUE : reading.value;
+        }
+
+        /**
+         * @return every reading in this snapshot
+         */
+        public List<Reading> getReadings() {
+            return changedSince(0);
+        }
+
+        /**
+         * @param version the version the caller saw last
+         * @return the readings introduced after that version, oldest first
+         */
+        public List<Reading> changedSince(long version) {
+            if (version >= this.version) {
+                return Collections.emptyList();
+            }
+            List<Reading> changed = new ArrayList<>();
+            for (Reading reading : readings) {
+                if (reading != null && reading.version > version) {
+                    changed.add(reading);
+                }
+            }
+            Collections.sort(changed, BY_VERSION);
+            return changed;
+        }
+    }
+
+    private final AtomicReference<Snapshot> current = new AtomicReference<>(
+            new Snapshot(0, Collections.<String, Integer>emptyMap(), new Reading[0]));
+
+    /**
+     * @return the latest snapshot, never null
+     */
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    /**
+     * @param version the version the caller saw last
+     * @return the readings that changed since that version in the latest snapshot
+     */
+    public List<Reading> changedSince(long version) {
+        return current.get().changedSince(version);
+    }
+
+    /**
+     * Publishes a new value of one channel.
+     *
+     * @param address MAC address of the peripheral
+     * @param channel the channel that changed
+     * @param value the fixed-point value
+     * @param timestampMillis when the value was received
+     * @return the snapshot that contains the value
+     */
+    public Snapshot update(String address, SensorChannel channel, int value, long timestampMillis) {
+        while (true) {
+            Snapshot previous = current.get();
+            long version = previous.version + 1;
+            Map<String, Integer> deviceIndex = previous.deviceIndex;
+            Reading[] readings;
+            Integer index = deviceIndex.get(address);
+            if (index == null) {
+                index = deviceIndex.size();
+                Map<String, Integer> grown = new HashMap<>(deviceIndex);
+                grown.put(address, index);
+                deviceIndex = Collections.unmodifiableMap(grown);
+                readings = Arrays.copyOf(previous.readings, previous.readings.length + CHANNEL_COUNT);
+            } else {
+                readings = previous.readings.clone();
+            }
+            readings[index * CHANNEL_COUNT + channel.ordinal()] =
+                    new Reading(address, channel, value, timestampMillis, version);
+            Snapshot next = new Snapshot(version, deviceIndex, readings);
+            if (current.compareAndSet(previous, next)) {
+                return next;
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.androidblegatewaymqttclient;
+
+/**
+ * Decodes the Bluetooth SIG characteristics the nodes expose straight from the raw bytes of
+ * the characteristic into fixed-point ints, without allocating anything per sample.
+ * <ul>
+ * <li>0x2A19 Battery Level: uint8, percent</li>
+ * <li>0x2A6E Temperature: sint16 little endian, 0.01 degree Celsius</li>
+ * <li>0x2A6F Humidity: uint16 little endian, 0.01 percent</li>
+ * </ul>
+ * Turning a value into text is left to the edge that needs it, see {@link #format(int, int)}.
+ */
+public final class SigCharacteristicCodec {
+
+    /**
+     * Returned when the characteristic holds no (or too few) bytes
+     */
+    public final static int NO_VALUE = Integer.MIN_VALUE;
+
+    private SigCharacteristicCodec() {
+    }
+
+    /**
+     * @param value raw bytes of a Battery Level characteristic
+     * @return the battery level in percent
+     */
+    public static int decodeBatteryLevel(byte[] value) {
+        if (value == null || value.length < 1) {
+            return NO_VALUE;
+        }
+        return value[0] & 0xFF;
+    }
+
+    /**
+     * @param value raw bytes of a Temperature characteristic
+     * @return the temperature in hundredths of a degree Celsius
+     */
+    public static int decodeTemperature(byte[] value) {
+        if (value == null || value.length < 2) {
+            return NO_VALUE;
+        }
+        return (short) ((value[0] & 0xFF) | (value[1] << 8));
+    }
+
+    /**
+     * @param value raw bytes of a Humidity characteristic
+     * @return the relative humidity in hundredths of a percent
+     */
+    public static int decodeHumidity(byte[] value) {
+        if (value == null || value.length < 2) {
+            return NO_VALUE;
+        }
+        return (value[0] & 0xFF) | ((value[1] & 0xFF) << 8);
+    }
+
+    /**
+     * Appends a fixed-point value as a decimal number, for example 2750 with 2 decimals
+     * becomes "27.50" and -5 becomes "-0.05".
+     *
+     * @param out the builder the text is appended to
+     * @param value the fixed-point value
+     * @param decimals the number of digits after the decimal point
+     * @return the builder
+     */
+    public static StringBuilder appendFixedPoint(StringBuilder out, int value, int decimals) {
+        if (value == NO_VALUE) {
+            return out.append('-');
+        }
+        long magnitude = value;
+        if (magnitude < 0) {
+            out.append('-');
+            magnitude = -magnitude;
+        }
+        if (decimals <= 0) {
+            return out.append(magnitude);
+        }
+        long divisor = 1;
+        for (int i = 0; i < decimals; i++) {
+            divisor *= 10;
+        }
+        out.append(magnitude / divisor).append('.');
+        long fraction = magnitude % divisor;
+        for (long digit = divisor / 10; digit > 1 && fraction < digit; digit /= 10) {
+            out.append('0');
+        }
+        return out.append(fraction);
+    }
+
+    /**
+     * @param value the fixed-point value
+     * @param decimals the number of digits after the decimal point
+     * @return the value as text, "-" for NO_VALUE
+     */
+    public static String format(int value, int decimals) {
+        return appendFixedPoint(new StringBuilder(12), value, decimals).toString();
+    }
+}
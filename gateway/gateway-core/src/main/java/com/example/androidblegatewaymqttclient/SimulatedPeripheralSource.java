@@ -0,0 +1,191 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for a set of BLE peripherals: replays characteristic byte streams into a
+ * CharacteristicSink, the way the GATT callbacks deliver notifications on the phone.
+ * <p>
+ * Every device cycles through the channels and every channel replays its stream of raw
+ * characteristic values from the start once it reaches the end. The default streams sweep the
+ * range of each SIG characteristic. Samples are either emitted at a fixed total rate from a
+ * timer thread, or in bursts as fast as the sink takes them.
+ */
+public class SimulatedPeripheralSource {
+
+    // First simulated MAC address, the ESP32 boards of the project use this vendor prefix
+    public final static long FIRST_DEVICE_ID = 0x240AC4000001L;
+
+    private final static long TICK_MS = 10;
+    private final static SensorChannel[] CHANNELS = SensorChannel.values();
+
+    private final CharacteristicSink sink;
+    private final String[] addresses;
+    private final byte[][][] streams = new byte[CHANNELS.length][][];
+    // Position in the stream of every channel of every device
+    private final int[][] positions;
+    private final ScheduledExecutorService timer;
+    private ScheduledFuture<?> ticker;
+
+    private long cursor;
+    private long emitted;
+    private long rejected;
+
+    /**
+     * @param sink where the characteristic values go
+     * @param devices the number of simulated peripherals
+     */
+    public SimulatedPeripheralSource(CharacteristicSink sink, int devices) {
+        if (devices < 1) {
+            throw new IllegalArgumentException("devices must be at least 1");
+        }
+        this.sink = sink;
+        this.addresses = new String[devices];
+        this.positions = new int[devices][CHANNELS.length];
+        for (int i = 0; i < devices; i++) {
+            addresses[i] = BinaryFrameCodec.formatAddress(FIRST_DEVICE_ID + i);
+            // Spread the devices over the streams so that they do not report the same values
+            for (int c = 0; c < CHANNELS.length; c++) {
+                positions[i][c] = i * 7;
+            }
+        }
+        streams[SensorChannel.BATTERY.ordinal()] = batteryStream();
+        streams[SensorChannel.TEMPERATURE.ordinal()] = int16Stream(-1000, 4000, 25);
+        streams[SensorChannel.HUMIDITY.ordinal()] = int16Stream(2000, 9000, 50);
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "simulated-peripherals");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Replaces the values a channel replays, for example bytes captured from a real peripheral.
+     *
+     * @param channel the channel
+     * @param values raw characteristic values, replayed in order
+     */
+    public synchronized void setStream(SensorChannel channel, byte[][] values) {
+        if (values.length == 0) {
+            throw new IllegalArgumentException("A stream needs at least one value");
+        }
+        streams[channel.ordinal()] = values;
+        for (int[] position : positions) {
+            position[channel.ordinal()] = 0;
+        }
+    }
+
+    /**
+     * Emits samples from the timer thread until {@link #stop()} is called.
+     *
+     * @param samplesPerSecond the total rate over all devices
+     */
+    public synchronized void start(final double samplesPerSecond) {
+        if (ticker != null) {
+            return;
+        }
+        final long startNanos = System.nanoTime();
+        ticker = timer.scheduleAtFixedRate(new Runnable() {
+            private long due;
+
+            @Override
+            public void run() {
+                long elapsedNanos = System.nanoTime() - startNanos;
+                long target = (long) (elapsedNanos * samplesPerSecond / 1e9);
+                emit((int) Math.min(Integer.MAX_VALUE, target - due));
+                due = target;
+            }
+        }, 0, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the timer started by {@link #start(double)}
+     */
+    public synchronized void stop() {
+        if (ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+    }
+
+    /**
+     * Ends the timer thread
+     */
+    public void shutdown() {
+        stop();
+        timer.shutdown();
+    }
+
+    /**
+     * Emits samples on the calling thread as fast as the sink takes them, going round the
+     * devices and then round the channels.
+     *
+     * @param count the number of samples
+     */
+    public synchronized void emit(int count) {
+        int devices = addresses.length;
+        for (int i = 0; i < count; i++) {
+            int device = (int) (cursor % devices);
+            int channelIndex = (int) ((cursor / devices) % CHANNELS.length);
+            cursor++;
+            byte[][] stream = streams[channelIndex];
+            int position = positions[device][channelIndex];
+            positions[device][channelIndex] = (position + 1) % stream.length;
+            if (sink.onCharacteristicValue(addresses[device], CHANNELS[channelIndex],
+                    stream[position % stream.length], System.currentTimeMillis())) {
+                emitted++;
+            } else {
+                rejected++;
+            }
+        }
+    }
+
+    public String[] getAddresses() {
+        return addresses.clone();
+    }
+
+    /**
+     * @return the number of samples the sink decoded
+     */
+    public synchronized long getEmittedCount() {
+        return emitted;
+    }
+
+    /**
+     * @return the number of samples the sink refused as malformed
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * @return battery levels from 100 down to 0 percent, as uint8
+     */
+    private static byte[][] batteryStream() {
+        byte[][] stream = new byte[101][];
+        for (int i = 0; i <= 100; i++) {
+            stream[i] = new byte[]{(byte) (100 - i)};
+        }
+        return stream;
+    }
+
+    /**
+     * @return little endian 16 bit values going up from min to max and back down
+     */
+    private static byte[][] int16Stream(int min, int max, int step) {
+        int steps = (max - min) / step;
+        byte[][] stream = new byte[2 * steps][];
+        for (int i = 0; i < stream.length; i++) {
+            int value = i < steps ? min + i * step : max - (i - steps) * step;
+            stream[i] = new byte[]{(byte) value, (byte) (value >> 8)};
+        }
+        return stream;
+    }
+}
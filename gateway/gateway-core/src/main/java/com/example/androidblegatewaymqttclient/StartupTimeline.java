@@ -0,0 +1,121 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * When each phase of the bring-up of the gateway first happened, from the launch of the app to
+ * the first reading the broker acknowledged. Every phase is marked once, by whichever thread gets
+ * there first, later marks of the same phase are ignored, so the marks can sit on hot paths.
+ * <p>
+ * The MQTT phases and the BLE phases run at the same time, the timeline lists them in the order
+ * they happened with the time since the launch and since the phase before.
+ */
+public class StartupTimeline {
+
+    /**
+     * The phases of the bring-up, in the order they usually happen within their side
+     */
+    public enum Phase {
+        LAUNCH,
+        MQTT_CONNECTING,
+        MQTT_CONNECTED,
+        BLE_READY,
+        SCAN_STARTED,
+        DEVICE_FOUND,
+        DEVICE_CONNECTED,
+        SERVICES_READY,
+        SUBSCRIBED,
+        FIRST_SAMPLE,
+        FIRST_READING_ACKED;
+
+        public String getLabel() {
+            return name().toLowerCase().replace('_', ' ');
+        }
+    }
+
+    private final static Phase[] PHASES = Phase.values();
+
+    private final long originNanos;
+    // Nanoseconds since the origin, -1 while a phase did not happen
+    private final AtomicLongArray marks = new AtomicLongArray(PHASES.length);
+
+    /**
+     * Starts a timeline now, with the launch marked
+     */
+    public StartupTimeline() {
+        this(System.nanoTime());
+    }
+
+    /**
+     * @param originNanos the System.nanoTime() of the launch
+     */
+    public StartupTimeline(long originNanos) {
+        this.originNanos = originNanos;
+        for (int i = 0; i < PHASES.length; i++) {
+            marks.set(i, -1);
+        }
+        marks.set(Phase.LAUNCH.ordinal(), 0);
+    }
+
+    /**
+     * Marks a phase as happened now.
+     *
+     * @return true the first time the phase is marked
+     */
+    public boolean mark(Phase phase) {
+        int index = phase.ordinal();
+        if (marks.get(index) >= 0) {
+            return false;
+        }
+        return marks.compareAndSet(index, -1, Math.max(0, System.nanoTime() - originNanos));
+    }
+
+    /**
+     * @return the milliseconds from the launch to a phase, -1 if it did not happen yet
+     */
+    public long getElapsedMs(Phase phase) {
+        long nanos = marks.get(phase.ordinal());
+        return nanos < 0 ? -1 : nanos / 1000000;
+    }
+
+    /**
+     * @return true once the broker acknowledged the first reading
+     */
+    public boolean isComplete() {
+        return marks.get(Phase.FIRST_READING_ACKED.ordinal()) >= 0;
+    }
+
+    /**
+     * @return the phases that happened, one per line in the order they happened, with the
+     * milliseconds since the launch and since the phase before
+     */
+    @Override
+    public String toString() {
+        final long[] snapshot = new long[PHASES.length];
+        Integer[] order = new Integer[PHASES.length];
+        for (int i = 0; i < PHASES.length; i++) {
+            snapshot[i] = marks.get(i);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(snapshot[a], snapshot[b]);
+            }
+        });
+        StringBuilder out = new StringBuilder(512);
+        long previous = 0;
+        for (Integer index : order) {
+            long nanos = snapshot[index];
+            if (nanos < 0) {
+                continue;
+            }
+            out.append(String.format("%7d ms %+6d ms  %s%n", nanos / 1000000, (nanos - previous) / 1000000,
+                    PHASES[index].getLabel()));
+            previous = nanos;
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the metrics of a MetricsRegistry every interval on {@link #STATS_TOPIC}, in the
+ * spirit of the $SYS topics of a broker: one metric per line,
+ * <pre>
+ * name value
+ * </pre>
+ * starting with {@code timestamp} in milliseconds. Counters and gauges give their value, counters
+ * created as meters also {@code name.rate} per second over the interval. A histogram gives
+ * {@code name.count}, {@code name.mean} and {@code name.max} since the start and
+ * {@code name.p50}, {@code name.p90} and {@code name.p99} over the interval, in microseconds.
+ * <p>
+ * The stats are a state, not events: they go out as a retained message, so a dashboard gets the
+ * latest on subscribe, and stats from while the uplink was down are not sent later.
+ */
+public class StatsPublisher {
+
+    public final static String STATS_TOPIC = "gateway/stats";
+    public final static long DEFAULT_INTERVAL_MS = 10000;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MessageTransport transport;
+    private final MetricsRegistry registry;
+    private final long intervalMs;
+    private final ScheduledExecutorService worker;
+    private ScheduledFuture<?> ticker;
+
+    // Only used on the worker thread, the values of the last export
+    private final Map<Object, long[]> previous = new HashMap<>();
+    private final StringBuilder payload = new StringBuilder(2048);
+    private long previousNanos;
+    private volatile long exports;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            publish();
+        }
+    };
+
+    /**
+     * @param transport where the stats go
+     * @param registry the metrics to publish
+     * @param intervalMs the time between two exports
+     */
+    public StatsPublisher(MessageTransport transport, MetricsRegistry registry, long intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("intervalMs must be positive");
+        }
+        this.transport = transport;
+        this.registry = registry;
+        this.intervalMs = intervalMs;
+        this.worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "gateway-stats");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts exporting every interval
+     */
+    public synchronized void start() {
+        if (ticker != null) {
+            return;
+        }
+        previousNanos = System.nanoTime();
+        ticker = worker.scheduleAtFixedRate(tick, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Exports right away, on the worker thread
+     */
+    public void publishNow() {
+        try {
+            worker.execute(tick);
+        } catch (RejectedExecutionException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Stops and ends the worker thread after a last export
+     */
+    public synchronized void stop() {
+        if (ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+            worker.execute(tick);
+        }
+        worker.shutdown();
+    }
+
+    public boolean awaitStopped(long timeout, TimeUnit unit) throws InterruptedException {
+        return worker.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Formats and publishes the stats, runs on the worker thread
+     */
+    private void publish() {
+        long now = System.nanoTime();
+        double seconds = Math.max(now - previousNanos, 1) / 1e9;
+        previousNanos = now;
+        payload.setLength(0);
+        payload.append("timestamp ").append(System.currentTimeMillis()).append('\n');
+        for (Map.Entry<String, Object> entry : registry.copy().entrySet()) {
+            String name = entry.getKey();
+            Object metric = entry.getValue();
+            if (metric instanceof MetricsRegistry.Counter) {
+                MetricsRegistry.Counter counter = (MetricsRegistry.Counter) metric;
+                long count = counter.getCount();
+                line(name, count);
+                if (counter.isRated()) {
+                    long[] last = previous.get(counter);
+                    if (last == null) {
+                        last = new long[1];
+                        previous.put(counter, last);
+                    }
+                    payload.append(name).append(".rate ");
+                    SigCharacteristicCodec.appendFixedPoint(payload, (int) Math.round((count - last[0]) * 100 / seconds), 2)
+                            .append('\n');
+                    last[0] = count;
+                }
+            } else if (metric instanceof MetricsRegistry.Gauge) {
+                line(name, ((MetricsRegistry.Gauge) metric).getValue());
+            } else if (metric instanceof LatencyHistogram) {
+                appendHistogram(name, (LatencyHistogram) metric);
+            }
+        }
+        transport.publishRetained(STATS_TOPIC, payload.toString().getBytes(UTF_8));
+        exports++;
+    }
+
+    private void appendHistogram(String name, LatencyHistogram histogram) {
+        long[] buckets = histogram.snapshot();
+        long[] last = previous.get(histogram);
+        previous.put(histogram, buckets.clone());
+        if (last != null) {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] -= last[i];
+            }
+        }
+        line(name + ".count", histogram.getCount());
+        line(name + ".mean", histogram.getMeanUs());
+        line(name + ".max", histogram.getMaxUs());
+        line(name + ".p50", LatencyHistogram.percentileOf(buckets, 50));
+        line(name + ".p90", LatencyHistogram.percentileOf(buckets, 90));
+        line(name + ".p99", LatencyHistogram.percentileOf(buckets, 99));
+    }
+
+    private void line(String name, long value) {
+        payload.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @return the number of times the stats were published
+     */
+    public long getExportCount() {
+        return exports;
+    }
+}
@@ -0,0 +1,756 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Local, compressed store of every decoded sample, next to the MQTT uplink.
+ * <p>
+ * Samples are kept per peripheral and channel in GorillaCodec blocks in memory. A block is
+ * written out when it is full or spans the block duration, so the flash sees a few large appends
+ * instead of one small write per sample. Blocks are appended to segment files, one segment per
+ * segment duration, and segments are memory-mapped to read them back. The blocks of a tier span
+ * at least 60 of its periods and its segments at least 4 blocks, so coarse tiers still write
+ * full blocks; every open block is written when a segment ends and when the store stops.
+ * <p>
+ * So that a killed process loses little, the worker also writes the open blocks and forces the
+ * segments to storage every {@link #DEFAULT_FLUSH_INTERVAL_MS}, see {@link #setFlushInterval}.
+ * A flushed block is closed, so shorter intervals write smaller blocks with a block header each;
+ * at one hour most raw blocks are full before a flush comes. A coarse tier only gets a few means
+ * per interval, so its open block is only flushed once it holds {@link #MIN_FLUSH_SAMPLES} means.
+ * A kill then loses at most the raw samples of one flush interval and the means
+ * of the open blocks that were too small to flush, whose periods are still in the finer tiers,
+ * plus the mean of the period in progress of each downsampled tier.
+ * <p>
+ * Tier 0 holds the raw samples. Every further tier holds the mean of each period of its
+ * resolution, computed as the samples come in. Each tier has its own directory and retention:
+ * segments that only hold samples older than the retention of their tier are deleted.
+ * <p>
+ * A block on disk is
+ * <pre>
+ * int    length of the rest of the block after this field
+ * int    CRC32 of the rest of the block after this field
+ * long   device id, see BinaryFrameCodec.parseAddress
+ * short  SIG assigned number of the channel
+ * int    number of samples
+ * long   timestamp of the first sample
+ * long   timestamp of the last sample
+ * byte[] GorillaCodec bits
+ * </pre>
+ * A block whose CRC does not match, left behind by a write that was cut short, ends its segment
+ * for queries, and is cut off when the segment is opened for writing again.
+ * <p>
+ * The store listens on the event bus on its own worker thread, so disk I/O never runs on the
+ * GATT callback thread.
+ */
+public class TimeSeriesStore implements SampleListener {
+
+    public final static long DEFAULT_BLOCK_DURATION_MS = TimeUnit.MINUTES.toMillis(10);
+    public final static long DEFAULT_SEGMENT_DURATION_MS = TimeUnit.HOURS.toMillis(6);
+    public final static int DEFAULT_BLOCK_BYTES = 1024;
+    public final static int DEFAULT_QUEUE_CAPACITY = 4096;
+    public final static long DEFAULT_FLUSH_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+    public final static int MIN_FLUSH_SAMPLES = 16;
+
+    private final static int BLOCK_HEADER_SIZE = 38;
+    private final static String SEGMENT_SUFFIX = ".seg";
+    private final static SensorChannel[] CHANNELS = SensorChannel.values();
+
+    private final File directory;
+    private final List<Tier> tiers = new ArrayList<>();
+    private final Map<String, Series[]> series = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+    private final ScheduledExecutorService worker;
+    private long blockDurationMs = DEFAULT_BLOCK_DURATION_MS;
+    private long segmentDurationMs = DEFAULT_SEGMENT_DURATION_MS;
+    private int blockBytes = DEFAULT_BLOCK_BYTES;
+    private long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+    private SensorEventBus bus;
+    private SensorEventBus.Subscription subscription;
+
+    // Counters, see the getters
+    private long rawSamples;
+    private long rawBytesWritten;
+    private long bytesWritten;
+    private long payloadBytes;
+    private long writes;
+    private long writeErrors;
+    private long deletedSegments;
+    private long deletedBytes;
+    private long corruptBlocks;
+    private long flushes;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flushOpenBlocks();
+            } catch (IOException e) {
+                synchronized (TimeSeriesStore.this) {
+                    writeErrors++;
+                }
+            }
+        }
+    };
+
+    /**
+     * Opens the store with a raw tier that keeps two days, a tier of one minute means that keeps
+     * 30 days and a tier of one hour means that keeps a year.
+     *
+     * @param directory where the segments are kept
+     */
+    public static TimeSeriesStore withDefaults(File directory) throws IOException {
+        TimeSeriesStore store = new TimeSeriesStore(directory, TimeUnit.DAYS.toMillis(2));
+        store.addTier(TimeUnit.MINUTES.toMillis(1), TimeUnit.DAYS.toMillis(30));
+        store.addTier(TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(365));
+        return store;
+    }
+
+    /**
+     * @param directory where the segments are kept, created if needed
+     * @param rawRetentionMs how long the raw samples are kept
+     */
+    public TimeSeriesStore(File directory, long rawRetentionMs) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        tiers.add(new Tier(0, 0, rawRetentionMs));
+        this.worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "timeseries-store");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Adds a tier of downsampled means. Tiers are added before the first sample, from the finest
+     * resolution to the coarsest.
+     *
+     * @param resolutionMs the period one mean covers
+     * @param retentionMs how long the means are kept
+     * @return the number of the tier, to query it
+     */
+    public synchronized int addTier(long resolutionMs, long retentionMs) throws IOException {
+        if (!series.isEmpty()) {
+            throw new IllegalStateException("Tiers are added before the first sample");
+        }
+        if (resolutionMs <= tiers.get(tiers.size() - 1).resolutionMs) {
+            throw new IllegalArgumentException("Tiers go from the finest resolution to the coarsest");
+        }
+        tiers.add(new Tier(tiers.size(), resolutionMs, retentionMs));
+        return tiers.size() - 1;
+    }
+
+    /**
+     * @param blockDurationMs the longest time raw samples stay in memory before they are written
+     * @param segmentDurationMs the time one segment file of raw samples covers
+     */
+    public synchronized void setDurations(long blockDurationMs, long segmentDurationMs) {
+        if (blockDurationMs <= 0 || segmentDurationMs < blockDurationMs) {
+            throw new IllegalArgumentException("Invalid durations");
+        }
+        this.blockDurationMs = blockDurationMs;
+        this.segmentDurationMs = segmentDurationMs;
+    }
+
+    /**
+     * @param flushIntervalMs the longest time a sample stays in memory only, 0 to only write full
+     *                        blocks; takes effect on start
+     */
+    public synchronized void setFlushInterval(long flushIntervalMs) {
+        if (flushIntervalMs < 0) {
+            throw new IllegalArgumentException("Invalid flush interval");
+        }
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    /**
+     * Starts storing the samples of a bus.
+     *
+     * @param bus the bus to take samples from
+     * @param queueCapacity how many samples may wait for the disk before the oldest are dropped
+     */
+    public synchronized void start(SensorEventBus bus, int queueCapacity) {
+        if (subscription != null) {
+            return;
+        }
+        this.bus = bus;
+        subscription = bus.register(this, worker, queueCapacity);
+        if (flushIntervalMs > 0) {
+            // Cancelled by the shutdown in stop
+            worker.scheduleWithFixedDelay(flushTask, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops storing, writes every open block and ends the worker thread.
+     */
+    public synchronized void stop() {
+        if (subscription != null) {
+            bus.unregister(this);
+            subscription = null;
+        }
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+        worker.shutdown();
+    }
+
+    public boolean awaitStopped(long timeout, TimeUnit unit) throws InterruptedException {
+        return worker.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Stores a sample, called on the worker thread
+     */
+    @Override
+    public synchronized void onSample(String address, SensorChannel channel, int value, long timestampMillis, long version) {
+        Series[] device = series.get(address);
+        if (device == null) {
+            device = new Series[CHANNELS.length];
+            long deviceId = BinaryFrameCodec.parseAddress(address);
+            for (int i = 0; i < device.length; i++) {
+                device[i] = new Series(deviceId, CHANNELS[i], tiers.size(), blockBytes);
+            }
+            series.put(address, device);
+        }
+        Series target = device[channel.ordinal()];
+        try {
+            append(target, 0, timestampMillis, value);
+            for (int t = 1; t < tiers.size(); t++) {
+                long resolution = tiers.get(t).resolutionMs;
+                long bucket = timestampMillis - timestampMillis % resolution;
+                if (target.bucketCount[t] > 0 && bucket != target.bucketStart[t]) {
+                    append(target, t, target.bucketStart[t], target.bucketMean(t));
+                    target.bucketCount[t] = 0;
+                    target.bucketSum[t] = 0;
+                }
+                target.bucketStart[t] = bucket;
+                target.bucketSum[t] += value;
+                target.bucketCount[t]++;
+            }
+        } catch (IOException e) {
+            writeErrors++;
+        }
+    }
+
+    /**
+     * Reads the samples of a peripheral and channel in a time range, from disk and from the open
+     * block. Samples come in the order they were stored, which is by time for one tier.
+     *
+     * @param address MAC address of the peripheral
+     * @param channel the channel
+     * @param tier 0 for the raw samples, a tier number from addTier for the means
+     * @param fromMillis start of the range, inclusive
+     * @param toMillis end of the range, exclusive
+     * @param visitor receives the samples
+     * @return the number of samples
+     */
+    public synchronized int query(String address, SensorChannel channel, int tier, final long fromMillis,
+                                  final long toMillis, final GorillaCodec.SampleVisitor visitor) throws IOException {
+        Tier target = tiers.get(tier);
+        long deviceId = BinaryFrameCodec.parseAddress(address);
+        final int[] count = new int[1];
+        GorillaCodec.SampleVisitor range = new GorillaCodec.SampleVisitor() {
+            @Override
+            public void onSample(long timestampMillis, int value) {
+                if (timestampMillis >= fromMillis && timestampMillis < toMillis) {
+                    visitor.onSample(timestampMillis, value);
+                    count[0]++;
+                }
+            }
+        };
+        for (Map.Entry<Long, File> segment : target.segments.entrySet()) {
+            long start = segment.getKey();
+            // The open blocks written when a segment rolls may reach past its duration, so the
+            // segments are picked by the timestamps their blocks really hold
+            long[] bounds = boundsOf(target, start, segment.getValue());
+            if (bounds[0] < toMillis && bounds[1] >= fromMillis) {
+                scan(target, start, segment.getValue(), deviceId, channel, fromMillis, toMillis, range);
+            }
+        }
+        Series[] device = series.get(address);
+        if (device != null) {
+            GorillaCodec.Encoder open = device[channel.ordinal()].encoders[tier];
+            if (open.getCount() > 0) {
+                GorillaCodec.decode(ByteBuffer.wrap(open.getBuffer()), 0, open.getCount(), open.getFirstTimestamp(), range);
+            }
+        }
+        return count[0];
+    }
+
+    /**
+     * Writes every open block, so a query or a reader of the files sees every sample
+     */
+    public synchronized void flush() throws IOException {
+        for (Series[] device : series.values()) {
+            for (Series s : device) {
+                for (int t = 0; t < tiers.size(); t++) {
+                    writeBlock(s, t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the open raw blocks and the open blocks of the downsampled tiers that hold at least
+     * {@link #MIN_FLUSH_SAMPLES} means, and forces the segments to storage. Runs on the worker
+     * thread, package-private so the tests can flush without waiting for the timer.
+     */
+    synchronized void flushOpenBlocks() throws IOException {
+        for (Series[] device : series.values()) {
+            for (Series s : device) {
+                for (int t = 0; t < tiers.size(); t++) {
+                    if (t == 0 || s.encoders[t].getCount() >= MIN_FLUSH_SAMPLES) {
+                        writeBlock(s, t);
+                    }
+                }
+            }
+        }
+        for (Tier tier : tiers) {
+            if (tier.file != null) {
+                tier.file.getChannel().force(false);
+            }
+        }
+        flushes++;
+    }
+
+    /**
+     * Deletes the segments that only hold samples older than the retention of their tier.
+     *
+     * @param nowMillis the current time
+     */
+    public synchronized void enforceRetention(long nowMillis) {
+        for (Tier tier : tiers) {
+            long cutoff = nowMillis - tier.retentionMs;
+            // The active segment is never deleted
+            while (tier.segments.size() > 1) {
+                Map.Entry<Long, File> first = tier.segments.firstEntry();
+                if (first.getKey() + tier.segmentDurationMs() > cutoff) {
+                    break;
+                }
+                tier.segments.remove(first.getKey());
+                tier.mapped.remove(first.getKey());
+                tier.bounds.remove(first.getKey());
+                long length = first.getValue().length();
+                if (first.getValue().delete()) {
+                    deletedSegments++;
+                    deletedBytes += length;
+                }
+            }
+        }
+    }
+
+    private void close() {
+        try {
+            synchronized (this) {
+                // Downsampled buckets that are still open go out as they are
+                for (Series[] device : series.values()) {
+                    for (Series s : device) {
+                        for (int t = 1; t < tiers.size(); t++) {
+                            if (s.bucketCount[t] > 0) {
+                                append(s, t, s.bucketStart[t], s.bucketMean(t));
+                                s.bucketCount[t] = 0;
+                                s.bucketSum[t] = 0;
+                            }
+                        }
+                    }
+                }
+                flush();
+                for (Tier tier : tiers) {
+                    if (tier.file != null) {
+                        tier.file.close();
+                        tier.file = null;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            writeErrors++;
+        }
+    }
+
+    private void append(Series s, int tier, long timestampMillis, int value) throws IOException {
+        GorillaCodec.Encoder encoder = s.encoders[tier];
+        if (encoder.getCount() > 0 && (!encoder.hasRoom()
+                || timestampMillis - encoder.getFirstTimestamp() >= tiers.get(tier).blockDurationMs())) {
+            writeBlock(s, tier);
+        }
+        encoder.append(timestampMillis, value);
+        if (tier == 0) {
+            rawSamples++;
+        }
+    }
+
+    /**
+     * Appends the open block of a series to the active segment of the tier and starts a new block
+     */
+    private void writeBlock(Series s, int tierNumber) throws IOException {
+        GorillaCodec.Encoder encoder = s.encoders[tierNumber];
+        if (encoder.getCount() == 0) {
+            return;
+        }
+        Tier tier = tiers.get(tierNumber);
+        long lastTimestamp = encoder.getLastTimestamp();
+        if (tier.file == null || lastTimestamp >= tier.activeStart + tier.segmentDurationMs()) {
+            roll(tier, s, lastTimestamp);
+        }
+        write(tier, s, encoder);
+    }
+
+    private void write(Tier tier, Series s, GorillaCodec.Encoder encoder) throws IOException {
+        long lastTimestamp = encoder.getLastTimestamp();
+        int payloadLength = encoder.getByteLength();
+        header.clear();
+        header.putInt(BLOCK_HEADER_SIZE - 4 + payloadLength);
+        header.putInt(0);
+        header.putLong(s.deviceId);
+        header.putShort((short) s.channel.getAssignedNumber());
+        header.putInt(encoder.getCount());
+        header.putLong(encoder.getFirstTimestamp());
+        header.putLong(lastTimestamp);
+        crc.reset();
+        crc.update(header.array(), 8, BLOCK_HEADER_SIZE - 8);
+        crc.update(encoder.getBuffer(), 0, payloadLength);
+        header.putInt(4, (int) crc.getValue());
+        header.flip();
+        long[] bounds = tier.bounds.get(tier.activeStart);
+        bounds[0] = Math.min(bounds[0], encoder.getFirstTimestamp());
+        bounds[1] = Math.max(bounds[1], lastTimestamp);
+
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER_SIZE + payloadLength);
+        block.put(header).put(encoder.getBuffer(), 0, payloadLength).flip();
+        while (block.hasRemaining()) {
+            tier.file.getChannel().write(block);
+        }
+        writes++;
+        bytesWritten += BLOCK_HEADER_SIZE + payloadLength;
+        payloadBytes += payloadLength;
+        if (tier.number == 0) {
+            rawBytesWritten += BLOCK_HEADER_SIZE + payloadLength;
+        }
+        encoder.reset();
+    }
+
+    /**
+     * Starts a new segment file for a tier. The open blocks of the other series end in the old
+     * segment, so the blocks of a segment never start long before it.
+     *
+     * @param trigger the series whose block goes into the new segment
+     */
+    private void roll(Tier tier, Series trigger, long startMillis) throws IOException {
+        if (tier.file != null) {
+            for (Series[] device : series.values()) {
+                for (Series s : device) {
+                    if (s != trigger && s.encoders[tier.number].getCount() > 0) {
+                        write(tier, s, s.encoders[tier.number]);
+                    }
+                }
+            }
+            tier.file.close();
+        }
+        File file = new File(tier.directory, String.format("%020d%s", startMillis, SEGMENT_SUFFIX));
+        int end = file.length() > 0 ? validLength(map(tier, startMillis, file)) : 0;
+        tier.file = new RandomAccessFile(file, "rw");
+        if (end < tier.file.length()) {
+            // New blocks go after the last good one, not after a torn write
+            tier.file.setLength(end);
+            tier.mapped.remove(startMillis);
+        }
+        tier.file.seek(end);
+        tier.activeStart = startMillis;
+        boundsOf(tier, startMillis, file);
+        tier.segments.put(startMillis, file);
+        enforceRetention(startMillis);
+    }
+
+    /**
+     * @return the first and the last timestamp of the blocks of a segment, read from the block
+     * headers the first time for a segment of an earlier run
+     */
+    private long[] boundsOf(Tier tier, long start, File file) throws IOException {
+        long[] bounds = tier.bounds.get(start);
+        if (bounds == null) {
+            bounds = new long[]{Long.MAX_VALUE, Long.MIN_VALUE};
+            if (file.length() > 0) {
+                MappedByteBuffer buffer = map(tier, start, file);
+                int position = 0;
+                int limit = buffer.capacity();
+                while (position + BLOCK_HEADER_SIZE <= limit) {
+                    int length = buffer.getInt(position);
+                    if (length < BLOCK_HEADER_SIZE - 4 || position + 4 + length > limit) {
+                        break;
+                    }
+                    bounds[0] = Math.min(bounds[0], buffer.getLong(position + 22));
+                    bounds[1] = Math.max(bounds[1], buffer.getLong(position + 30));
+                    position += 4 + length;
+                }
+            }
+            tier.bounds.put(start, bounds);
+        }
+        return bounds;
+    }
+
+    /**
+     * @return a read-only mapping of a segment, mapped again when the file grew
+     */
+    private MappedByteBuffer map(Tier tier, long start, File file) throws IOException {
+        MappedByteBuffer buffer = tier.mapped.get(start);
+        if (buffer == null || buffer.capacity() != file.length()) {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            } finally {
+                randomAccessFile.close();
+            }
+            tier.mapped.put(start, buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Decodes the matching blocks of one segment, through a read-only mapping of the file
+     */
+    private void scan(Tier tier, long start, File file, long deviceId, SensorChannel channel,
+                      long fromMillis, long toMillis, GorillaCodec.SampleVisitor visitor) throws IOException {
+        MappedByteBuffer buffer = map(tier, start, file);
+        int position = 0;
+        int limit = buffer.capacity();
+        while (position + BLOCK_HEADER_SIZE <= limit) {
+            int length = buffer.getInt(position);
+            if (length < BLOCK_HEADER_SIZE - 4 || position + 4 + length > limit) {
+                // A block that was cut short by a crash ends the segment
+                break;
+            }
+            if (buffer.getLong(position + 8) == deviceId
+                    && buffer.getShort(position + 16) == (short) channel.getAssignedNumber()
+                    && buffer.getLong(position + 22) < toMillis
+                    && buffer.getLong(position + 30) >= fromMillis) {
+                if (!checkCrc(buffer, position, length)) {
+                    // Not decoded as data, and the lengths after it cannot be trusted either
+                    corruptBlocks++;
+                    break;
+                }
+                GorillaCodec.decode(buffer, position + BLOCK_HEADER_SIZE, buffer.getInt(position + 18),
+                        buffer.getLong(position + 22), visitor);
+            }
+            position += 4 + length;
+        }
+    }
+
+    /**
+     * @return the length of the good blocks at the start of a segment
+     */
+    private int validLength(ByteBuffer buffer) {
+        int position = 0;
+        int limit = buffer.capacity();
+        while (position + BLOCK_HEADER_SIZE <= limit) {
+            int length = buffer.getInt(position);
+            if (length < BLOCK_HEADER_SIZE - 4 || position + 4 + length > limit
+                    || !checkCrc(buffer, position, length)) {
+                break;
+            }
+            position += 4 + length;
+        }
+        return position;
+    }
+
+    /**
+     * @return true if the CRC of a block matches the bytes after it
+     */
+    private boolean checkCrc(ByteBuffer buffer, int position, int length) {
+        crc.reset();
+        for (int i = 8; i < 4 + length; i++) {
+            crc.update(buffer.get(position + i));
+        }
+        return (int) crc.getValue() == buffer.getInt(position + 4);
+    }
+
+    /**
+     * @return the number of blocks a query stopped at because their CRC did not match
+     */
+    public synchronized long getCorruptBlockCount() {
+        return corruptBlocks;
+    }
+
+    /**
+     * @return the number of raw samples stored
+     */
+    public synchronized long getRawSampleCount() {
+        return rawSamples;
+    }
+
+    /**
+     * @return the bytes written for the raw tier, divided by the raw samples in the written blocks
+     */
+    public synchronized double getRawBytesPerSample() {
+        long open = 0;
+        for (Series[] device : series.values()) {
+            for (Series s : device) {
+                open += s.encoders[0].getCount();
+            }
+        }
+        long written = rawSamples - open;
+        return written == 0 ? 0 : (double) rawBytesWritten / written;
+    }
+
+    /**
+     * @return bytes written to the files over the bytes of the encoded samples, the overhead of
+     * the block headers; the samples are written once and never rewritten
+     */
+    public synchronized double getWriteAmplification() {
+        return payloadBytes == 0 ? 0 : (double) bytesWritten / payloadBytes;
+    }
+
+    /**
+     * @return the bytes written to the segment files, all tiers
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the number of write calls, one per block
+     */
+    public synchronized long getWriteCount() {
+        return writes;
+    }
+
+    public synchronized long getWriteErrorCount() {
+        return writeErrors;
+    }
+
+    public synchronized long getDeletedSegmentCount() {
+        return deletedSegments;
+    }
+
+    /**
+     * @return the number of periodic flushes
+     */
+    public synchronized long getFlushCount() {
+        return flushes;
+    }
+
+    public synchronized long getDeletedBytes() {
+        return deletedBytes;
+    }
+
+    /**
+     * @return the number of samples dropped because the disk fell behind
+     */
+    public synchronized long getDroppedCount() {
+        return subscription == null ? 0 : subscription.getDroppedCount();
+    }
+
+    public synchronized int getTierCount() {
+        return tiers.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("samples=").append(rawSamples)
+                .append(" written=").append(bytesWritten).append(" bytes in ").append(writes).append(" writes")
+                .append(String.format(" %.2f bytes/sample", getRawBytesPerSample()))
+                .append(String.format(" amplification=%.3f", getWriteAmplification()))
+                .append(" deleted=").append(deletedSegments).append(" segments");
+        for (Tier tier : tiers) {
+            text.append(" tier").append(tier.number).append('=').append(tier.segments.size()).append(" segments");
+        }
+        return text.toString();
+    }
+
+    /**
+     * The segments of one resolution
+     */
+    private final class Tier {
+        final int number;
+        final long resolutionMs;
+        final long retentionMs;
+        final File directory;
+        final TreeMap<Long, File> segments = new TreeMap<>();
+        final Map<Long, MappedByteBuffer> mapped = new HashMap<>();
+        // First and last timestamp of the blocks of every segment
+        final Map<Long, long[]> bounds = new HashMap<>();
+        RandomAccessFile file;
+        long activeStart;
+
+        long blockDurationMs() {
+            return Math.max(blockDurationMs, resolutionMs * 60);
+        }
+
+        long segmentDurationMs() {
+            return Math.max(segmentDurationMs, blockDurationMs() * 4);
+        }
+
+        Tier(int number, long resolutionMs, long retentionMs) throws IOException {
+            this.number = number;
+            this.resolutionMs = resolutionMs;
+            this.retentionMs = retentionMs;
+            this.directory = new File(TimeSeriesStore.this.directory, "tier" + number);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.endsWith(SEGMENT_SUFFIX)) {
+                        segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The open blocks and downsampling accumulators of one channel of one peripheral
+     */
+    private static final class Series {
+        final long deviceId;
+        final SensorChannel channel;
+        final GorillaCodec.Encoder[] encoders;
+        final long[] bucketStart;
+        final long[] bucketSum;
+        final int[] bucketCount;
+
+        Series(long deviceId, SensorChannel channel, int tiers, int blockBytes) {
+            this.deviceId = deviceId;
+            this.channel = channel;
+            this.encoders = new GorillaCodec.Encoder[tiers];
+            for (int t = 0; t < tiers; t++) {
+                encoders[t] = new GorillaCodec.Encoder(blockBytes);
+            }
+            this.bucketStart = new long[tiers];
+            this.bucketSum = new long[tiers];
+            this.bucketCount = new int[tiers];
+        }
+
+        int bucketMean(int tier) {
+            long sum = bucketSum[tier];
+            int count = bucketCount[tier];
+            return (int) (sum >= 0 ? (sum + count / 2) / count : (sum - count / 2) / count);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.example.androidblegatewaymqttclient;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipeline stage that folds the samples of every peripheral and channel into windows and
+ * publishes a summary of each window instead of, or next to, the raw samples.
+ * <p>
+ * A window is made of panes of one period each. Every period the summaries of the last
+ * {@code panes} periods are published and the oldest pane is cleared: with one pane the windows
+ * are tumbling, with more they slide by one period. A sample only updates the primitive
+ * accumulators of the current pane, so aggregation is O(1) per sample and does not allocate.
+ * <p>
+ * All summaries of a period go out as one message on {@link #SUMMARY_TOPIC}, one line per
+ * peripheral and channel that had samples in the window:
+ * <pre>
+ * address,channel,windowEndMillis,count,min,max,mean,last
+ * </pre>
+ * for example {@code 24:0A:C4:00:00:01,temperature,1588080000000,30,27.25,27.75,27.50,27.50}.
+ */
+public class WindowAggregator implements SampleListener {
+
+    public final static String SUMMARY_TOPIC = "node/summary";
+    public final static long DEFAULT_PERIOD_MS = 60000;
+    public final static int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private final static SensorChannel[] CHANNELS = SensorChannel.values();
+
+    private final MessageTransport transport;
+    private final long periodMs;
+    private final int panes;
+    private final ScheduledExecutorService worker;
+    private SensorEventBus bus;
+    private SensorEventBus.Subscription subscription;
+    private ScheduledFuture<?> ticker;
+
+    // Only used on the worker thread
+    private final Map<String, DeviceWindows> devices = new HashMap<>();
+    private final List<DeviceWindows> deviceList = new ArrayList<>();
+    private final StringBuilder payload = new StringBuilder(256);
+    private int currentPane;
+    private volatile long summaries;
+    private volatile long published;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            publishWindows(System.currentTimeMillis());
+        }
+    };
+
+    /**
+     * @param transport where the summaries go
+     * @param periodMs how often summaries are published
+     * @param panes the number of periods a window spans, 1 for tumbling windows
+     */
+    public WindowAggregator(MessageTransport transport, long periodMs, int panes) {
+        if (periodMs <= 0 || panes < 1) {
+            throw new IllegalArgumentException("Invalid window settings");
+        }
+        this.transport = transport;
+        this.periodMs = periodMs;
+        this.panes = panes;
+        this.worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "window-aggregator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts aggregating the samples of a bus.
+     *
+     * @param bus the bus to take samples from
+     * @param queueCapacity how many samples may wait before the oldest are dropped
+     */
+    public synchronized void start(SensorEventBus bus, int queueCapacity) {
+        if (ticker != null) {
+            return;
+        }
+        this.bus = bus;
+        subscription = bus.register(this, worker, queueCapacity);
+        ticker = worker.scheduleAtFixedRate(tick, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops aggregating and ends the worker thread. Summaries of the current windows are
+     * published first.
+     */
+    public synchronized void stop() {
+        if (ticker != null) {
+            bus.unregister(this);
+            ticker.cancel(false);
+            ticker = null;
+            worker.execute(tick);
+        }
+        worker.shutdown();
+    }
+
+    public boolean awaitStopped(long timeout, TimeUnit unit) throws InterruptedException {
+        return worker.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Called on the worker thread for every sample
+     */
+    @Override
+    public void onSample(String address, SensorChannel channel, int value, long timestampMillis, long version) {
+        DeviceWindows device = devices.get(address);
+        if (device == null) {
+            device = new DeviceWindows(address, panes);
+            devices.put(address, device);
+            deviceList.add(device);
+        }
+        int index = channel.ordinal() * panes + currentPane;
+        if (device.count[index] == 0 || value < device.min[index]) {
+            device.min[index] = value;
+        }
+        if (device.count[index] == 0 || value > device.max[index]) {
+            device.max[index] = value;
+        }
+        device.sum[index] += value;
+        device.count[index]++;
+        device.last[index] = value;
+        device.lastTimestamp[index] = timestampMillis;
+    }
+
+    /**
+     * Publishes the summary of every window and moves on to the next pane, runs on the worker
+     * thread. Package-private so the tests can end a period without waiting for the ticker.
+     */
+    void publishWindows(long windowEndMillis) {
+        payload.setLength(0);
+        for (int d = 0; d < deviceList.size(); d++) {
+            DeviceWindows device = deviceList.get(d);
+            for (SensorChannel channel : CHANNELS) {
+                appendSummary(device, channel, windowEndMillis);
+            }
+        }
+        if (payload.length() > 0) {
+            transport.publishToTopic(SUMMARY_TOPIC, payload.toString());
+            published++;
+        }
+        // The oldest pane becomes the current one
+        currentPane = (currentPane + 1) % panes;
+        for (int d = 0; d < deviceList.size(); d++) {
+            deviceList.get(d).clear(currentPane);
+        }
+    }
+
+    /**
+     * Combines the panes of one channel of one peripheral and appends its summary line
+     */
+    private void appendSummary(DeviceWindows device, SensorChannel channel, long windowEndMillis) {
+        int first = channel.ordinal() * panes;
+        int count = 0;
+        int min = 0;
+        int max = 0;
+        long sum = 0;
+        int last = 0;
+        long lastTimestamp = Long.MIN_VALUE;
+        for (int index = first; index < first + panes; index++) {
+            int paneCount = device.count[index];
+            if (paneCount == 0) {
+                continue;
+            }
+            if (count == 0 || device.min[index] < min) {
+                min = device.min[index];
+            }
+            if (count == 0 || device.max[index] > max) {
+                max = device.max[index];
+            }
+            count += paneCount;
+            sum += device.sum[index];
+            if (device.lastTimestamp[index] >= lastTimestamp) {
+                lastTimestamp = device.lastTimestamp[index];
+                last = device.last[index];
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        int decimals = channel.getDecimals();
+        // Rounded half away from zero, like the fixed-point values themselves
+        int mean = (int) (sum >= 0 ? (sum + count / 2) / count : (sum - count / 2) / count);
+        payload.append(device.address).append(',')
+                .append(channel.getKey()).append(',')
+                .append(windowEndMillis).append(',')
+                .append(count).append(',');
+        SigCharacteristicCodec.appendFixedPoint(payload, min, decimals).append(',');
+        SigCharacteristicCodec.appendFixedPoint(payload, max, decimals).append(',');
+        SigCharacteristicCodec.appendFixedPoint(payload, mean, decimals).append(',');
+        SigCharacteristicCodec.appendFixedPoint(payload, last, decimals).append('\n');
+        summaries++;
+    }
+
+    /**
+     * @return the number of summary lines published
+     */
+    public long getSummaryCount() {
+        return summaries;
+    }
+
+    /**
+     * @return the number of messages published
+     */
+    public long getPublishedCount() {
+        return published;
+    }
+
+    /**
+     * @return the number of samples dropped because the aggregator fell behind
+     */
+    public synchronized long getDroppedCount() {
+        return subscription == null ? 0 : subscription.getDroppedCount();
+    }
+
+    /**
+     * The accumulators of one peripheral, one entry per channel and pane
+     */
+    private static final class DeviceWindows {
+        final String address;
+        final int panes;
+        final int[] min;
+        final int[] max;
+        final long[] sum;
+        final int[] count;
+        final int[] last;
+        final long[] lastTimestamp;
+
+        DeviceWindows(String address, int panes) {
+            int size = CHANNELS.length * panes;
+            this.address = address;
+            this.panes = panes;
+            this.min = new int[size];
+            this.max = new int[size];
+            this.sum = new long[size];
+            this.count = new int[size];
+            this.last = new int[size];
+            this.lastTimestamp = new long[size];
+        }
+
+        void clear(int pane) {
+            for (int index = pane; index < count.length; index += panes) {
+                count[index] = 0;
+                sum[index] = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryFrameCodecTest {
+
+    private final static String ADDRESS = "24:0A:C4:00:00:01";
+    private final static long BASE = 1700000000000L;
+
+    @Test
+    public void roundTripsTheRecordsOfAFrame() {
+        long deviceId = BinaryFrameCodec.parseAddress(ADDRESS);
+        BinaryFrameCodec.FrameWriter writer = new BinaryFrameCodec.FrameWriter(256);
+        writer.begin(deviceId, 65535, BASE);
+        assertTrue(writer.append(SensorChannel.TEMPERATURE, -1234, BASE));
+        assertTrue(writer.append(SensorChannel.HUMIDITY, 5678, BASE + 1000));
+        assertTrue(writer.append(SensorChannel.BATTERY, 97, BASE + 65535));
+        assertEquals(3, writer.getRecordCount());
+        assertEquals(BinaryFrameCodec.HEADER_SIZE + 3 * 5, writer.getLength());
+
+        List<String> records = new ArrayList<>();
+        assertEquals(3, BinaryFrameCodec.decode(writer.toByteArray(), collect(records)));
+        assertEquals(ADDRESS + " 65535 TEMPERATURE -1234 " + BASE, records.get(0));
+        assertEquals(ADDRESS + " 65535 HUMIDITY 5678 " + (BASE + 1000), records.get(1));
+        assertEquals(ADDRESS + " 65535 BATTERY 97 " + (BASE + 65535), records.get(2));
+    }
+
+    @Test
+    public void valuesBeyondSixteenBitsTakeAWideRecord() {
+        BinaryFrameCodec.FrameWriter writer = new BinaryFrameCodec.FrameWriter(256);
+        writer.begin(1, 0, BASE);
+        int[] values = {Short.MAX_VALUE, Short.MAX_VALUE + 1, Short.MIN_VALUE - 1, Integer.MIN_VALUE, Integer.MAX_VALUE};
+        for (int value : values) {
+            assertTrue(writer.append(SensorChannel.TEMPERATURE, value, BASE));
+        }
+        assertEquals(BinaryFrameCodec.HEADER_SIZE + 5 + 4 * 7, writer.getLength());
+
+        List<String> records = new ArrayList<>();
+        BinaryFrameCodec.decode(writer.toByteArray(), collect(records));
+        for (int i = 0; i < values.length; i++) {
+            assertEquals("00:00:00:00:00:01 0 TEMPERATURE " + values[i] + " " + BASE, records.get(i));
+        }
+    }
+
+    @Test
+    public void samplesOutOfRangeOrBeyondTheCapacityAreRefused() {
+        BinaryFrameCodec.FrameWriter writer = new BinaryFrameCodec.FrameWriter(BinaryFrameCodec.HEADER_SIZE + 12);
+        writer.begin(1, 0, BASE);
+        assertFalse("before the base", writer.append(SensorChannel.BATTERY, 1, BASE - 1));
+        assertFalse("past the offset range", writer.append(SensorChannel.BATTERY, 1, BASE + 65536));
+        assertTrue(writer.append(SensorChannel.BATTERY, 1, BASE));
+        assertTrue(writer.append(SensorChannel.BATTERY, 2, BASE));
+        assertFalse("full", writer.append(SensorChannel.BATTERY, 3, BASE));
+        assertEquals(2, writer.getRecordCount());
+
+        // A new frame starts empty
+        writer.begin(1, 1, BASE);
+        assertEquals(BinaryFrameCodec.HEADER_SIZE, writer.getLength());
+        assertEquals(0, writer.getRecordCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedRecordIsRejected() {
+        BinaryFrameCodec.FrameWriter writer = new BinaryFrameCodec.FrameWriter(256);
+        writer.begin(1, 0, BASE);
+        writer.append(SensorChannel.HUMIDITY, 100000, BASE);
+        byte[] frame = writer.toByteArray();
+        byte[] truncated = new byte[frame.length - 1];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        BinaryFrameCodec.decode(truncated, collect(new ArrayList<String>()));
+    }
+
+    @Test
+    public void addressesRoundTrip() {
+        long deviceId = BinaryFrameCodec.parseAddress("24:0a:c4:ff:00:7e");
+        assertEquals(0x240AC4FF007EL, deviceId);
+        assertEquals("24:0A:C4:FF:00:7E", BinaryFrameCodec.formatAddress(deviceId));
+    }
+
+    private static BinaryFrameCodec.RecordVisitor collect(final List<String> out) {
+        return new BinaryFrameCodec.RecordVisitor() {
+            @Override
+            public void onRecord(long deviceId, int sequence, SensorChannel channel, int value, long timestampMillis) {
+                out.add(BinaryFrameCodec.formatAddress(deviceId) + " " + sequence + " " + channel + " "
+                        + value + " " + timestampMillis);
+            }
+        };
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeadbandFilterTest {
+
+    private final static String FIRST = "24:0A:C4:00:00:01";
+    private final static String SECOND = "24:0A:C4:00:00:02";
+
+    @Test
+    public void absoluteDeadbandSuppressesSmallChanges() {
+        DeadbandFilter filter = DeadbandFilter.withDefaults();
+        assertTrue("first sample", filter.accept(FIRST, SensorChannel.TEMPERATURE, 2750, 0));
+        assertFalse(filter.accept(FIRST, SensorChannel.TEMPERATURE, 2759, 1000));
+        assertFalse(filter.accept(FIRST, SensorChannel.TEMPERATURE, 2741, 2000));
+        assertTrue(filter.accept(FIRST, SensorChannel.TEMPERATURE, 2760, 3000));
+        // Measured from the value let through, not from the last sample
+        assertFalse(filter.accept(FIRST, SensorChannel.TEMPERATURE, 2751, 4000));
+        assertTrue(filter.accept(FIRST, SensorChannel.TEMPERATURE, 2750, 5000));
+        assertEquals(3, filter.getPassedCount());
+        assertEquals(3, filter.getSuppressedCount());
+    }
+
+    @Test
+    public void zeroDeadbandOnlySuppressesRepeats() {
+        DeadbandFilter filter = DeadbandFilter.withDefaults();
+        assertTrue(filter.accept(FIRST, SensorChannel.BATTERY, 90, 0));
+        assertFalse(filter.accept(FIRST, SensorChannel.BATTERY, 90, 1000));
+        assertTrue(filter.accept(FIRST, SensorChannel.BATTERY, 89, 2000));
+    }
+
+    @Test
+    public void relativeDeadbandScalesWithTheValue() {
+        DeadbandFilter filter = new DeadbandFilter();
+        filter.setRelative(SensorChannel.HUMIDITY, 0.01);
+        assertTrue(filter.accept(FIRST, SensorChannel.HUMIDITY, 5000, 0));
+        assertFalse(filter.accept(FIRST, SensorChannel.HUMIDITY, 5049, 1000));
+        assertTrue(filter.accept(FIRST, SensorChannel.HUMIDITY, 5050, 2000));
+        // Negative values move by their magnitude
+        assertTrue(filter.accept(FIRST, SensorChannel.TEMPERATURE, -200, 0));
+        filter.setRelative(SensorChannel.TEMPERATURE, 0.1);
+        assertFalse(filter.accept(FIRST, SensorChannel.TEMPERATURE, -181, 1000));
+        assertTrue(filter.accept(FIRST, SensorChannel.TEMPERATURE, -220, 2000));
+    }
+
+    @Test
+    public void heartbeatLetsAQuietChannelThrough() {
+        DeadbandFilter filter = DeadbandFilter.withDefaults();
+        filter.setHeartbeat(10000);
+        assertTrue(filter.accept(FIRST, SensorChannel.TEMPERATURE, 2750, 0));
+        assertFalse(filter.accept(FIRST, SensorChannel.TEMPERATURE, 2750, 9999));
+        assertTrue(filter.accept(FIRST, SensorChannel.TEMPERATURE, 2750, 10000));
+        assertFalse(filter.accept(FIRST, SensorChannel.TEMPERATURE, 2750, 19999));
+        assertEquals(1, filter.getHeartbeatCount());
+    }
+
+    @Test
+    public void peripheralsAndChannelsAreFilteredApart() {
+        DeadbandFilter filter = DeadbandFilter.withDefaults();
+        assertTrue(filter.accept(FIRST, SensorChannel.TEMPERATURE, 2750, 0));
+        assertTrue(filter.accept(SECOND, SensorChannel.TEMPERATURE, 2750, 0));
+        assertTrue(filter.accept(FIRST, SensorChannel.HUMIDITY, 2750, 0));
+        assertFalse(filter.accept(SECOND, SensorChannel.TEMPERATURE, 2755, 100));
+    }
+
+    @Test
+    public void resetLetsTheNextSampleThrough() {
+        DeadbandFilter filter = DeadbandFilter.withDefaults();
+        assertTrue(filter.accept(FIRST, SensorChannel.TEMPERATURE, 2750, 0));
+        filter.reset();
+        assertTrue(filter.accept(FIRST, SensorChannel.TEMPERATURE, 2750, 100));
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GorillaCodecTest {
+
+    @Test
+    public void roundTripsASteadySeries() {
+        long[] timestamps = new long[500];
+        int[] values = new int[500];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = 1600000000000L + i * 1000L;
+            values[i] = 2750 + (i % 7) - 3;
+        }
+        GorillaCodec.Encoder encoder = roundTrip(timestamps, values, 4096);
+        // A steady sensor takes a few bits per sample
+        assertTrue(encoder.getBitLength() < timestamps.length * 16);
+    }
+
+    @Test
+    public void roundTripsEveryEncodingOfTheDeltas() {
+        // Deltas of delta of 0, within 7, 9, 12 and 32 bits, and out of order timestamps
+        long[] timestamps = {0, 1000, 2000, 2063, 2000, 2255, 2100, 4147, 1000, 100000, 50, 2000000000L, 2000000001L};
+        int[] values = new int[timestamps.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        roundTrip(timestamps, values, 1024);
+    }
+
+    @Test
+    public void roundTripsExtremeValues() {
+        long[] timestamps = new long[12];
+        int[] values = {0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 1, 1, -200, 65535, 0, 0x40000000, 3, -3};
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = i * 250L;
+        }
+        roundTrip(timestamps, values, 1024);
+    }
+
+    @Test
+    public void roundTripsRandomSeries() {
+        Random random = new Random(42);
+        for (int run = 0; run < 50; run++) {
+            int count = 1 + random.nextInt(300);
+            long[] timestamps = new long[count];
+            int[] values = new int[count];
+            long timestamp = random.nextInt(1 << 30);
+            int value = random.nextInt();
+            for (int i = 0; i < count; i++) {
+                timestamp += random.nextInt(5000) - 100;
+                value += random.nextBoolean() ? random.nextInt(20) - 10 : random.nextInt();
+                timestamps[i] = timestamp;
+                values[i] = value;
+            }
+            roundTrip(timestamps, values, count * GorillaCodec.MAX_BITS_PER_SAMPLE / 8 + 8);
+        }
+    }
+
+    @Test
+    public void fullBlockRefusesTheSample() {
+        GorillaCodec.Encoder encoder = new GorillaCodec.Encoder(16);
+        int added = 0;
+        Random random = new Random(7);
+        while (encoder.append(added * 1000L + random.nextInt(100000), random.nextInt())) {
+            added++;
+        }
+        assertFalse(encoder.hasRoom());
+        assertEquals(added, encoder.getCount());
+        assertTrue(encoder.getByteLength() <= 16);
+    }
+
+    @Test
+    public void resetStartsTheNextBlock() {
+        GorillaCodec.Encoder encoder = new GorillaCodec.Encoder(256);
+        for (int i = 0; i < 10; i++) {
+            encoder.append(i, -i * 1000);
+        }
+        encoder.reset();
+        roundTrip(encoder, new long[]{7, 8, 9}, new int[]{1, 2, 3});
+    }
+
+    private static GorillaCodec.Encoder roundTrip(long[] timestamps, int[] values, int capacityBytes) {
+        GorillaCodec.Encoder encoder = new GorillaCodec.Encoder(capacityBytes);
+        roundTrip(encoder, timestamps, values);
+        return encoder;
+    }
+
+    private static void roundTrip(GorillaCodec.Encoder encoder, final long[] timestamps, final int[] values) {
+        for (int i = 0; i < timestamps.length; i++) {
+            assertTrue("sample " + i + " fits", encoder.append(timestamps[i], values[i]));
+        }
+        assertEquals(timestamps.length, encoder.getCount());
+        assertEquals(timestamps[0], encoder.getFirstTimestamp());
+        assertEquals(timestamps[timestamps.length - 1], encoder.getLastTimestamp());
+
+        // At an offset, as the blocks of a segment are
+        byte[] block = new byte[encoder.getByteLength() + 5];
+        System.arraycopy(encoder.getBuffer(), 0, block, 5, encoder.getByteLength());
+        final int[] decoded = new int[1];
+        GorillaCodec.decode(ByteBuffer.wrap(block), 5, encoder.getCount(), encoder.getFirstTimestamp(),
+                new GorillaCodec.SampleVisitor() {
+                    @Override
+                    public void onSample(long timestampMillis, int value) {
+                        int i = decoded[0]++;
+                        assertEquals("timestamp " + i, timestamps[i], timestampMillis);
+                        assertEquals("value " + i, values[i], value);
+                    }
+                });
+        assertEquals(timestamps.length, decoded[0]);
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HistoryReplayTest {
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final static String[] DEVICES = {"24:0A:C4:00:00:01", "24:0A:C4:00:00:02", "24:0A:C4:00:00:03"};
+
+    @Test
+    public void budgetIsSplitOverTheSeriesAndTakesTheNewestSamples() throws InterruptedException {
+        ReadingHistory history = new ReadingHistory(1000, 4);
+        for (int t = 0; t < 500; t++) {
+            for (String device : DEVICES) {
+                history.onSample(device, SensorChannel.TEMPERATURE, t, t, 0);
+            }
+        }
+        Replies replies = replay(history, 90, "r1,1,1000,temperature");
+
+        // 30 samples of every peripheral, the newest of the range
+        for (String device : DEVICES) {
+            List<Long> timestamps = replies.timestampsOf(device);
+            assertEquals(device, 30, timestamps.size());
+            assertEquals(Long.valueOf(470), timestamps.get(0));
+            assertEquals(Long.valueOf(499), timestamps.get(29));
+        }
+        assertEquals("90", replies.end);
+    }
+
+    @Test
+    public void shortSeriesLeaveTheirShareToTheNextOnes() throws InterruptedException {
+        ReadingHistory history = new ReadingHistory(1000, 4);
+        history.onSample(DEVICES[0], SensorChannel.HUMIDITY, 1, 10, 0);
+        for (int t = 0; t < 100; t++) {
+            history.onSample(DEVICES[1], SensorChannel.HUMIDITY, t, t, 0);
+        }
+        Replies replies = replay(history, 50, "r2,1,1000,humidity");
+
+        assertEquals(1, replies.timestampsOf(DEVICES[0]).size());
+        assertEquals(49, replies.timestampsOf(DEVICES[1]).size());
+        assertEquals(Long.valueOf(99), replies.timestampsOf(DEVICES[1]).get(48));
+        assertEquals("50", replies.end);
+    }
+
+    @Test
+    public void rangeEndsBeforeTo() throws InterruptedException {
+        ReadingHistory history = new ReadingHistory(1000, 4);
+        for (int t = 0; t < 100; t++) {
+            history.onSample(DEVICES[0], SensorChannel.BATTERY, t, t, 0);
+        }
+        Replies replies = replay(history, 1000, "r3,10,20");
+        List<Long> timestamps = replies.timestampsOf(DEVICES[0]);
+        assertEquals(10, timestamps.size());
+        assertEquals(Long.valueOf(10), timestamps.get(0));
+        assertEquals(Long.valueOf(19), timestamps.get(9));
+    }
+
+    @Test
+    public void failedReplaysGiveTheirSlotBack() throws InterruptedException {
+        ReadingHistory history = new ReadingHistory(16, 4);
+        history.onSample(DEVICES[0], SensorChannel.BATTERY, 90, 10, 0);
+        final AtomicInteger attempts = new AtomicInteger();
+        MessageTransport failing = new MessageTransport() {
+            @Override
+            public void publishToTopic(String topic, String payload) {
+                attempts.incrementAndGet();
+                throw new IllegalStateException("uplink down");
+            }
+
+            @Override
+            public void publishToTopic(String topic, byte[] payload) {
+                publishToTopic(topic, "");
+            }
+
+            @Override
+            public void publishRetained(String topic, byte[] payload) {
+            }
+        };
+        HistoryReplay replay = new HistoryReplay(failing, history);
+        for (int i = 0; i < HistoryReplay.MAX_ACTIVE_REPLAYS * 3; i++) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            boolean started = replay.request("r" + i + ",1", 1000);
+            while (!started && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+                started = replay.request("r" + i + ",1", 1000);
+            }
+            assertTrue("request " + i, started);
+        }
+        replay.stop();
+        assertTrue(replay.awaitStopped(5, TimeUnit.SECONDS));
+        assertTrue(attempts.get() > 0);
+
+        // A request after the stop is refused, it does not take a slot
+        assertFalse(replay.request("late,1", 1000));
+    }
+
+    private static Replies replay(ReadingHistory history, int maxSamples, String request) throws InterruptedException {
+        LocalBroker broker = new LocalBroker();
+        Replies replies = new Replies();
+        broker.subscribe(HistoryReplay.REPLY_TOPIC_PREFIX + "#", replies);
+        HistoryReplay replay = new HistoryReplay(broker, history);
+        replay.setPacing(1000, 0, maxSamples);
+        assertTrue(replay.request(request, 1000));
+        assertTrue(replies.done.await(5, TimeUnit.SECONDS));
+        replay.stop();
+        return replies;
+    }
+
+    /**
+     * The samples of the replies by address, and the end message
+     */
+    private static final class Replies implements LocalBroker.MessageListener {
+        final Map<String, List<Long>> timestamps = new HashMap<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String end;
+
+        @Override
+        public synchronized void onMessage(String topic, byte[] payload) {
+            String text = new String(payload, UTF_8);
+            if (topic.endsWith(HistoryReplay.END_SUFFIX)) {
+                end = text;
+                done.countDown();
+                return;
+            }
+            for (String line : text.split("\n")) {
+                String[] fields = line.split(",");
+                List<Long> list = timestamps.get(fields[0]);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    timestamps.put(fields[0], list);
+                }
+                list.add(Long.parseLong(fields[2]));
+            }
+        }
+
+        synchronized List<Long> timestampsOf(String address) {
+            List<Long> list = timestamps.get(address);
+            return list == null ? new ArrayList<Long>() : list;
+        }
+    }
+}
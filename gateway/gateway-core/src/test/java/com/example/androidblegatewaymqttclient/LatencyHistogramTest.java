@@ -0,0 +1,97 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesGetABucketEach() {
+        for (int value = 0; value < 16; value++) {
+            assertEquals(value, LatencyHistogram.bucketOf(value));
+            assertEquals(value, LatencyHistogram.upperBoundOf(value));
+        }
+    }
+
+    @Test
+    public void everyValueFallsWithinTheBoundsOfItsBucket() {
+        for (long value = 0; value < LatencyHistogram.MAX_VALUE_US; value = value * 5 / 4 + 1) {
+            check(value);
+            check(value + 1);
+            check(value - 1 < 0 ? 0 : value - 1);
+        }
+        check(LatencyHistogram.MAX_VALUE_US);
+    }
+
+    private static void check(long value) {
+        int bucket = LatencyHistogram.bucketOf(value);
+        long upper = LatencyHistogram.upperBoundOf(bucket);
+        long lower = bucket == 0 ? 0 : LatencyHistogram.upperBoundOf(bucket - 1) + 1;
+        assertTrue(value + " above bucket " + bucket, value <= upper);
+        assertTrue(value + " below bucket " + bucket, value >= lower);
+        if (lower >= 16) {
+            // A bucket is at most 1/16 of its values wide
+            assertTrue("bucket " + bucket + " too wide", upper - lower + 1 <= lower / 16);
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        int last = LatencyHistogram.bucketOf(LatencyHistogram.MAX_VALUE_US);
+        assertEquals(527, last);
+        assertEquals(LatencyHistogram.MAX_VALUE_US, LatencyHistogram.upperBoundOf(last));
+        for (int bucket = 1; bucket <= last; bucket++) {
+            long lower = LatencyHistogram.upperBoundOf(bucket - 1) + 1;
+            assertEquals(bucket, LatencyHistogram.bucketOf(lower));
+            assertEquals(bucket, LatencyHistogram.bucketOf(LatencyHistogram.upperBoundOf(bucket)));
+        }
+    }
+
+    @Test
+    public void outOfRangeValuesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentileUs(50));
+        assertEquals(LatencyHistogram.MAX_VALUE_US, histogram.getMaxUs());
+        assertEquals(LatencyHistogram.MAX_VALUE_US, histogram.getPercentileUs(100));
+    }
+
+    @Test
+    public void percentilesAreTheUpperBoundsOfTheirBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileUs(99));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50500, histogram.getMeanUs());
+        assertEquals(100000, histogram.getMaxUs());
+        long p50 = histogram.getPercentileUs(50);
+        assertTrue(p50 >= 50000 && p50 <= 50000 + 50000 / 16);
+        long p99 = histogram.getPercentileUs(99);
+        assertTrue(p99 >= 99000 && p99 <= 99000 + 99000 / 16);
+    }
+
+    @Test
+    public void percentilesOfTheDifferenceOfTwoSnapshots() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(10);
+        }
+        long[] before = histogram.snapshot();
+        for (int i = 0; i < 10; i++) {
+            histogram.record(5000);
+        }
+        long[] interval = histogram.snapshot();
+        for (int i = 0; i < interval.length; i++) {
+            interval[i] -= before[i];
+        }
+        assertEquals(10, histogram.getPercentileUs(50));
+        long p50 = LatencyHistogram.percentileOf(interval, 50);
+        assertTrue(p50 >= 5000 && p50 <= 5000 + 5000 / 16);
+    }
+}
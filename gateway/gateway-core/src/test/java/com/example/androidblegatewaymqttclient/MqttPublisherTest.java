@@ -0,0 +1,240 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MqttPublisherTest {
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final static String FIRST = "24:0A:C4:00:00:01";
+    private final static String SECOND = "24:0A:C4:00:00:02";
+    // 24:0A:C4:00:00:01,temperature,1000,27.50 and its newline
+    private final static int RECORD_BYTES = 41;
+
+    @Test
+    public void withoutBatchingEverySampleGoesToTheTopicOfItsChannel() throws InterruptedException {
+        Transport transport = new Transport();
+        SensorEventBus bus = new SensorEventBus();
+        MqttPublisher publisher = start(transport, bus);
+        bus.publish(FIRST, SensorChannel.TEMPERATURE, 2750, 1000, 1);
+        bus.publish(FIRST, SensorChannel.HUMIDITY, -5, 1000, 1);
+        stop(publisher);
+
+        List<Message> messages = transport.messages();
+        assertEquals(2, messages.size());
+        assertEquals(SensorChannel.TEMPERATURE.getTopic(), messages.get(0).topic);
+        assertEquals("27.50", messages.get(0).text());
+        assertEquals(SensorChannel.HUMIDITY.getTopic(), messages.get(1).topic);
+        assertEquals("-0.05", messages.get(1).text());
+    }
+
+    @Test
+    public void batchIsSentAtTheMaximumNumberOfSamples() throws InterruptedException {
+        Transport transport = new Transport();
+        SensorEventBus bus = new SensorEventBus();
+        MqttPublisher publisher = start(transport, bus);
+        publisher.setBatching(60000, 4, 1 << 20);
+        for (int i = 0; i < 9; i++) {
+            bus.publish(FIRST, SensorChannel.TEMPERATURE, 2750, 1000, i);
+        }
+        assertTrue(transport.await(3));
+
+        // The first sample after a start goes out on its own
+        List<Message> messages = transport.messages();
+        assertEquals(3, messages.size());
+        assertEquals(1, messages.get(0).lines());
+        assertEquals(4, messages.get(1).lines());
+        assertEquals(4, messages.get(2).lines());
+        assertEquals(MqttPublisher.BATCH_TOPIC, messages.get(1).topic);
+        assertEquals(FIRST + ",temperature,1000,27.50", messages.get(1).text().split("\n")[0]);
+        stop(publisher);
+    }
+
+    @Test
+    public void batchIsSentAtTheMaximumNumberOfBytes() throws InterruptedException {
+        Transport transport = new Transport();
+        SensorEventBus bus = new SensorEventBus();
+        MqttPublisher publisher = start(transport, bus);
+        publisher.setBatching(60000, 1000, 3 * RECORD_BYTES);
+        for (int i = 0; i < 7; i++) {
+            bus.publish(FIRST, SensorChannel.TEMPERATURE, 2750, 1000, i);
+        }
+        assertTrue(transport.await(3));
+
+        List<Message> messages = transport.messages();
+        assertEquals(3, messages.size());
+        assertEquals(3, messages.get(1).lines());
+        assertEquals(3 * RECORD_BYTES, messages.get(1).payload.length);
+        assertEquals(3, messages.get(2).lines());
+        stop(publisher);
+    }
+
+    @Test
+    public void lingerSendsAPartialBatch() throws InterruptedException {
+        Transport transport = new Transport();
+        SensorEventBus bus = new SensorEventBus();
+        MqttPublisher publisher = start(transport, bus);
+        publisher.setBatching(50, 1000, 1 << 20);
+        bus.publish(FIRST, SensorChannel.TEMPERATURE, 2750, 1000, 1);
+        bus.publish(FIRST, SensorChannel.TEMPERATURE, 2760, 1100, 2);
+        bus.publish(SECOND, SensorChannel.HUMIDITY, 4000, 1100, 1);
+        assertTrue(transport.await(2));
+
+        List<Message> messages = transport.messages();
+        assertEquals(2, messages.size());
+        assertEquals(2, messages.get(1).lines());
+        stop(publisher);
+    }
+
+    @Test
+    public void stopSendsTheCurrentBatch() throws InterruptedException {
+        Transport transport = new Transport();
+        SensorEventBus bus = new SensorEventBus();
+        MqttPublisher publisher = start(transport, bus);
+        publisher.setBatching(60000, 1000, 1 << 20);
+        for (int i = 0; i < 5; i++) {
+            bus.publish(FIRST, SensorChannel.BATTERY, 90 - i, 1000 + i, i);
+        }
+        stop(publisher);
+
+        List<Message> messages = transport.messages();
+        assertEquals(2, messages.size());
+        assertEquals(4, messages.get(1).lines());
+    }
+
+    @Test
+    public void binaryBatchHasOneFramePerPeripheral() throws InterruptedException {
+        Transport transport = new Transport();
+        SensorEventBus bus = new SensorEventBus();
+        MqttPublisher publisher = start(transport, bus);
+        publisher.setPayloadFormat(MqttPublisher.PayloadFormat.BINARY);
+        publisher.setBatching(60000, 1000, 1 << 20);
+        bus.publish(FIRST, SensorChannel.TEMPERATURE, 2750, 1000, 1);
+        for (int i = 0; i < 3; i++) {
+            bus.publish(FIRST, SensorChannel.TEMPERATURE, 2750 + i, 2000 + i, i);
+            bus.publish(SECOND, SensorChannel.HUMIDITY, 4000 + i, 2000 + i, i);
+        }
+        stop(publisher);
+
+        List<Message> messages = transport.messages();
+        assertEquals(3, messages.size());
+        int records = 0;
+        for (Message message : messages) {
+            records += records(message);
+        }
+        assertEquals(7, records);
+    }
+
+    @Test
+    public void binaryFramesAreFilledWithoutBatching() throws InterruptedException {
+        Transport transport = new Transport();
+        SensorEventBus bus = new SensorEventBus();
+        MqttPublisher publisher = start(transport, bus);
+        publisher.setPayloadFormat(MqttPublisher.PayloadFormat.BINARY);
+        bus.publish(FIRST, SensorChannel.TEMPERATURE, 2750, 1000, 1);
+        for (int i = 0; i < 3; i++) {
+            bus.publish(FIRST, SensorChannel.TEMPERATURE, 2750 + i, 2000 + i, i);
+            bus.publish(SECOND, SensorChannel.HUMIDITY, 4000 + i, 2000 + i, i);
+        }
+        // Sent by the linger timer, one frame per peripheral
+        assertTrue(transport.await(3));
+
+        List<Message> messages = transport.messages();
+        assertEquals(3, messages.size());
+        assertEquals(1, records(messages.get(0)));
+        assertEquals(3, records(messages.get(1)));
+        assertEquals(3, records(messages.get(2)));
+        stop(publisher);
+    }
+
+    private static int records(Message message) {
+        assertEquals(MqttPublisher.FRAME_TOPIC, message.topic);
+        return BinaryFrameCodec.decode(message.payload, new BinaryFrameCodec.RecordVisitor() {
+            @Override
+            public void onRecord(long deviceId, int sequence, SensorChannel channel, int value, long timestampMillis) {
+            }
+        });
+    }
+
+    private static MqttPublisher start(Transport transport, SensorEventBus bus) {
+        MqttPublisher publisher = new MqttPublisher(transport);
+        publisher.start(bus, MqttPublisher.DEFAULT_QUEUE_CAPACITY);
+        return publisher;
+    }
+
+    /**
+     * Stops the publisher once the worker took every sample, samples still queued would be dropped
+     */
+    private static void stop(MqttPublisher publisher) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (publisher.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        publisher.stop();
+        assertTrue(publisher.awaitStopped(5, TimeUnit.SECONDS));
+    }
+
+    private static final class Message {
+        final String topic;
+        final byte[] payload;
+
+        Message(String topic, byte[] payload) {
+            this.topic = topic;
+            this.payload = payload;
+        }
+
+        String text() {
+            return new String(payload, UTF_8);
+        }
+
+        int lines() {
+            return text().split("\n").length;
+        }
+    }
+
+    private static final class Transport implements MessageTransport {
+        private final List<Message> messages = new ArrayList<>();
+
+        @Override
+        public void publishToTopic(String topic, String payload) {
+            publishToTopic(topic, payload.getBytes(UTF_8));
+        }
+
+        @Override
+        public synchronized void publishToTopic(String topic, byte[] payload) {
+            messages.add(new Message(topic, payload));
+            notifyAll();
+        }
+
+        @Override
+        public void publishRetained(String topic, byte[] payload) {
+            throw new AssertionError("retained message on " + topic);
+        }
+
+        synchronized List<Message> messages() {
+            return new ArrayList<>(messages);
+        }
+
+        /**
+         * Waits until the given number of messages arrived
+         */
+        synchronized boolean await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (messages.size() < count) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundJournalTest {
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final static int SEGMENT_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsWhatWasAppendedInOrder() throws IOException {
+        OutboundJournal journal = new OutboundJournal(folder.getRoot(), SEGMENT_SIZE);
+        long first = journal.append("node/temperature", bytes("m0"));
+        long second = journal.append("node/humidity", bytes("m1"));
+        assertTrue(second > first);
+
+        List<String> read = new ArrayList<>();
+        long next = journal.read(journal.getAckedOffset(), 10, collect(read));
+        assertEquals(2, read.size());
+        assertEquals("node/temperature m0", read.get(0));
+        assertEquals("node/humidity m1", read.get(1));
+        assertEquals(journal.getEndOffset(), next);
+        assertTrue(journal.hasPending());
+
+        journal.acknowledge(second);
+        read.clear();
+        journal.read(journal.getAckedOffset(), 10, collect(read));
+        assertEquals(1, read.size());
+        journal.acknowledge(next);
+        assertFalse(journal.hasPending());
+    }
+
+    @Test
+    public void recoversUnacknowledgedMessagesAfterAReopen() throws IOException {
+        OutboundJournal journal = new OutboundJournal(folder.getRoot(), SEGMENT_SIZE);
+        for (int i = 0; i < 5; i++) {
+            journal.append("t", bytes("m" + i));
+        }
+        List<String> read = new ArrayList<>();
+        long afterTwo = journal.read(0, 2, collect(read));
+        journal.acknowledge(afterTwo);
+        journal.close();
+
+        OutboundJournal reopened = new OutboundJournal(folder.getRoot(), SEGMENT_SIZE);
+        assertEquals(afterTwo, reopened.getAckedOffset());
+        read.clear();
+        reopened.read(reopened.getAckedOffset(), 10, collect(read));
+        assertEquals(3, read.size());
+        assertEquals("t m2", read.get(0));
+    }
+
+    @Test
+    public void truncatedRecordEndsTheJournalOnReopen() throws IOException {
+        OutboundJournal journal = new OutboundJournal(folder.getRoot(), SEGMENT_SIZE);
+        journal.append("t", bytes("m0"));
+        journal.append("t", bytes("m1"));
+        long torn = journal.append("t", bytes("a message cut short"));
+        journal.close();
+
+        // A write that was cut short: the length made it to the disk, the end of the payload did not
+        RandomAccessFile file = new RandomAccessFile(segmentFile(0), "rw");
+        try {
+            file.seek(torn + 8 + 2 + 1 + 10);
+            file.write(new byte[9]);
+        } finally {
+            file.close();
+        }
+
+        OutboundJournal reopened = new OutboundJournal(folder.getRoot(), SEGMENT_SIZE);
+        assertEquals(torn, reopened.getEndOffset());
+        List<String> read = new ArrayList<>();
+        reopened.read(0, 10, collect(read));
+        assertEquals(2, read.size());
+
+        // The next append takes the place of the torn record
+        assertEquals(torn, reopened.append("t", bytes("m2")));
+        read.clear();
+        reopened.read(0, 10, collect(read));
+        assertEquals(3, read.size());
+        assertEquals("t m2", read.get(2));
+    }
+
+    @Test
+    public void acknowledgedSegmentsAreReclaimed() throws IOException {
+        OutboundJournal journal = new OutboundJournal(folder.getRoot(), SEGMENT_SIZE);
+        byte[] payload = new byte[200];
+        for (int i = 0; i < 20; i++) {
+            journal.append("t", payload);
+        }
+        assertTrue(journal.getSegmentCount() >= 4);
+        assertEquals(journal.getSegmentCount(), segmentFiles());
+
+        // Acknowledging part of a segment keeps it
+        List<String> read = new ArrayList<>();
+        long afterOne = journal.read(0, 1, collect(read));
+        journal.acknowledge(afterOne);
+        assertEquals(0, journal.getDeletedSegments());
+
+        long end = journal.read(afterOne, 100, collect(read));
+        assertEquals(20, read.size());
+        journal.acknowledge(end);
+        assertEquals(1, journal.getSegmentCount());
+        assertEquals(1, segmentFiles());
+        assertEquals(journal.getRolledSegments(), journal.getDeletedSegments());
+        assertFalse(journal.hasPending());
+
+        // Reading continues in the segment that is left
+        journal.append("t", bytes("after"));
+        read.clear();
+        journal.read(journal.getAckedOffset(), 10, collect(read));
+        assertEquals(1, read.size());
+    }
+
+    @Test
+    public void segmentsBeyondTheBoundDropTheOldestMessages() throws IOException {
+        OutboundJournal journal = new OutboundJournal(folder.getRoot(), SEGMENT_SIZE);
+        journal.setMaxSegments(2);
+        for (int i = 0; i < 100; i++) {
+            journal.append("t", bytes("message " + i));
+        }
+        assertEquals(2, journal.getSegmentCount());
+        assertEquals(2, segmentFiles());
+
+        List<String> read = new ArrayList<>();
+        journal.read(0, 1000, collect(read));
+        assertEquals(100, read.size() + journal.getDroppedRecords());
+        assertEquals("t message " + journal.getDroppedRecords(), read.get(0));
+        assertEquals("t message 99", read.get(read.size() - 1));
+    }
+
+    @Test
+    public void closedJournalRefusesAppends() throws IOException {
+        OutboundJournal journal = new OutboundJournal(folder.getRoot(), SEGMENT_SIZE);
+        journal.append("t", bytes("m0"));
+        journal.close();
+        try {
+            journal.append("t", bytes("m1"));
+            throw new AssertionError("append after close");
+        } catch (IOException expected) {
+            // Closed
+        }
+        assertEquals(0, journal.read(0, 10, collect(new ArrayList<String>())));
+    }
+
+    private File segmentFile(long base) {
+        return new File(folder.getRoot(), String.format("segment-%020d.log", base));
+    }
+
+    private int segmentFiles() {
+        int count = 0;
+        for (String name : folder.getRoot().list()) {
+            if (name.startsWith("segment-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(UTF_8);
+    }
+
+    private static OutboundJournal.EntryHandler collect(final List<String> out) {
+        return new OutboundJournal.EntryHandler() {
+            @Override
+            public void onEntry(long offset, long nextOffset, String topic, byte[] payload) {
+                out.add(topic + " " + new String(payload, UTF_8));
+            }
+        };
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReadingHistoryTest {
+
+    private final static String FIRST = "24:0A:C4:00:00:01";
+    private final static String SECOND = "24:0A:C4:00:00:02";
+
+    @Test
+    public void sinceCopiesTheSamplesAtOrAfterATime() {
+        ReadingHistory history = new ReadingHistory(16, 4);
+        for (int i = 0; i < 10; i++) {
+            history.onSample(FIRST, SensorChannel.TEMPERATURE, 2700 + i, 1000L * i, i);
+        }
+        long[] timestamps = new long[16];
+        int[] values = new int[16];
+        assertEquals(5, history.since(FIRST, SensorChannel.TEMPERATURE, 5000, timestamps, values));
+        assertEquals(5000, timestamps[0]);
+        assertEquals(2705, values[0]);
+        assertEquals(9000, timestamps[4]);
+        assertEquals(4, history.since(FIRST, SensorChannel.TEMPERATURE, 5500, timestamps, values));
+        assertEquals(6000, timestamps[0]);
+        assertEquals(10, history.since(FIRST, SensorChannel.TEMPERATURE, Long.MIN_VALUE, timestamps, values));
+        assertEquals(0, history.since(FIRST, SensorChannel.TEMPERATURE, 9001, timestamps, values));
+    }
+
+    @Test
+    public void sinceReadsAcrossTheWrapOfTheRing() {
+        ReadingHistory history = new ReadingHistory(8, 4);
+        for (int i = 0; i < 21; i++) {
+            history.onSample(FIRST, SensorChannel.HUMIDITY, i, 100L * i, i);
+        }
+        long[] timestamps = new long[8];
+        int[] values = new int[8];
+        // Only the last 8 are kept
+        assertEquals(8, history.since(FIRST, SensorChannel.HUMIDITY, 0, timestamps, values));
+        for (int i = 0; i < 8; i++) {
+            assertEquals(13 + i, values[i]);
+            assertEquals(100L * (13 + i), timestamps[i]);
+        }
+        assertEquals(3, history.since(FIRST, SensorChannel.HUMIDITY, 1800, timestamps, values));
+        assertEquals(18, values[0]);
+    }
+
+    @Test
+    public void rangeCopiesTheNewestSamplesThatFit() {
+        ReadingHistory history = new ReadingHistory(8, 4);
+        for (int i = 0; i < 21; i++) {
+            history.onSample(FIRST, SensorChannel.HUMIDITY, i, 100L * i, i);
+        }
+        long[] timestamps = new long[8];
+        int[] values = new int[8];
+        assertEquals(3, history.range(FIRST, SensorChannel.HUMIDITY, 0, 1800, 3, timestamps, values));
+        assertEquals(15, values[0]);
+        assertEquals(17, values[2]);
+        assertEquals(2, history.range(FIRST, SensorChannel.HUMIDITY, 1450, 1700, 8, timestamps, values));
+        assertEquals(1500, timestamps[0]);
+        assertEquals(1600, timestamps[1]);
+        assertEquals(0, history.range(FIRST, SensorChannel.HUMIDITY, 1800, 1800, 8, timestamps, values));
+    }
+
+    @Test
+    public void sinceKeepsSeriesApart() {
+        ReadingHistory history = new ReadingHistory(8, 4);
+        history.onSample(FIRST, SensorChannel.HUMIDITY, 1, 100, 0);
+        history.onSample(FIRST, SensorChannel.TEMPERATURE, 2, 200, 0);
+        history.onSample(SECOND, SensorChannel.HUMIDITY, 3, 300, 0);
+        long[] timestamps = new long[8];
+        int[] values = new int[8];
+        assertEquals(1, history.since(FIRST, SensorChannel.HUMIDITY, 0, timestamps, values));
+        assertEquals(1, values[0]);
+        assertEquals(1, history.since(SECOND, SensorChannel.HUMIDITY, 0, timestamps, values));
+        assertEquals(3, values[0]);
+        assertEquals(0, history.since(SECOND, SensorChannel.BATTERY, 0, timestamps, values));
+        assertEquals(0, history.since("unknown", SensorChannel.BATTERY, 0, timestamps, values));
+    }
+
+    @Test
+    public void devicesBeyondTheLimitAreRejected() {
+        ReadingHistory history = new ReadingHistory(8, 1);
+        history.onSample(FIRST, SensorChannel.HUMIDITY, 1, 100, 0);
+        history.onSample(SECOND, SensorChannel.HUMIDITY, 2, 200, 0);
+        assertEquals(1, history.getDevices().length);
+        assertEquals(1, history.getRejectedCount());
+    }
+}
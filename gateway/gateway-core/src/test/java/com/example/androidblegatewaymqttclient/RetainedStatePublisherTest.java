@@ -0,0 +1,111 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetainedStatePublisherTest {
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final static String FIRST = "24:0A:C4:00:00:01";
+    private final static String SECOND = "24:0A:C4:00:00:02";
+
+    // Snapshots are published from the test thread, which stands in for the worker
+
+    @Test
+    public void snapshotHoldsTheLatestValueOfEveryChannel() {
+        Transport transport = new Transport();
+        RetainedStatePublisher publisher = new RetainedStatePublisher(transport, 1000);
+        publisher.onSample(FIRST, SensorChannel.TEMPERATURE, 2700, 1000, 1);
+        publisher.onSample(FIRST, SensorChannel.HUMIDITY, 4000, 1000, 2);
+        publisher.onSample(FIRST, SensorChannel.TEMPERATURE, 2750, 2000, 3);
+        publisher.publishSnapshots();
+
+        assertEquals(1, transport.messages.size());
+        assertEquals(RetainedStatePublisher.SNAPSHOT_TOPIC_PREFIX + FIRST + " "
+                + FIRST + ",temperature,2000,27.50\n"
+                + FIRST + ",humidity,1000,40.00\n", transport.messages.get(0));
+        assertEquals(1, publisher.getSnapshotCount());
+    }
+
+    @Test
+    public void onlyPeripheralsWithAChangedValueArePublished() {
+        Transport transport = new Transport();
+        RetainedStatePublisher publisher = new RetainedStatePublisher(transport, 1000);
+        publisher.onSample(FIRST, SensorChannel.BATTERY, 90, 1000, 1);
+        publisher.onSample(SECOND, SensorChannel.BATTERY, 80, 1000, 2);
+        publisher.publishSnapshots();
+        assertEquals(2, transport.messages.size());
+
+        // A repeated value does not make a snapshot, but the next one carries its timestamp
+        publisher.onSample(FIRST, SensorChannel.BATTERY, 90, 2000, 3);
+        publisher.onSample(SECOND, SensorChannel.BATTERY, 79, 2000, 4);
+        publisher.publishSnapshots();
+        assertEquals(3, transport.messages.size());
+        assertEquals(RetainedStatePublisher.SNAPSHOT_TOPIC_PREFIX + SECOND + " "
+                + SECOND + ",battery,2000,79\n", transport.messages.get(2));
+
+        publisher.publishSnapshots();
+        assertEquals(3, transport.messages.size());
+        publisher.onSample(FIRST, SensorChannel.TEMPERATURE, 2750, 3000, 5);
+        publisher.publishSnapshots();
+        assertEquals(RetainedStatePublisher.SNAPSHOT_TOPIC_PREFIX + FIRST + " "
+                + FIRST + ",battery,2000,90\n"
+                + FIRST + ",temperature,3000,27.50\n", transport.messages.get(3));
+    }
+
+    @Test
+    public void presenceIsRetainedPerPeripheralUntilStopped() throws InterruptedException {
+        Transport transport = new Transport();
+        RetainedStatePublisher publisher = new RetainedStatePublisher(transport, 1000);
+        publisher.onPresence(FIRST, true);
+        publisher.onPresence(SECOND, true);
+        publisher.onPresence(FIRST, false);
+        publisher.stop();
+        assertTrue(publisher.awaitStopped(5, TimeUnit.SECONDS));
+        // Stopped, the gateway goes offline as a whole
+        publisher.onPresence(SECOND, false);
+
+        List<String> messages = transport.messages();
+        assertEquals(3, messages.size());
+        assertEquals(RetainedStatePublisher.PRESENCE_TOPIC_PREFIX + FIRST + " " + RetainedStatePublisher.ONLINE,
+                messages.get(0));
+        assertEquals(RetainedStatePublisher.PRESENCE_TOPIC_PREFIX + SECOND + " " + RetainedStatePublisher.ONLINE,
+                messages.get(1));
+        assertEquals(RetainedStatePublisher.PRESENCE_TOPIC_PREFIX + FIRST + " " + RetainedStatePublisher.OFFLINE,
+                messages.get(2));
+        assertEquals(3, publisher.getPresenceCount());
+    }
+
+    /**
+     * Keeps every retained message as its topic and payload, separated by a space
+     */
+    private static final class Transport implements MessageTransport {
+        final List<String> messages = new ArrayList<>();
+
+        @Override
+        public void publishToTopic(String topic, String payload) {
+            throw new AssertionError("message on " + topic + " is not retained");
+        }
+
+        @Override
+        public void publishToTopic(String topic, byte[] payload) {
+            throw new AssertionError("message on " + topic + " is not retained");
+        }
+
+        @Override
+        public synchronized void publishRetained(String topic, byte[] payload) {
+            messages.add(topic + " " + new String(payload, UTF_8));
+        }
+
+        synchronized List<String> messages() {
+            return new ArrayList<>(messages);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SensorEventBusTest {
+
+    private final static String ADDRESS = "24:0A:C4:00:00:01";
+
+    @Test
+    public void samplesReachTheListenerOnItsExecutor() throws InterruptedException {
+        SensorEventBus bus = new SensorEventBus();
+        Counter counter = new Counter();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        SensorEventBus.Subscription subscription = bus.register(counter, executor, 1024);
+        for (int i = 0; i < 100; i++) {
+            bus.publish(ADDRESS, SensorChannel.TEMPERATURE, i, i, i);
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(100, counter.samples.get());
+        assertEquals(0, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void samplesForAShutDownExecutorAreDropped() {
+        SensorEventBus bus = new SensorEventBus();
+        Counter counter = new Counter();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        SensorEventBus.Subscription subscription = bus.register(counter, executor, 16);
+
+        // Neither throws on the publishing thread nor stops the other listeners
+        Counter direct = new Counter();
+        bus.register(direct);
+        bus.publish(ADDRESS, SensorChannel.TEMPERATURE, 1, 1, 1);
+        bus.publish(ADDRESS, SensorChannel.TEMPERATURE, 2, 2, 2);
+        assertEquals(2, subscription.getDroppedCount());
+        assertEquals(2, direct.samples.get());
+        assertEquals(0, counter.samples.get());
+    }
+
+    private static final class Counter implements SampleListener {
+        final AtomicInteger samples = new AtomicInteger();
+
+        @Override
+        public void onSample(String address, SensorChannel channel, int value, long timestampMillis, long version) {
+            samples.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SensorSnapshotStoreTest {
+
+    private final static String FIRST = "24:0A:C4:00:00:01";
+    private final static String SECOND = "24:0A:C4:00:00:02";
+
+    @Test
+    public void everyUpdateMakesANewVersion() {
+        SensorSnapshotStore store = new SensorSnapshotStore();
+        assertEquals(0, store.snapshot().getVersion());
+        assertTrue(store.snapshot().getReadings().isEmpty());
+
+        SensorSnapshotStore.Snapshot first = store.update(FIRST, SensorChannel.TEMPERATURE, 2750, 1000);
+        SensorSnapshotStore.Snapshot second = store.update(FIRST, SensorChannel.TEMPERATURE, 2760, 2000);
+        assertEquals(1, first.getVersion());
+        assertEquals(2, second.getVersion());
+        assertEquals(second.getVersion(), store.snapshot().getVersion());
+
+        // A snapshot does not change after it was taken
+        assertEquals(2750, first.getValue(FIRST, SensorChannel.TEMPERATURE));
+        assertEquals(2760, second.getValue(FIRST, SensorChannel.TEMPERATURE));
+        assertEquals(2000, second.get(FIRST, SensorChannel.TEMPERATURE).getTimestampMillis());
+    }
+
+    @Test
+    public void missingReadingsHaveNoValue() {
+        SensorSnapshotStore store = new SensorSnapshotStore();
+        store.update(FIRST, SensorChannel.BATTERY, 90, 1000);
+        SensorSnapshotStore.Snapshot snapshot = store.snapshot();
+        assertNull(snapshot.get(FIRST, SensorChannel.HUMIDITY));
+        assertEquals(SigCharacteristicCodec.NO_VALUE, snapshot.getValue(FIRST, SensorChannel.HUMIDITY));
+        assertEquals(SigCharacteristicCodec.NO_VALUE, snapshot.getValue(SECOND, SensorChannel.BATTERY));
+        assertEquals(1, snapshot.getDevices().size());
+    }
+
+    @Test
+    public void changedSinceReturnsTheNewerReadingsOldestFirst() {
+        SensorSnapshotStore store = new SensorSnapshotStore();
+        store.update(FIRST, SensorChannel.TEMPERATURE, 2750, 1000);
+        store.update(SECOND, SensorChannel.HUMIDITY, 4000, 1000);
+        long seen = store.snapshot().getVersion();
+        store.update(SECOND, SensorChannel.BATTERY, 80, 2000);
+        store.update(FIRST, SensorChannel.TEMPERATURE, 2760, 2000);
+
+        List<SensorSnapshotStore.Reading> changed = store.changedSince(seen);
+        assertEquals(2, changed.size());
+        assertEquals(SECOND, changed.get(0).getAddress());
+        assertEquals(SensorChannel.BATTERY, changed.get(0).getChannel());
+        assertEquals(3, changed.get(0).getVersion());
+        assertEquals(2760, changed.get(1).getValue());
+        assertEquals(4, changed.get(1).getVersion());
+
+        assertTrue(store.changedSince(store.snapshot().getVersion()).isEmpty());
+        assertEquals(3, store.snapshot().getReadings().size());
+    }
+
+    @Test
+    public void concurrentWritersLoseNoUpdate() throws InterruptedException {
+        final SensorSnapshotStore store = new SensorSnapshotStore();
+        final int writers = 4;
+        final int updates = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[writers];
+        for (int w = 0; w < writers; w++) {
+            final String address = "24:0A:C4:00:00:0" + w;
+            threads[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 1; i <= updates; i++) {
+                        store.update(address, SensorChannel.TEMPERATURE, i, i);
+                    }
+                }
+            });
+            threads[w].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        SensorSnapshotStore.Snapshot snapshot = store.snapshot();
+        assertEquals(writers * updates, snapshot.getVersion());
+        assertEquals(writers, snapshot.getDevices().size());
+        for (int w = 0; w < writers; w++) {
+            assertEquals(updates, snapshot.getValue("24:0A:C4:00:00:0" + w, SensorChannel.TEMPERATURE));
+        }
+    }
+}
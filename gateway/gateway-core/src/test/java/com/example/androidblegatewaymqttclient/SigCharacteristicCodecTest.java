@@ -0,0 +1,61 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SigCharacteristicCodecTest {
+
+    @Test
+    public void decodesLittleEndianValues() {
+        assertEquals(87, SigCharacteristicCodec.decodeBatteryLevel(new byte[]{87}));
+        assertEquals(255, SigCharacteristicCodec.decodeBatteryLevel(new byte[]{(byte) 0xFF}));
+        // 0x0ABE = 2750, 27.50 °C
+        assertEquals(2750, SigCharacteristicCodec.decodeTemperature(new byte[]{(byte) 0xBE, 0x0A}));
+        // 0xFF38 = -200, -2.00 °C
+        assertEquals(-200, SigCharacteristicCodec.decodeTemperature(new byte[]{0x38, (byte) 0xFF}));
+        // Humidity is unsigned, 0xFFFF is not -1
+        assertEquals(65535, SigCharacteristicCodec.decodeHumidity(new byte[]{(byte) 0xFF, (byte) 0xFF}));
+    }
+
+    @Test
+    public void shortOrMissingValuesHaveNoValue() {
+        assertEquals(SigCharacteristicCodec.NO_VALUE, SigCharacteristicCodec.decodeBatteryLevel(null));
+        assertEquals(SigCharacteristicCodec.NO_VALUE, SigCharacteristicCodec.decodeBatteryLevel(new byte[0]));
+        assertEquals(SigCharacteristicCodec.NO_VALUE, SigCharacteristicCodec.decodeTemperature(new byte[]{1}));
+        assertEquals(SigCharacteristicCodec.NO_VALUE, SigCharacteristicCodec.decodeHumidity(new byte[]{1}));
+    }
+
+    @Test
+    public void formatsNegativeValues() {
+        assertEquals("-2.00", SigCharacteristicCodec.format(-200, 2));
+        assertEquals("-0.05", SigCharacteristicCodec.format(-5, 2));
+        assertEquals("-0.50", SigCharacteristicCodec.format(-50, 2));
+        assertEquals("-12.34", SigCharacteristicCodec.format(-1234, 2));
+        assertEquals("-7", SigCharacteristicCodec.format(-7, 0));
+        assertEquals("-327.68", SigCharacteristicCodec.format(Short.MIN_VALUE, 2));
+    }
+
+    @Test
+    public void formatsSingleDigitValues() {
+        assertEquals("0.00", SigCharacteristicCodec.format(0, 2));
+        assertEquals("0.05", SigCharacteristicCodec.format(5, 2));
+        assertEquals("0.5", SigCharacteristicCodec.format(5, 1));
+        assertEquals("5", SigCharacteristicCodec.format(5, 0));
+        assertEquals("0.10", SigCharacteristicCodec.format(10, 2));
+        assertEquals("1.01", SigCharacteristicCodec.format(101, 2));
+        assertEquals("0.001", SigCharacteristicCodec.format(1, 3));
+    }
+
+    @Test
+    public void formatsNoValueAsDash() {
+        assertEquals("-", SigCharacteristicCodec.format(SigCharacteristicCodec.NO_VALUE, 2));
+    }
+
+    @Test
+    public void appendsToTheBuilder() {
+        StringBuilder out = new StringBuilder("t=");
+        SigCharacteristicCodec.appendFixedPoint(out, 2750, 2).append("°C");
+        assertEquals("t=27.50°C", out.toString());
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TimeSeriesStoreTest {
+
+    private final static String FIRST = "24:0A:C4:00:00:01";
+    private final static String SECOND = "24:0A:C4:00:00:02";
+
+    private final static GorillaCodec.SampleVisitor NO_SAMPLES = new GorillaCodec.SampleVisitor() {
+        @Override
+        public void onSample(long timestampMillis, int value) {
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void queryFindsSamplesOfBlocksWrittenWhenASegmentRolls() throws IOException {
+        TimeSeriesStore store = new TimeSeriesStore(folder.getRoot(), Long.MAX_VALUE / 2);
+        store.setDurations(1000, 4000);
+        for (long t = 0; t < 20000; t += 100) {
+            store.onSample(FIRST, SensorChannel.TEMPERATURE, (int) t, t, 0);
+            store.onSample(SECOND, SensorChannel.TEMPERATURE, (int) t + 1, t + 50, 0);
+        }
+        store.flush();
+        for (long t = 0; t < 20000; t += 100) {
+            assertEquals("sample at " + t, 1, count(store, FIRST, t, t + 1));
+            assertEquals("sample at " + (t + 50), 1, count(store, SECOND, t + 50, t + 51));
+        }
+        assertEquals(200, count(store, SECOND, 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void samplesSurviveAReopen() throws IOException {
+        TimeSeriesStore store = new TimeSeriesStore(folder.getRoot(), Long.MAX_VALUE / 2);
+        store.setDurations(1000, 4000);
+        for (long t = 0; t < 10000; t += 100) {
+            store.onSample(FIRST, SensorChannel.HUMIDITY, (int) t, t, 0);
+        }
+        store.flush();
+
+        TimeSeriesStore reopened = new TimeSeriesStore(folder.getRoot(), Long.MAX_VALUE / 2);
+        reopened.setDurations(1000, 4000);
+        final List<Long> timestamps = new ArrayList<>();
+        reopened.query(FIRST, SensorChannel.HUMIDITY, 0, 0, Long.MAX_VALUE, new GorillaCodec.SampleVisitor() {
+            @Override
+            public void onSample(long timestampMillis, int value) {
+                assertEquals(timestampMillis, value);
+                timestamps.add(timestampMillis);
+            }
+        });
+        assertEquals(100, timestamps.size());
+        assertEquals(Long.valueOf(0), timestamps.get(0));
+        assertEquals(Long.valueOf(9900), timestamps.get(99));
+    }
+
+    @Test
+    public void corruptBlockIsNotDecoded() throws IOException {
+        TimeSeriesStore store = new TimeSeriesStore(folder.getRoot(), Long.MAX_VALUE / 2);
+        for (long t = 0; t < 1000; t += 100) {
+            store.onSample(FIRST, SensorChannel.TEMPERATURE, (int) t, t, 0);
+        }
+        store.flush();
+        for (long t = 1000; t < 2000; t += 100) {
+            store.onSample(FIRST, SensorChannel.TEMPERATURE, (int) t, t, 0);
+        }
+        store.flush();
+        File[] segments = new File(folder.getRoot(), "tier0").listFiles();
+        assertEquals(1, segments.length);
+        RandomAccessFile file = new RandomAccessFile(segments[0], "rw");
+        try {
+            // Flip a bit in the last byte of the second block
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0x01);
+        } finally {
+            file.close();
+        }
+
+        TimeSeriesStore reopened = new TimeSeriesStore(folder.getRoot(), Long.MAX_VALUE / 2);
+        assertEquals(10, count(reopened, FIRST, 0, Long.MAX_VALUE));
+        assertEquals(1, reopened.getCorruptBlockCount());
+    }
+
+    @Test
+    public void flushKeepsSmallBlocksOfDownsampledTiersOpen() throws IOException {
+        TimeSeriesStore store = new TimeSeriesStore(folder.getRoot(), Long.MAX_VALUE / 2);
+        int tier = store.addTier(1000, Long.MAX_VALUE / 2);
+        for (long t = 0; t < 10000; t += 100) {
+            store.onSample(FIRST, SensorChannel.TEMPERATURE, (int) t, t, 0);
+        }
+        store.flushOpenBlocks();
+        assertEquals(1, store.getFlushCount());
+
+        // The raw samples are on disk, the 9 complete means are still in memory
+        TimeSeriesStore other = new TimeSeriesStore(folder.getRoot(), Long.MAX_VALUE / 2);
+        assertEquals(tier, other.addTier(1000, Long.MAX_VALUE / 2));
+        assertEquals(100, count(other, FIRST, 0, Long.MAX_VALUE));
+        assertEquals(0, other.query(FIRST, SensorChannel.TEMPERATURE, tier, 0, Long.MAX_VALUE, NO_SAMPLES));
+
+        for (long t = 10000; t < 20000; t += 100) {
+            store.onSample(FIRST, SensorChannel.TEMPERATURE, (int) t, t, 0);
+        }
+        store.flushOpenBlocks();
+        other = new TimeSeriesStore(folder.getRoot(), Long.MAX_VALUE / 2);
+        other.addTier(1000, Long.MAX_VALUE / 2);
+        assertEquals(200, count(other, FIRST, 0, Long.MAX_VALUE));
+        // 19 complete means now
+        assertEquals(19, other.query(FIRST, SensorChannel.TEMPERATURE, tier, 0, Long.MAX_VALUE, NO_SAMPLES));
+    }
+
+    @Test
+    public void downsampledTierHoldsTheMeans() throws IOException {
+        TimeSeriesStore store = new TimeSeriesStore(new File(folder.getRoot(), "store"), Long.MAX_VALUE / 2);
+        int tier = store.addTier(1000, Long.MAX_VALUE / 2);
+        for (long t = 0; t < 5000; t += 100) {
+            store.onSample(FIRST, SensorChannel.BATTERY, (int) (t % 1000), t, 0);
+        }
+        final List<Integer> means = new ArrayList<>();
+        store.query(FIRST, SensorChannel.BATTERY, tier, 0, Long.MAX_VALUE, new GorillaCodec.SampleVisitor() {
+            @Override
+            public void onSample(long timestampMillis, int value) {
+                means.add(value);
+            }
+        });
+        // The period in progress is still open
+        assertEquals(4, means.size());
+        for (int mean : means) {
+            assertEquals(450, mean);
+        }
+    }
+
+    private static int count(TimeSeriesStore store, String address, long from, long to) throws IOException {
+        return store.query(address, SensorChannel.TEMPERATURE, 0, from, to, NO_SAMPLES);
+    }
+}
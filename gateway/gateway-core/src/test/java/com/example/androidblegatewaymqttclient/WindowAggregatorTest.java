@@ -0,0 +1,103 @@
+package com.example.androidblegatewaymqttclient;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class WindowAggregatorTest {
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final static String FIRST = "24:0A:C4:00:00:01";
+    private final static String SECOND = "24:0A:C4:00:00:02";
+
+    // The aggregators are not started, the test thread stands in for the worker
+
+    @Test
+    public void tumblingWindowSummarizesOnePeriod() {
+        Transport transport = new Transport();
+        WindowAggregator aggregator = new WindowAggregator(transport, 1000, 1);
+        aggregator.onSample(FIRST, SensorChannel.TEMPERATURE, 2700, 100, 1);
+        aggregator.onSample(FIRST, SensorChannel.TEMPERATURE, 2800, 200, 2);
+        aggregator.onSample(FIRST, SensorChannel.TEMPERATURE, 2750, 300, 3);
+        aggregator.onSample(SECOND, SensorChannel.HUMIDITY, 4000, 300, 1);
+        aggregator.publishWindows(1000);
+
+        assertEquals(1, transport.payloads.size());
+        assertEquals(FIRST + ",temperature,1000,3,27.00,28.00,27.50,27.50\n"
+                + SECOND + ",humidity,1000,1,40.00,40.00,40.00,40.00\n", transport.payloads.get(0));
+        assertEquals(2, aggregator.getSummaryCount());
+
+        // The next window starts empty, a period without samples publishes nothing
+        aggregator.publishWindows(2000);
+        assertEquals(1, aggregator.getPublishedCount());
+        aggregator.onSample(FIRST, SensorChannel.BATTERY, 90, 2100, 4);
+        aggregator.publishWindows(3000);
+        assertEquals(FIRST + ",battery,3000,1,90,90,90,90\n", transport.payloads.get(1));
+    }
+
+    @Test
+    public void slidingWindowDropsItsOldestPane() {
+        Transport transport = new Transport();
+        WindowAggregator aggregator = new WindowAggregator(transport, 1000, 3);
+        aggregator.onSample(FIRST, SensorChannel.BATTERY, 10, 100, 1);
+        aggregator.onSample(FIRST, SensorChannel.BATTERY, 20, 200, 2);
+        aggregator.publishWindows(1000);
+        aggregator.onSample(FIRST, SensorChannel.BATTERY, 30, 1100, 3);
+        aggregator.publishWindows(2000);
+        aggregator.onSample(FIRST, SensorChannel.BATTERY, 40, 2100, 4);
+        aggregator.publishWindows(3000);
+        // Goes to the pane of 10 and 20, which is cleared first
+        aggregator.onSample(FIRST, SensorChannel.BATTERY, 50, 3100, 5);
+        aggregator.publishWindows(4000);
+
+        assertEquals(FIRST + ",battery,1000,2,10,20,15,20\n", transport.payloads.get(0));
+        assertEquals(FIRST + ",battery,2000,3,10,30,20,30\n", transport.payloads.get(1));
+        assertEquals(FIRST + ",battery,3000,4,10,40,25,40\n", transport.payloads.get(2));
+        assertEquals(FIRST + ",battery,4000,3,30,50,40,50\n", transport.payloads.get(3));
+
+        // Once every pane with samples slid out, the window is empty
+        aggregator.publishWindows(5000);
+        aggregator.publishWindows(6000);
+        aggregator.publishWindows(7000);
+        assertEquals(6, transport.payloads.size());
+        assertEquals(FIRST + ",battery,6000,1,50,50,50,50\n", transport.payloads.get(5));
+    }
+
+    @Test
+    public void meanIsRoundedHalfAwayFromZero() {
+        Transport transport = new Transport();
+        WindowAggregator aggregator = new WindowAggregator(transport, 1000, 1);
+        aggregator.onSample(FIRST, SensorChannel.TEMPERATURE, -1, 100, 1);
+        aggregator.onSample(FIRST, SensorChannel.TEMPERATURE, -2, 200, 2);
+        aggregator.onSample(FIRST, SensorChannel.HUMIDITY, 1, 100, 1);
+        aggregator.onSample(FIRST, SensorChannel.HUMIDITY, 2, 200, 2);
+        aggregator.publishWindows(1000);
+
+        assertEquals(FIRST + ",temperature,1000,2,-0.02,-0.01,-0.02,-0.02\n"
+                + FIRST + ",humidity,1000,2,0.01,0.02,0.02,0.02\n", transport.payloads.get(0));
+    }
+
+    private static final class Transport implements MessageTransport {
+        final List<String> payloads = new ArrayList<>();
+
+        @Override
+        public void publishToTopic(String topic, String payload) {
+            assertEquals(WindowAggregator.SUMMARY_TOPIC, topic);
+            payloads.add(payload);
+        }
+
+        @Override
+        public void publishToTopic(String topic, byte[] payload) {
+            publishToTopic(topic, new String(payload, UTF_8));
+        }
+
+        @Override
+        public void publishRetained(String topic, byte[] payload) {
+            throw new AssertionError("retained message on " + topic);
+        }
+    }
+}